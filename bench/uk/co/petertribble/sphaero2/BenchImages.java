@@ -0,0 +1,66 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.image.BufferedImage;
+import java.util.SplittableRandom;
+
+/**
+ * Synthetic images and cutters for the benchmarks. The images are made
+ * from a fixed seed, so every run cuts exactly the same pixels, and have
+ * enough variation that masking and bevelling aren't trivial.
+ */
+final class BenchImages {
+
+    /**
+     * The seed used for every image and every cut.
+     */
+    static final long SEED = 0x5350484145524f32L;
+
+    private BenchImages() {
+    }
+
+    /**
+     * Returns a synthetic image, prepared as the puzzle would prepare an
+     * image read from a file.
+     *
+     * @param size the size of the image, as "widthxheight"
+     *
+     * @return a new image of the given size
+     */
+    static BufferedImage image(final String size) {
+	int x = size.indexOf('x');
+	int width = Integer.parseInt(size.substring(0, x));
+	int height = Integer.parseInt(size.substring(x + 1));
+	BufferedImage image = new BufferedImage(width, height,
+						BufferedImage.TYPE_INT_RGB);
+	SplittableRandom random = new SplittableRandom(SEED);
+	for (int j = 0; j < height; j++) {
+	    for (int i = 0; i < width; i++) {
+		int r = i * 255 / width;
+		int g = j * 255 / height;
+		int b = random.nextInt(256);
+		image.setRGB(i, j, (r << 16) | (g << 8) | b);
+	    }
+	}
+	return JigUtil.resizedImage(image, width, height);
+    }
+
+    /**
+     * Returns a cutter set up to cut the given number of pieces with the
+     * fixed seed. The number of pieces isn't limited to what the puzzle
+     * allows, so that the benchmarks can look at larger puzzles.
+     *
+     * @param name the name of the cutter
+     * @param pieces the preferred number of pieces
+     *
+     * @return a new JigsawCutter
+     */
+    static JigsawCutter cutter(final String name, final int pieces) {
+	JigsawCutter cutter = JigsawCutter.forName(name);
+	if (cutter == null) {
+	    throw new IllegalArgumentException("No cutter " + name);
+	}
+	cutter.prefPieces = pieces;
+	cutter.setSeed(Long.valueOf(SEED));
+	return cutter;
+    }
+}
@@ -0,0 +1,142 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.EventQueue;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sixteen players sharing one puzzle, all in this JVM and talking to the
+ * server over localhost. Each operation is every player dragging their own
+ * piece one step, and waiting until every other player has seen all
+ * sixteen moves, so the score is moves per second carried from one player
+ * to all the others.
+ *
+ * <p>With the usual frame interval most of the time is spent waiting for
+ * the next frame, once at the client and once at the server; a short
+ * interval shows what the encoding, the server and the clients can carry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Djava.awt.headless=true")
+public class CoopBench {
+
+    private static final int CLIENTS = 16;
+
+    /*
+     * How long to wait for moves to arrive before giving up.
+     */
+    private static final long TIMEOUT_NANOS = 10000000000L;
+
+    /**
+     * How often changes are sent, in milliseconds.
+     */
+    @Param({"1", "16"})
+    public long frameMillis;
+
+    private CoopServer server;
+    private final CoopClient[] clients = new CoopClient[CLIENTS];
+    private final Piece[] owned = new Piece[CLIENTS];
+    private long expected;
+    private int step;
+
+    /**
+     * Start a server, and connect the clients to it.
+     *
+     * @throws IOException if the server cannot be started or reached
+     * @throws InterruptedException if interrupted
+     * @throws InvocationTargetException if the clients cannot be started
+     */
+    @Setup
+    public void setup() throws IOException, InterruptedException,
+	    InvocationTargetException {
+	JigsawCutter.setCache(null);
+	JigsawPuzzle puzzle = new JigsawPuzzle(BenchImages.image("800x600"),
+				BenchImages.cutter("Classic", 100));
+	puzzle.setSize(puzzle.getPreferredSize());
+	puzzle.reset();
+	server = new CoopServer(puzzle, new File("bench.png"), 0,
+				frameMillis);
+	for (int i = 0; i < CLIENTS; i++) {
+	    clients[i] = new CoopClient("localhost", server.getPort(),
+					frameMillis);
+	    owned[i] = clients[i].getPuzzle().getZOrder().get(i);
+	}
+	EventQueue.invokeAndWait(new Runnable() {
+	    @Override
+	    public void run() {
+		for (CoopClient client : clients) {
+		    client.start();
+		}
+	    }
+	});
+    }
+
+    /**
+     * Disconnect the clients and stop the server.
+     */
+    @TearDown
+    public void tearDown() {
+	for (CoopClient client : clients) {
+	    client.close();
+	}
+	server.close();
+    }
+
+    /**
+     * Every player drags their piece one step, and waits for the others
+     * to see it.
+     *
+     * @throws InterruptedException if interrupted
+     * @throws InvocationTargetException if a move fails
+     */
+    @Benchmark
+    @OperationsPerInvocation(CLIENTS)
+    public void moves() throws InterruptedException,
+	    InvocationTargetException {
+	final int dx = (step++ & 1) == 0 ? 1 : -1;
+	EventQueue.invokeAndWait(new Runnable() {
+	    @Override
+	    public void run() {
+		for (int i = 0; i < CLIENTS; i++) {
+		    Piece piece = owned[i];
+		    piece.moveTo(piece.getPuzzleX() + dx, piece.getPuzzleY());
+		    clients[i].dragged(piece);
+		}
+	    }
+	});
+	expected += CLIENTS * (CLIENTS - 1);
+	long deadline = System.nanoTime() + TIMEOUT_NANOS;
+	while (received() < expected) {
+	    if (System.nanoTime() > deadline) {
+		throw new IllegalStateException("Moves were lost");
+	    }
+	    Thread.sleep(0L, 50000);
+	}
+    }
+
+    private long received() {
+	long total = 0L;
+	for (CoopClient client : clients) {
+	    total += client.getReceived();
+	}
+	return total;
+    }
+}
@@ -0,0 +1,71 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cutting an image into pieces with each of the cutters. The layout is
+ * made once, so this measures just the cut. The cut cache is never used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Djava.awt.headless=true")
+public class CutBench {
+
+    /**
+     * The name of the cutter.
+     */
+    @Param({"Classic-4", "Classic", "Squares", "Rectangles", "Quads"})
+    public String cutter;
+
+    /**
+     * The size of the image.
+     */
+    @Param({"800x600", "1600x1200"})
+    public String size;
+
+    /**
+     * The preferred number of pieces.
+     */
+    @Param({"100", "320", "1000"})
+    public int pieces;
+
+    private BufferedImage image;
+    private JigsawCutter jcutter;
+    private CutLayout layout;
+
+    /**
+     * Make the image and its layout.
+     */
+    @Setup
+    public void setup() {
+	JigsawCutter.setCache(null);
+	image = BenchImages.image(size);
+	jcutter = BenchImages.cutter(cutter, pieces);
+	layout = jcutter.layout(image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Cut the image.
+     *
+     * @return the pieces
+     */
+    @Benchmark
+    public Piece[] cut() {
+	return jcutter.cut(image, layout);
+    }
+}
@@ -0,0 +1,130 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.image.BufferedImage;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Solving a whole puzzle by joining pieces. The pieces start well away
+ * from each other, and are then put in their right places one at a time,
+ * in a random order, each being joined to any neighbors already in place.
+ * This builds up joined pieces the way a player does, with small groups
+ * growing and merging until there's only one piece left.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgs = "-Djava.awt.headless=true")
+public class JoinBench {
+
+    /**
+     * The name of the cutter.
+     */
+    @Param({"Classic", "Squares"})
+    public String cutter;
+
+    /**
+     * The size of the image.
+     */
+    @Param({"800x600", "1600x1200"})
+    public String size;
+
+    /**
+     * The preferred number of pieces.
+     */
+    @Param({"100", "320"})
+    public int pieces;
+
+    private Piece[] template;
+    private int[][] neighbors;
+    private int[] order;
+    private Piece[] current;
+
+    /**
+     * Cut the image once. Joining changes the pieces, so each solution
+     * starts from copies of these.
+     */
+    @Setup(Level.Trial)
+    public void cut() {
+	JigsawCutter.setCache(null);
+	BufferedImage image = BenchImages.image(size);
+	JigsawCutter jcutter = BenchImages.cutter(cutter, pieces);
+	CutLayout layout = jcutter.layout(image.getWidth(), image.getHeight());
+	template = jcutter.cut(image, layout);
+	neighbors = new int[template.length][];
+	for (int n = 0; n < template.length; n++) {
+	    neighbors[n] = new int[template[n].neighbors.size()];
+	    int i = 0;
+	    for (Piece neighbor : template[n].neighbors) {
+		neighbors[n][i++] = neighbor.getIndex();
+	    }
+	}
+	order = new int[template.length];
+	for (int n = 0; n < order.length; n++) {
+	    order[n] = n;
+	}
+	SplittableRandom random = new SplittableRandom(BenchImages.SEED);
+	for (int n = order.length - 1; n > 0; n--) {
+	    int m = random.nextInt(n + 1);
+	    int t = order[n];
+	    order[n] = order[m];
+	    order[m] = t;
+	}
+    }
+
+    /**
+     * Make fresh unrotated pieces, each placed far enough from the others
+     * that nothing is close enough to join.
+     */
+    @Setup(Level.Invocation)
+    public void scatter() {
+	current = new Piece[template.length];
+	for (int n = 0; n < template.length; n++) {
+	    Piece t = template[n];
+	    current[n] = new Piece(t.getOriginalData(),
+				   t.getImageX(), t.getImageY(),
+				   t.getImageWidth(), t.getImageHeight(),
+				   t.getTotalWidth(), t.getTotalHeight(), 0);
+	    current[n].setIndex(n);
+	    current[n].setPuzzlePosition(t.getImageX() + 100 * (n + 1),
+					 t.getImageY());
+	}
+	for (int n = 0; n < current.length; n++) {
+	    for (int neighbor : neighbors[n]) {
+		current[n].addNeighbor(current[neighbor]);
+	    }
+	}
+    }
+
+    /**
+     * Put every piece in place, joining as we go.
+     *
+     * @return the number of joins made
+     */
+    @Benchmark
+    public int solve() {
+	int joins = 0;
+	for (int n : order) {
+	    Piece piece = current[n];
+	    piece.moveTo(piece.getImageX(), piece.getImageY());
+	    if (piece.join() != null) {
+		joins++;
+	    }
+	}
+	return joins;
+    }
+}
@@ -0,0 +1,87 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recomputing the image data of a single piece for each rotation, which
+ * is what happens every time the player turns a piece. The piece is the
+ * one in the middle of the puzzle, so that it has knobs on every side.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Djava.awt.headless=true")
+public class PieceBench {
+
+    /**
+     * The size of the image.
+     */
+    @Param({"800x600", "1600x1200"})
+    public String size;
+
+    /**
+     * The preferred number of pieces, which sets the size of the piece.
+     */
+    @Param({"100", "1000"})
+    public int pieces;
+
+    /**
+     * The rotation of the piece.
+     */
+    @Param({"0", "90", "180", "270"})
+    public int rotation;
+
+    private Piece piece;
+
+    /**
+     * Cut the image and choose the piece.
+     */
+    @Setup
+    public void setup() {
+	JigsawCutter.setCache(null);
+	BufferedImage image = BenchImages.image(size);
+	JigsawCutter cutter = BenchImages.cutter("Classic", pieces);
+	CutLayout layout = cutter.layout(image.getWidth(), image.getHeight());
+	int index = (layout.getRows() / 2) * layout.getColumns()
+	    + layout.getColumns() / 2;
+	piece = cutter.cut(image, layout)[index];
+	piece.forceSetRotation(rotation);
+    }
+
+    /**
+     * Recompute the piece's image data.
+     *
+     * @return the new image data
+     */
+    @Benchmark
+    public int[] recompute() {
+	piece.recomputeImageData();
+	return piece.curData;
+    }
+
+    /**
+     * Recompute the piece's image data and make a new image from it, as
+     * setting the rotation does.
+     *
+     * @return the piece
+     */
+    @Benchmark
+    public Piece rotate() {
+	piece.forceSetRotation(rotation);
+	return piece;
+    }
+}
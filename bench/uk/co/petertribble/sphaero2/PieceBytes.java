@@ -0,0 +1,65 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Reports how many bytes of pixels the pieces of each cutter hold, with
+ * and without trimming them to the pixels they cover, on the same
+ * synthetic images and with the same seed as the benchmarks. This isn't
+ * a JMH benchmark, as it measures memory rather than time; run it with
+ *
+ * <pre>
+ *     ./build bench-bytes
+ * </pre>
+ */
+public final class PieceBytes {
+
+    private static final String[] CUTTERS = {
+	"Classic-4", "Classic", "Squares", "Rectangles", "Quads",
+    };
+    private static final String[] SIZES = {"800x600", "1600x1200"};
+    private static final int[] PIECES = {100, 320, 1000};
+
+    private PieceBytes() {
+    }
+
+    /*
+     * The total bytes of pixels held by the pieces cut from the image.
+     */
+    private static long cutBytes(final BufferedImage image,
+				 final String name, final int pieces,
+				 final boolean trim) {
+	JigsawCutter cutter = BenchImages.cutter(name, pieces);
+	cutter.setTrim(trim);
+	long bytes = 0L;
+	for (Piece piece : cutter.cut(image)) {
+	    bytes += piece.getPixelBytes();
+	}
+	return bytes;
+    }
+
+    /**
+     * Print the report.
+     *
+     * @param args ignored
+     */
+    public static void main(final String[] args) {
+	JigsawCutter.setCache(null);
+	System.out.printf("%-11s %-9s %6s %12s %12s %6s%n", // NOPMD
+			  "Cutter", "Size", "Pieces", "Untrimmed", "Trimmed",
+			  "Saved");
+	for (String size : SIZES) {
+	    BufferedImage image = BenchImages.image(size);
+	    for (int pieces : PIECES) {
+		for (String name : CUTTERS) {
+		    long before = cutBytes(image, name, pieces, false);
+		    long after = cutBytes(image, name, pieces, true);
+		    System.out.printf( // NOPMD
+			"%-11s %-9s %6d %12d %12d %5.1f%%%n",
+			name, size, pieces, before, after,
+			100.0 * (before - after) / before);
+		}
+	    }
+	}
+    }
+}
@@ -0,0 +1,151 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Operations on a shuffled puzzle: finding the piece under the mouse and
+ * raising it to the top, pushing the top piece to the bottom, finding a
+ * hint, and painting the whole puzzle into an offscreen image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Djava.awt.headless=true")
+public class PuzzleBench {
+
+    /**
+     * The name of the cutter.
+     */
+    @Param({"Classic", "Squares"})
+    public String cutter;
+
+    /**
+     * The size of the image.
+     */
+    @Param({"800x600", "1600x1200"})
+    public String size;
+
+    /**
+     * The preferred number of pieces.
+     */
+    @Param({"100", "1000"})
+    public int pieces;
+
+    /**
+     * How far the puzzle is zoomed, as a power of two.
+     */
+    @Param({"0", "-2"})
+    public int zoom;
+
+    private static final int CLICKS = 1024;
+
+    private JigsawPuzzle puzzle;
+    private MouseEvent[] clicks;
+    private int click;
+    private KeyEvent pushKey;
+    private BufferedImage offscreen;
+    private Graphics2D g;
+
+    /**
+     * Make and shuffle the puzzle, and the events to send to it.
+     */
+    @Setup
+    public void setup() {
+	JigsawCutter.setCache(null);
+	puzzle = new JigsawPuzzle(BenchImages.image(size),
+				  BenchImages.cutter(cutter, pieces));
+	puzzle.setSize(puzzle.getPreferredSize());
+	puzzle.reset();
+	puzzle.setZoom(zoom, 0, 0);
+	Dimension d = puzzle.getPreferredSize();
+	SplittableRandom random = new SplittableRandom(BenchImages.SEED);
+	clicks = new MouseEvent[CLICKS];
+	for (int i = 0; i < CLICKS; i++) {
+	    clicks[i] = new MouseEvent(puzzle, MouseEvent.MOUSE_PRESSED,
+				       0L, 0, random.nextInt(d.width),
+				       random.nextInt(d.height), 1, false,
+				       MouseEvent.BUTTON1);
+	}
+	pushKey = new KeyEvent(puzzle, KeyEvent.KEY_PRESSED, 0L, 0,
+			       KeyEvent.VK_DOWN, KeyEvent.CHAR_UNDEFINED);
+	offscreen = new BufferedImage(d.width, d.height,
+				      BufferedImage.TYPE_INT_RGB);
+	g = offscreen.createGraphics();
+	for (int i = 0; i < CLICKS && puzzle.findHint() == null; i++) {
+	    puzzle.mousePressed0(clicks[i]);
+	}
+    }
+
+    /**
+     * Release the offscreen graphics.
+     */
+    @TearDown
+    public void tearDown() {
+	g.dispose();
+    }
+
+    /**
+     * Press the mouse somewhere on the puzzle, which finds the topmost
+     * piece at that point and raises it to the top.
+     *
+     * @return the puzzle
+     */
+    @Benchmark
+    public JigsawPuzzle hitTest() {
+	puzzle.mousePressed0(clicks[click]);
+	click = (click + 1) % CLICKS;
+	return puzzle;
+    }
+
+    /**
+     * Push the top piece to the bottom.
+     *
+     * @return the puzzle
+     */
+    @Benchmark
+    public JigsawPuzzle push() {
+	puzzle.keyPressed0(pushKey);
+	return puzzle;
+    }
+
+    /**
+     * Find a piece that fits the piece last picked up.
+     *
+     * @return the piece found
+     */
+    @Benchmark
+    public Piece hint() {
+	return puzzle.findHint();
+    }
+
+    /**
+     * Paint the whole puzzle.
+     *
+     * @return the offscreen image
+     */
+    @Benchmark
+    public BufferedImage paint() {
+	puzzle.paintComponent(g);
+	return offscreen;
+    }
+}
@@ -1,4 +1,7 @@
 @SuppressWarnings("module")
 open module uk.co.petertribble.sphaero2 {
     requires java.desktop;
+    requires java.management;
+    requires jdk.jfr;
+    requires jdk.management;
 }
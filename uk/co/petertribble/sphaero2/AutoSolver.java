@@ -0,0 +1,522 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import javax.imageio.ImageIO;
+
+/**
+ * Solves a puzzle without a human, for load testing. The puzzle is laid
+ * out on an offscreen surface exactly as it would be on screen, and the
+ * solver works it by sending it the same mouse and key events a player
+ * would: pressing on a piece, turning it to match its neighbor, dragging it
+ * alongside, and letting go. After each move the puzzle is painted.
+ *
+ * <p>Two strategies are available. The "grow" strategy builds one group,
+ * adding one piece at a time. The "regions" strategy first solves separate
+ * regions of the picture, then merges the regions, so that large groups
+ * are moved and joined.
+ *
+ * <p>The time taken for each join, each move, and each paint is recorded
+ * in histograms, and the peak heap used is reported at the end.
+ */
+public final class AutoSolver {
+
+    /**
+     * The strategy that builds one big group.
+     */
+    public static final String GROW = "grow";
+
+    /**
+     * The strategy that builds regions and then merges them.
+     */
+    public static final String REGIONS = "regions";
+
+    /**
+     * The default number of regions across and down.
+     */
+    public static final int DEFAULT_REGIONS = 3;
+
+    /*
+     * The number of steps a drag is split into.
+     */
+    private static final int DRAG_STEPS = 4;
+
+    private final JigsawPuzzle puzzle;
+    private final String strategy;
+    private final int regions;
+    private final boolean paint;
+
+    private Piece[] atoms;
+    private int[][] neighbors;
+    private BufferedImage offscreen;
+    private Graphics2D g;
+    private LatencyHistogram joins;
+    private LatencyHistogram moves;
+    private final LatencyHistogram paints = new LatencyHistogram("Paint");
+    private final List<LatencyHistogram> joinHistograms = new ArrayList<>();
+    private final List<LatencyHistogram> moveHistograms = new ArrayList<>();
+    private int nmoves;
+    private int nrotates;
+    private int npushes;
+    private long peakHeap;
+    private long elapsed;
+
+    /**
+     * Create a new AutoSolver.
+     *
+     * @param npuzzle the puzzle to solve, which must have been cut, and
+     * must not be shown on screen
+     * @param nstrategy the strategy to use, GROW or REGIONS
+     * @param nregions the number of regions across and down, for the
+     * REGIONS strategy
+     * @param npaint whether to paint the puzzle after every move
+     */
+    public AutoSolver(final JigsawPuzzle npuzzle, final String nstrategy,
+		      final int nregions, final boolean npaint) {
+	if (!GROW.equals(nstrategy) && !REGIONS.equals(nstrategy)) {
+	    throw new IllegalArgumentException("Unknown strategy " + nstrategy);
+	}
+	puzzle = npuzzle;
+	strategy = nstrategy;
+	regions = nregions;
+	paint = npaint;
+    }
+
+    /**
+     * Solve the puzzle. This is done on the AWT thread, as it would be if
+     * a player were solving it, and this method waits until it's done.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void solve() throws InterruptedException {
+	try {
+	    EventQueue.invokeAndWait(new Runnable() {
+		@Override
+		public void run() {
+		    solve0();
+		}
+	    });
+	} catch (InvocationTargetException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof RuntimeException) {
+		throw (RuntimeException) cause;
+	    }
+	    throw new IllegalStateException(cause);
+	}
+    }
+
+    private void solve0() {
+	// Note each piece's neighbors now, as joining changes them.
+	List<Piece> zorder = puzzle.getZOrder();
+	atoms = new Piece[zorder.size()];
+	for (Piece piece : zorder) {
+	    if (piece instanceof MultiPiece) {
+		throw new IllegalStateException("Puzzle already started");
+	    }
+	    atoms[piece.getIndex()] = piece;
+	}
+	neighbors = new int[atoms.length][];
+	for (int n = 0; n < atoms.length; n++) {
+	    neighbors[n] = new int[atoms[n].neighbors.size()];
+	    int i = 0;
+	    for (Piece neighbor : atoms[n].neighbors) {
+		neighbors[n][i++] = neighbor.getIndex();
+	    }
+	    Arrays.sort(neighbors[n]);
+	}
+	Dimension d = puzzle.getSize();
+	offscreen = new BufferedImage(d.width, d.height,
+				      BufferedImage.TYPE_INT_RGB);
+	g = offscreen.createGraphics();
+
+	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+	    pool.resetPeakUsage();
+	}
+	long start = System.nanoTime();
+	if (REGIONS.equals(strategy)) {
+	    startPhase("regions");
+	    solveRegions();
+	}
+	startPhase("merge");
+	solveRegion(null);
+	elapsed = System.nanoTime() - start;
+	g.dispose();
+    }
+
+    private void startPhase(final String phase) {
+	joins = new LatencyHistogram("Join (" + phase + ")");
+	moves = new LatencyHistogram("Move (" + phase + ")");
+	joinHistograms.add(joins);
+	moveHistograms.add(moves);
+    }
+
+    /*
+     * Which region each piece is in depends on where its center is in
+     * the picture.
+     */
+    private void solveRegions() {
+	int width = atoms[0].getTotalWidth();
+	int height = atoms[0].getTotalHeight();
+	int[] region = new int[atoms.length];
+	for (int n = 0; n < atoms.length; n++) {
+	    int cx = atoms[n].getImageX() + atoms[n].getImageWidth() / 2;
+	    int cy = atoms[n].getImageY() + atoms[n].getImageHeight() / 2;
+	    region[n] = (cy * regions / height) * regions
+		+ cx * regions / width;
+	}
+	for (int r = 0; r < regions * regions; r++) {
+	    boolean[] inRegion = new boolean[atoms.length];
+	    for (int n = 0; n < atoms.length; n++) {
+		inRegion[n] = region[n] == r;
+	    }
+	    solveRegion(inRegion);
+	}
+    }
+
+    /*
+     * Visit the pieces in the region breadth first, moving each piece to
+     * the piece it was reached from. A null region means all the pieces.
+     * If the region isn't connected, each part is solved on its own.
+     */
+    private void solveRegion(final boolean[] inRegion) {
+	boolean[] seen = new boolean[atoms.length];
+	Queue<Integer> queue = new ArrayDeque<>();
+	for (int first = 0; first < atoms.length; first++) {
+	    if (seen[first] || (inRegion != null && !inRegion[first])) {
+		continue;
+	    }
+	    seen[first] = true;
+	    queue.add(first);
+	    while (!queue.isEmpty()) {
+		int n = queue.remove();
+		for (int neighbor : neighbors[n]) {
+		    if (!seen[neighbor]
+			    && (inRegion == null || inRegion[neighbor])) {
+			seen[neighbor] = true;
+			queue.add(neighbor);
+			moveNextTo(atoms[neighbor], atoms[n]);
+		    }
+		}
+	    }
+	}
+    }
+
+    /*
+     * Returns the piece currently containing the given atomic piece.
+     */
+    private Piece owner(final Piece atom) {
+	for (Piece piece : puzzle.getZOrder()) {
+	    if (piece == atom || (piece instanceof MultiPiece
+			&& ((MultiPiece) piece).getSubs().contains(atom))) {
+		return piece;
+	    }
+	}
+	throw new IllegalStateException("Lost piece " + atom.getIndex());
+    }
+
+    private Piece top() {
+	List<Piece> zorder = puzzle.getZOrder();
+	return zorder.get(zorder.size() - 1);
+    }
+
+    /*
+     * Returns a point on the given piece, preferably one where no other
+     * piece is on top of it.
+     */
+    private Point grabPoint(final Piece piece) {
+	List<Piece> zorder = puzzle.getZOrder();
+	int above = zorder.indexOf(piece) + 1;
+	int w = piece.getCurrentWidth();
+	int h = piece.getCurrentHeight();
+	int step = Math.max(1, Math.min(w, h) / 8);
+	Point covered = null;
+	for (int j = h / 2 % step; j < h; j += step) {
+	    for (int i = w / 2 % step; i < w; i += step) {
+		int x = piece.getPuzzleX() + i;
+		int y = piece.getPuzzleY() + j;
+		if (!piece.contains(x, y)) {
+		    continue;
+		}
+		boolean clear = true;
+		for (int k = above; clear && k < zorder.size(); k++) {
+		    clear = !zorder.get(k).contains(x, y);
+		}
+		if (clear) {
+		    return new Point(x, y);
+		}
+		if (covered == null) {
+		    covered = new Point(x, y);
+		}
+	    }
+	}
+	if (covered == null) {
+	    throw new IllegalStateException("Can't find piece " + piece);
+	}
+	return covered;
+    }
+
+    private MouseEvent mouse(final int id, final int x, final int y) {
+	return new MouseEvent(puzzle, id, System.currentTimeMillis(),
+			      id == MouseEvent.MOUSE_RELEASED ? 0
+			      : InputEvent.BUTTON1_DOWN_MASK,
+			      x, y, 1, false, MouseEvent.BUTTON1);
+    }
+
+    private void key(final int keyCode) {
+	puzzle.keyPressed0(new KeyEvent(puzzle, KeyEvent.KEY_PRESSED,
+				System.currentTimeMillis(), 0, keyCode,
+				KeyEvent.CHAR_UNDEFINED));
+    }
+
+    /*
+     * Move the piece holding the atomic piece next to the piece holding
+     * its neighbor, so that they join.
+     */
+    private void moveNextTo(final Piece atom, final Piece neighbor) {
+	long start = System.nanoTime();
+	Piece piece;
+	Piece target;
+	Point p;
+	int tries = 0;
+	while (true) {
+	    piece = owner(atom);
+	    target = owner(neighbor);
+	    if (piece == target) {
+		return;
+	    }
+	    p = grabPoint(piece);
+	    puzzle.mousePressed0(mouse(MouseEvent.MOUSE_PRESSED, p.x, p.y));
+	    if (top() == piece) {
+		break;
+	    }
+	    // Something else was on top, so push it to the bottom and try
+	    // again, as a player would.
+	    if (++tries > atoms.length) {
+		throw new IllegalStateException("Can't pick up " + piece);
+	    }
+	    key(KeyEvent.VK_DOWN);
+	    npushes++;
+	    puzzle.mouseReleased0(mouse(MouseEvent.MOUSE_RELEASED, p.x, p.y));
+	}
+	int offsetX = p.x - piece.getPuzzleX();
+	int offsetY = p.y - piece.getPuzzleY();
+	while (piece.getRotation() != target.getRotation()) {
+	    key(KeyEvent.VK_RIGHT);
+	    nrotates++;
+	}
+	int x = target.getPuzzleX() + piece.getRotatedX()
+	    - target.getRotatedX() + offsetX;
+	int y = target.getPuzzleY() + piece.getRotatedY()
+	    - target.getRotatedY() + offsetY;
+	for (int i = 1; i <= DRAG_STEPS; i++) {
+	    puzzle.mouseDragged0(mouse(MouseEvent.MOUSE_DRAGGED,
+				p.x + (x - p.x) * i / DRAG_STEPS,
+				p.y + (y - p.y) * i / DRAG_STEPS));
+	}
+	int before = puzzle.getZOrder().size();
+	long release = System.nanoTime();
+	puzzle.mouseReleased0(mouse(MouseEvent.MOUSE_RELEASED, x, y));
+	long end = System.nanoTime();
+	if (puzzle.getZOrder().size() < before) {
+	    joins.record(end - release);
+	}
+	moves.record(end - start);
+	nmoves++;
+	if (paint) {
+	    puzzle.paintComponent(g);
+	    paints.record(System.nanoTime() - end);
+	}
+	sampleHeap();
+    }
+
+    private void sampleHeap() {
+	MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+    }
+
+    /**
+     * Print a report of the solution, with histograms of the latencies
+     * and the peak heap usage.
+     *
+     * @param out the stream to print to
+     */
+    public void report(final PrintStream out) {
+	out.println("Strategy " + strategy + ": " + atoms.length + " pieces, "
+		+ nmoves + " moves, " + nrotates + " rotations, "
+		+ npushes + " pushes, in "
+		+ String.format("%.3fs", elapsed / 1.0e9)
+		+ (puzzle.isFinished() ? ", solved" : ", NOT solved"));
+	for (LatencyHistogram h : joinHistograms) {
+	    h.print(out);
+	}
+	for (LatencyHistogram h : moveHistograms) {
+	    h.print(out);
+	}
+	if (paint) {
+	    paints.print(out);
+	}
+	long poolPeak = 0L;
+	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+	    if (pool.getType() == MemoryType.HEAP) {
+		poolPeak += pool.getPeakUsage().getUsed();
+	    }
+	}
+	long max = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+	    .getMax();
+	out.println("Peak heap: " + megabytes(peakHeap)
+		+ " sampled after moves, " + megabytes(poolPeak)
+		+ " summed over pools, of "
+		+ (max < 0 ? "unlimited" : megabytes(max)));
+    }
+
+    private static String megabytes(final long bytes) {
+	return String.format("%.1fMB", bytes / (1024.0 * 1024.0));
+    }
+
+    private static void usage() {
+	System.err.println("Usage: AutoSolver [-p pieces] [-c cutter]" // NOPMD
+		+ " [-seed seed] [-max size] [-strategy grow|regions]"
+		+ " [-regions n] [-nopaint] image");
+	System.exit(1);
+    }
+
+    private static void fatalError(final String s) {
+	System.err.println(s); // NOPMD
+	System.exit(1);
+    }
+
+    private static int intArg(final String[] args, final int arg,
+			      final String name) {
+	if (arg >= args.length) {
+	    fatalError("Expecting an argument to " + name + "!");
+	}
+	try {
+	    return Integer.parseInt(args[arg]);
+	} catch (NumberFormatException e) {
+	    fatalError("Invalid argument to " + name + "!");
+	}
+	return 0;
+    }
+
+    /**
+     * Cut an image and solve it, reporting how long each step took. This
+     * runs without a display, so may be run with java.awt.headless set to
+     * true.
+     *
+     * <p>The -p, -c, and -seed flags are as for the interactive
+     * application, except that the number of pieces isn't limited. The
+     * -max flag expects a size in pixels; larger images are scaled down to
+     * fit. The -strategy flag chooses between growing one group, the
+     * default, and building regions first; the -regions flag sets how many
+     * regions there are across and down. With -nopaint, the puzzle isn't
+     * painted after each move.
+     *
+     * @param args command line arguments
+     */
+    public static void main(final String[] args) {
+	JigsawCutter ncutter = JigsawCutter.getCutters()[0];
+	int pieces = JigsawCutter.DEFAULT_PIECES;
+	Long nseed = null;
+	int nmaxSize = 0;
+	String nstrategy = GROW;
+	int nregions = DEFAULT_REGIONS;
+	boolean npaint = true;
+	File file = null;
+	int arg = 0;
+	while (arg < args.length) {
+	    if ("-p".equals(args[arg])) {
+		arg++;
+		pieces = intArg(args, arg, "-p");
+	    } else if ("-c".equals(args[arg])) {
+		arg++;
+		if (arg >= args.length) {
+		    fatalError("Expecting an argument to -c!");
+		}
+		ncutter = JigsawCutter.forName(args[arg]);
+		if (ncutter == null) {
+		    fatalError("Invalid cutter!");
+		}
+	    } else if ("-seed".equals(args[arg])) {
+		arg++;
+		if (arg >= args.length) {
+		    fatalError("Expecting an argument to -seed!");
+		}
+		try {
+		    nseed = Long.valueOf(args[arg]);
+		} catch (NumberFormatException e) {
+		    fatalError("Invalid seed!");
+		}
+	    } else if ("-max".equals(args[arg])) {
+		arg++;
+		nmaxSize = intArg(args, arg, "-max");
+	    } else if ("-strategy".equals(args[arg])) {
+		arg++;
+		if (arg >= args.length) {
+		    fatalError("Expecting an argument to -strategy!");
+		}
+		nstrategy = args[arg];
+		if (!GROW.equals(nstrategy) && !REGIONS.equals(nstrategy)) {
+		    fatalError("Invalid strategy!");
+		}
+	    } else if ("-regions".equals(args[arg])) {
+		arg++;
+		nregions = intArg(args, arg, "-regions");
+	    } else if ("-nopaint".equals(args[arg])) {
+		npaint = false;
+	    } else if (args[arg].startsWith("-") || file != null) {
+		usage();
+	    } else {
+		file = new File(args[arg]);
+	    }
+	    arg++;
+	}
+	if (file == null || pieces < JigsawCutter.MIN_PIECES
+		|| nregions < 1) {
+	    usage();
+	}
+	BufferedImage image = null;
+	try {
+	    image = ImageIO.read(file);
+	} catch (IOException e) {
+	    fatalError("Unable to read " + file + ": " + e.getMessage());
+	}
+	if (image == null) {
+	    fatalError("Unrecognized image format: " + file);
+	}
+	image = JigUtil.scaledImage(image, nmaxSize);
+
+	// Set the number of pieces directly, so it isn't limited.
+	ncutter.prefPieces = pieces;
+	ncutter.setSeed(nseed);
+	JigsawPuzzle puzzle = new JigsawPuzzle(image, ncutter);
+	puzzle.setSize(puzzle.getPreferredSize());
+	puzzle.reset();
+	AutoSolver solver = new AutoSolver(puzzle, nstrategy, nregions, npaint);
+	try {
+	    solver.solve();
+	} catch (InterruptedException e) {
+	    fatalError("Interrupted");
+	}
+	solver.report(System.out);
+	System.exit(puzzle.isFinished() ? 0 : 1);
+    }
+}
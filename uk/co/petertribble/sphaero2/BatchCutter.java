@@ -0,0 +1,461 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.imageio.ImageIO;
+
+/**
+ * Cuts a batch of images into pieces without any user interface, for use
+ * by other puzzle front ends. Each image is cut, its pieces are packed into
+ * one or more sprite sheets which are saved as PNG files, and a JSON file
+ * is written describing where each piece is in the image and in the sprite
+ * sheets, and which pieces are its neighbors.
+ *
+ * <p>The results are named after the whole name of the image, so that
+ * a.jpg gives a.jpg.json and sprite sheets a.jpg-0.png and so on, and
+ * a.png in the same folder doesn't overwrite them. Images with the same
+ * name in different folders can't both be cut in one batch.
+ *
+ * <p>Images are cut in parallel by a pool of workers. Encoding the sprite
+ * sheets as PNG is done by a separate pool, so that it overlaps with
+ * cutting the next image.
+ *
+ * <p>Pieces are saved unrotated, with their edges bevelled as they would
+ * be in a puzzle.
+ */
+public final class BatchCutter {
+
+    /**
+     * The default width and height of a sprite sheet.
+     */
+    public static final int DEFAULT_SHEET_SIZE = 2048;
+
+    /**
+     * Space left between pieces on a sprite sheet, so that scaling a
+     * sprite doesn't pick up the edges of its neighbors.
+     */
+    private static final int PAD = 1;
+
+    private final JigsawCutter cutter;
+    private final Long seed;
+    private final int maxSize;
+    private final int sheetSize;
+    private final File outdir;
+    private final ExecutorService encoders;
+    private final Semaphore sheetPermits;
+
+    /**
+     * Create a new BatchCutter.
+     *
+     * @param ncutter the cutter to use, with its number of pieces set
+     * @param nseed the seed for every image, or null to choose a new seed
+     * for each image
+     * @param nmaxSize if positive, images are scaled down to fit within
+     * this width and height before being cut
+     * @param nsheetSize the width and height of a sprite sheet
+     * @param noutdir the folder to write the results to
+     * @param nencoders the number of threads encoding sprite sheets
+     */
+    public BatchCutter(final JigsawCutter ncutter, final Long nseed,
+		       final int nmaxSize, final int nsheetSize,
+		       final File noutdir, final int nencoders) {
+	cutter = ncutter;
+	seed = nseed;
+	maxSize = nmaxSize;
+	sheetSize = nsheetSize;
+	outdir = noutdir;
+	encoders = Executors.newFixedThreadPool(nencoders);
+	// limit how many sheets can be waiting to be encoded
+	sheetPermits = new Semaphore(2 * nencoders);
+    }
+
+    /**
+     * Cut the given images, using the given number of workers.
+     *
+     * @param files the image Files to cut
+     * @param nworkers the number of images to cut at once
+     *
+     * @return the number of images that could not be cut
+     */
+    public int run(final List<File> files, final int nworkers) {
+	ExecutorService workers = Executors.newFixedThreadPool(nworkers);
+	List<Future<List<Future<Void>>>> results = new ArrayList<>();
+	Set<String> names = new HashSet<>();
+	for (final File file : files) {
+	    // The results are named after the image, so two images with the
+	    // same name, from different folders, would overwrite each other.
+	    if (!names.add(file.getName())) {
+		results.add(null);
+		continue;
+	    }
+	    results.add(workers.submit(new Callable<List<Future<Void>>>() {
+		@Override
+		public List<Future<Void>> call() throws IOException {
+		    return cutImage(file);
+		}
+	    }));
+	}
+	int failures = 0;
+	for (int i = 0; i < files.size(); i++) {
+	    if (results.get(i) == null) {
+		System.err.println(files.get(i) // NOPMD
+			+ ": another image with the same name is being cut");
+		failures++;
+		continue;
+	    }
+	    try {
+		for (Future<Void> f : results.get(i).get()) {
+		    f.get();
+		}
+	    } catch (ExecutionException | InterruptedException e) {
+		Throwable cause = e.getCause() == null ? e : e.getCause();
+		System.err.println(files.get(i) + ": " + cause); // NOPMD
+		failures++;
+	    }
+	}
+	workers.shutdown();
+	encoders.shutdown();
+	return failures;
+    }
+
+    /*
+     * Cut one image, write its metadata, and queue its sprite sheets to
+     * be encoded. Returns the pending encodes.
+     */
+    private List<Future<Void>> cutImage(final File file) throws IOException {
+	BufferedImage image = ImageIO.read(file);
+	if (image == null) {
+	    throw new IOException("Unrecognized image format");
+	}
+	image = JigUtil.scaledImage(image, maxSize);
+	int width = image.getWidth();
+	int height = image.getHeight();
+
+	JigsawCutter ncutter = cutter.copy();
+	CutLayout layout = ncutter.layout(width, height,
+		seed == null ? ThreadLocalRandom.current().nextLong()
+		: seed.longValue());
+	Piece[] pieces = ncutter.cut(image,
+			layout.withRotations(new int[layout.getPieceCount()]));
+
+	String base = file.getName();
+
+	// Pack the pieces, tallest first, onto shelves.
+	Integer[] order = new Integer[pieces.length];
+	for (int i = 0; i < order.length; i++) {
+	    order[i] = i;
+	}
+	Arrays.sort(order, new Comparator<Integer>() {
+	    @Override
+	    public int compare(final Integer i1, final Integer i2) {
+		return Integer.compare(pieces[i2].getImageHeight(),
+				       pieces[i1].getImageHeight());
+	    }
+	});
+	int sheetW = sheetSize;
+	for (Piece piece : pieces) {
+	    sheetW = Math.max(sheetW, piece.getImageWidth() + PAD);
+	}
+	int[] sheet = new int[pieces.length];
+	int[] sx = new int[pieces.length];
+	int[] sy = new int[pieces.length];
+	List<int[]> sheetSizes = new ArrayList<>();
+	int nsheet = 0;
+	int x = 0;
+	int y = 0;
+	int shelf = 0;
+	int usedW = 0;
+	for (int n : order) {
+	    int w = pieces[n].getImageWidth() + PAD;
+	    int h = pieces[n].getImageHeight() + PAD;
+	    if (x + w > sheetW) {
+		x = 0;
+		y += shelf;
+		shelf = 0;
+	    }
+	    if (y + h > sheetSize && y > 0) {
+		sheetSizes.add(new int[] {usedW, y + shelf});
+		nsheet++;
+		x = 0;
+		y = 0;
+		shelf = 0;
+		usedW = 0;
+	    }
+	    sheet[n] = nsheet;
+	    sx[n] = x;
+	    sy[n] = y;
+	    x += w;
+	    shelf = Math.max(shelf, h);
+	    usedW = Math.max(usedW, x);
+	}
+	sheetSizes.add(new int[] {usedW, y + shelf});
+
+	List<String> sheetNames = new ArrayList<>();
+	for (int s = 0; s < sheetSizes.size(); s++) {
+	    sheetNames.add(base + "-" + s + ".png");
+	}
+	writeMetadata(new File(outdir, base + ".json"), file, layout,
+		      ncutter, pieces, sheetNames, sheet, sx, sy);
+
+	// Draw each sheet, and hand it over to be encoded.
+	List<Future<Void>> encodes = new ArrayList<>();
+	for (int s = 0; s < sheetSizes.size(); s++) {
+	    int[] size = sheetSizes.get(s);
+	    BufferedImage simage = new BufferedImage(size[0], size[1],
+					BufferedImage.TYPE_INT_ARGB);
+	    for (int n = 0; n < pieces.length; n++) {
+		if (sheet[n] == s) {
+		    Piece piece = pieces[n];
+		    simage.setRGB(sx[n], sy[n], piece.getImageWidth(),
+				  piece.getImageHeight(), piece.curData, 0,
+				  piece.getImageWidth());
+		}
+	    }
+	    encodes.add(encode(simage, new File(outdir, sheetNames.get(s))));
+	}
+	return encodes;
+    }
+
+    /*
+     * Queue a sheet to be written as PNG. If too many sheets are already
+     * waiting, wait for one to finish first, so that cutting can't get
+     * too far ahead of encoding.
+     */
+    private Future<Void> encode(final BufferedImage simage, final File f) {
+	sheetPermits.acquireUninterruptibly();
+	return encoders.submit(new Callable<Void>() {
+	    @Override
+	    public Void call() throws IOException {
+		try {
+		    if (!ImageIO.write(simage, "png", f)) {
+			throw new IOException("Unable to write PNG");
+		    }
+		} finally {
+		    sheetPermits.release();
+		}
+		return null;
+	    }
+	});
+    }
+
+    /*
+     * Write the JSON metadata for a cut image: the image and how it was
+     * cut, the sprite sheets, and for each piece where it came from in
+     * the image, where it is in which sheet, and which pieces are its
+     * neighbors.
+     */
+    private static void writeMetadata(final File f, final File imageFile,
+				      final CutLayout layout,
+				      final JigsawCutter ncutter,
+				      final Piece[] pieces,
+				      final List<String> sheetNames,
+				      final int[] sheet,
+				      final int[] sx, final int[] sy)
+	    throws IOException {
+	try (Writer w = new BufferedWriter(new OutputStreamWriter(
+			Files.newOutputStream(f.toPath()),
+			StandardCharsets.UTF_8))) {
+	    w.write("{\n");
+	    w.write("  \"image\": " + quote(imageFile.getName()) + ",\n");
+	    w.write("  \"width\": " + layout.getWidth() + ",\n");
+	    w.write("  \"height\": " + layout.getHeight() + ",\n");
+	    w.write("  \"cutter\": " + quote(ncutter.getName()) + ",\n");
+	    w.write("  \"seed\": " + layout.getSeed() + ",\n");
+	    w.write("  \"sheets\": [");
+	    for (int s = 0; s < sheetNames.size(); s++) {
+		w.write((s > 0 ? ", " : "") + quote(sheetNames.get(s)));
+	    }
+	    w.write("],\n");
+	    w.write("  \"pieces\": [\n");
+	    for (int n = 0; n < pieces.length; n++) {
+		Piece piece = pieces[n];
+		StringBuilder sb = new StringBuilder();
+		sb.append("    {\"index\": ").append(n);
+		sb.append(", \"x\": ").append(piece.getImageX());
+		sb.append(", \"y\": ").append(piece.getImageY());
+		sb.append(", \"width\": ").append(piece.getImageWidth());
+		sb.append(", \"height\": ").append(piece.getImageHeight());
+		sb.append(", \"sheet\": ").append(sheet[n]);
+		sb.append(", \"sheetX\": ").append(sx[n]);
+		sb.append(", \"sheetY\": ").append(sy[n]);
+		sb.append(", \"neighbors\": [");
+		int[] neighbors = new int[piece.neighbors.size()];
+		int i = 0;
+		for (Piece neighbor : piece.neighbors) {
+		    neighbors[i++] = neighbor.getIndex();
+		}
+		Arrays.sort(neighbors);
+		for (i = 0; i < neighbors.length; i++) {
+		    sb.append(i > 0 ? ", " : "").append(neighbors[i]);
+		}
+		sb.append("]}").append(n < pieces.length - 1 ? ",\n" : "\n");
+		w.write(sb.toString());
+	    }
+	    w.write("  ]\n");
+	    w.write("}\n");
+	}
+    }
+
+    private static String quote(final String s) {
+	StringBuilder sb = new StringBuilder("\"");
+	for (char c : s.toCharArray()) {
+	    if (c == '"' || c == '\\') {
+		sb.append('\\').append(c);
+	    } else if (c < ' ') {
+		sb.append(String.format("\\u%04x", (int) c));
+	    } else {
+		sb.append(c);
+	    }
+	}
+	return sb.append('"').toString();
+    }
+
+    private static void usage() {
+	System.err.println("Usage: BatchCutter [-p pieces] [-c cutter]" // NOPMD
+		+ " [-seed seed] [-max size] [-sheet size] [-j workers]"
+		+ " -o outdir image|folder ...");
+	System.exit(1);
+    }
+
+    private static void fatalError(final String s) {
+	System.err.println(s); // NOPMD
+	System.exit(1);
+    }
+
+    private static int intArg(final String[] args, final int arg,
+			      final String name) {
+	if (arg >= args.length) {
+	    fatalError("Expecting an argument to " + name + "!");
+	}
+	try {
+	    return Integer.parseInt(args[arg]);
+	} catch (NumberFormatException e) {
+	    fatalError("Invalid argument to " + name + "!");
+	}
+	return 0;
+    }
+
+    /**
+     * Cut a batch of images. This runs without a display, so may be run
+     * with java.awt.headless set to true.
+     *
+     * <p>The -p flag expects the number of pieces, and the -c flag a
+     * cutter name, as for the interactive application. The -seed flag
+     * expects a seed to use for every image; otherwise each image is cut
+     * differently every time.
+     *
+     * <p>The -max flag expects a size in pixels; larger images are scaled
+     * down to fit. The -sheet flag sets the size of the sprite sheets,
+     * which defaults to 2048 pixels square. The -j flag sets how many
+     * images are cut at once, which defaults to the number of processors.
+     *
+     * <p>The -o flag, which is required, expects the folder to write the
+     * results to. The remaining arguments are image files, or folders
+     * whose images are all to be cut.
+     *
+     * @param args command line arguments
+     */
+    public static void main(final String[] args) {
+	JigsawCutter ncutter = JigsawCutter.getCutters()[0];
+	int pieces = JigsawCutter.DEFAULT_PIECES;
+	Long nseed = null;
+	int nmaxSize = 0;
+	int nsheetSize = DEFAULT_SHEET_SIZE;
+	int nworkers = Runtime.getRuntime().availableProcessors();
+	File noutdir = null;
+	List<File> files = new ArrayList<>();
+	int arg = 0;
+	while (arg < args.length) {
+	    if ("-p".equals(args[arg])) {
+		arg++;
+		pieces = intArg(args, arg, "-p");
+	    } else if ("-c".equals(args[arg])) {
+		arg++;
+		if (arg >= args.length) {
+		    fatalError("Expecting an argument to -c!");
+		}
+		ncutter = JigsawCutter.forName(args[arg]);
+		if (ncutter == null) {
+		    fatalError("Invalid cutter!");
+		}
+	    } else if ("-seed".equals(args[arg])) {
+		arg++;
+		if (arg >= args.length) {
+		    fatalError("Expecting an argument to -seed!");
+		}
+		try {
+		    nseed = Long.valueOf(args[arg]);
+		} catch (NumberFormatException e) {
+		    fatalError("Invalid seed!");
+		}
+	    } else if ("-max".equals(args[arg])) {
+		arg++;
+		nmaxSize = intArg(args, arg, "-max");
+	    } else if ("-sheet".equals(args[arg])) {
+		arg++;
+		nsheetSize = intArg(args, arg, "-sheet");
+	    } else if ("-j".equals(args[arg])) {
+		arg++;
+		nworkers = intArg(args, arg, "-j");
+	    } else if ("-o".equals(args[arg])) {
+		arg++;
+		if (arg >= args.length) {
+		    fatalError("Expecting an argument to -o!");
+		}
+		noutdir = new File(args[arg]);
+	    } else if (args[arg].startsWith("-")) {
+		usage();
+	    } else {
+		File f = new File(args[arg]);
+		if (f.isDirectory()) {
+		    File[] images = f.listFiles();
+		    if (images != null) {
+			Arrays.sort(images);
+			for (File image : images) {
+			    if (image.isFile() && JigUtil.isImage(image)) {
+				files.add(image);
+			    }
+			}
+		    }
+		} else if (f.isFile()) {
+		    files.add(f);
+		} else {
+		    fatalError("Invalid file, doesn't exist: " + f);
+		}
+	    }
+	    arg++;
+	}
+	if (noutdir == null || files.isEmpty()) {
+	    usage();
+	}
+	if (!noutdir.isDirectory() && !noutdir.mkdirs()) {
+	    fatalError("Unable to create " + noutdir);
+	}
+	if (nworkers < 1 || nsheetSize < 1) {
+	    usage();
+	}
+	ncutter.setPreferredPieceCount(pieces);
+	BatchCutter batch = new BatchCutter(ncutter, nseed, nmaxSize,
+				nsheetSize, noutdir, nworkers);
+	System.exit(batch.run(files, nworkers) == 0 ? 0 : 1);
+    }
+}
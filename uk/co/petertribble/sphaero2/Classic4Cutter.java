@@ -2,9 +2,10 @@ package uk.co.petertribble.sphaero2;
 
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.awt.geom.GeneralPath;
 import java.awt.image.BufferedImage;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.SplittableRandom;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 // ### Pieces are a bit "prickly" in appearance, particularly if they're
 //   small.
@@ -29,11 +30,33 @@ public final class Classic4Cutter extends JigsawCutter {
 
     }
 
+    /*
+     * Whichever sides the knobs are on, they reach about a third of the
+     * way into the next piece, so the trimmed rectangles cover the image
+     * about 1.8 times. Measured at up to 1000 pieces.
+     */
     @Override
-    public Piece[] cut(final BufferedImage image) {
-	JigUtil.ensureLoaded(image);
-	int width = image.getWidth(null);
-	int height = image.getHeight(null);
+    public double getOverlap() {
+	return 1.8;
+    }
+
+    @Override
+    protected JigsawCutter newCutter() {
+	return new Classic4Cutter();
+    }
+
+    /*
+     * Masking each piece against its outline is slow, so the pieces are
+     * worth caching.
+     */
+    @Override
+    protected boolean isCacheable() {
+	return true;
+    }
+
+    @Override
+    public CutLayout layout(final int width, final int height,
+			    final long nseed) {
 
 	/*
 	 * First compute the number of rows and columns.  If N = total number
@@ -49,8 +72,11 @@ public final class Classic4Cutter extends JigsawCutter {
 	int rows = (int) Math.round(Math.sqrt(prefPieces * height / width));
 	int columns = Math.round(prefPieces / rows);
 
-	startProgress(rows * columns);
-	ThreadLocalRandom trandom = ThreadLocalRandom.current();
+	// Each kind of decision has its own stream of random numbers.
+	SplittableRandom random = new SplittableRandom(nseed);
+	SplittableRandom trandom = random.split();
+	SplittableRandom frandom = random.split();
+	SplittableRandom krandom = random.split();
 
 	// Make a matrix of points representing the corners of the pieces.
 	// Each point is based on a grid of equal rectangles, and can then
@@ -86,13 +112,13 @@ public final class Classic4Cutter extends JigsawCutter {
 	    for (int i = 0; i < columns - 1; i++) {
 		Point p1 = points[i + 1][j];
 		Point p2 = points[i + 1][j + 1];
-		boolean flip = trandom.nextBoolean();
+		boolean flip = frandom.nextBoolean();
 		if (flip) {
 		    Point temp = p1;
 		    p1 = p2;
 		    p2 = temp;
 		}
-		vknobs[i][j] = new Knob(p1.x, p1.y, p2.x, p2.y);
+		vknobs[i][j] = new Knob(p1.x, p1.y, p2.x, p2.y, krandom);
 		// flip = !flip;
 	    }
 	    // flip1 = !flip1;
@@ -105,36 +131,61 @@ public final class Classic4Cutter extends JigsawCutter {
 	    for (int i = 0; i < columns; i++) {
 		Point p1 = points[i][j + 1];
 		Point p2 = points[i + 1][j + 1];
-		boolean flip = trandom.nextBoolean();
+		boolean flip = frandom.nextBoolean();
 		if (flip) {
 		    Point temp = p1;
 		    p1 = p2;
 		    p2 = temp;
 		}
-		hknobs[i][j] = new Knob(p1.x, p1.y, p2.x, p2.y);
+		hknobs[i][j] = new Knob(p1.x, p1.y, p2.x, p2.y, krandom);
 		// flip = !flip;
 	    }
 	    // flip1 = !flip1;
 	}
 
-	// Create the pieces.
-	Piece[][] pieces = new Piece[columns][rows];
-	for (int j = 0; j < rows; j++) {
-	    for (int i = 0; i < columns; i++) {
-		Knob knobN = j > 0 ? hknobs[i][j - 1] : null;
-		Knob knobS = j < rows - 1 ? hknobs[i][j] : null;
-		Knob knobW = i > 0 ? vknobs[i - 1][j] : null;
-		Knob knobE = i < columns - 1 ? vknobs[i][j] : null;
-		pieces[i][j] = makePiece(image,
-					points[i][j],
-					points[i][j + 1],
-					points[i + 1][j],
-					points[i + 1][j + 1],
-					knobN, knobE, knobS, knobW,
-					width, height);
-		updateProgress();
+	return new CutLayout(width, height, prefPieces, columns, rows,
+			points, vknobs, hknobs,
+			randomRotations(rows * columns, random.split()),
+			nseed);
+    }
+
+    @Override
+    protected Piece[] cutPieces(final BufferedImage image,
+				final CutLayout layout) {
+	final int width = layout.getWidth();
+	final int height = layout.getHeight();
+	final int rows = layout.getRows();
+	final int columns = layout.getColumns();
+
+	startProgress(rows * columns);
+
+	// Create the pieces. Each piece depends only on the layout, so they
+	// can be cut in parallel, a row at a time.
+	final Piece[][] pieces = new Piece[columns][rows];
+	IntStream.range(0, rows).parallel().forEach(new IntConsumer() {
+	    @Override
+	    public void accept(final int j) {
+		for (int i = 0; i < columns; i++) {
+		    Knob knobN = j > 0 ? layout.getHKnob(i, j - 1) : null;
+		    Knob knobS = j < rows - 1 ? layout.getHKnob(i, j) : null;
+		    Knob knobW = i > 0 ? layout.getVKnob(i - 1, j) : null;
+		    Knob knobE = i < columns - 1 ? layout.getVKnob(i, j) : null;
+		    PuzzleEvents.CutPiece event =
+			new PuzzleEvents.CutPiece();
+		    event.begin();
+		    pieces[i][j] = makePiece(image,
+					    layout.getPoint(i, j),
+					    layout.getPoint(i, j + 1),
+					    layout.getPoint(i + 1, j),
+					    layout.getPoint(i + 1, j + 1),
+					    knobN, knobE, knobS, knobW,
+					    width, height, layout.getRotation(
+							j * columns + i));
+		    event.done(Classic4Cutter.this, pieces[i][j]);
+		    updateProgress();
+		}
 	    }
-	}
+	});
 
 	// Set each piece's neighbors, and build the final array.
 	return finalBuild(pieces, rows, columns);
@@ -145,82 +196,36 @@ public final class Classic4Cutter extends JigsawCutter {
 			    final Point ne, final Point se,
 			    final Knob knobN, final Knob knobE,
 			    final Knob knobS, final Knob knobW,
-			    final int twidth, final int theight) {
-	// Build a path out of the knobs/puzzle edges.
-	GeneralPath path = new GeneralPath();
-	path.moveTo(nw.x, nw.y);
-	if (knobN == null) {
-	    path.lineTo(ne.x, ne.y);
-	} else {
-	    path.append(knobN.getCurvePath(nw.x, nw.y), true);
-	}
-	if (knobE == null) {
-	    path.lineTo(se.x, se.y);
-	} else {
-	    path.append(knobE.getCurvePath(ne.x, ne.y), true);
-	}
-	if (knobS == null) {
-	    path.lineTo(sw.x, sw.y);
-	} else {
-	    path.append(knobS.getCurvePath(se.x, se.y), true);
-	}
-	if (knobW == null) {
-	    path.lineTo(nw.x, nw.y);
-	} else {
-	    path.append(knobW.getCurvePath(sw.x, sw.y), true);
-	}
+			    final int twidth, final int theight,
+			    final int rotation) {
+	// Build an outline out of the knobs/puzzle edges.
+	Outline outline = new Outline();
+	outline.lineTo(nw.x, nw.y);
+	outline.side(knobN, nw, ne);
+	outline.side(knobE, ne, se);
+	outline.side(knobS, se, sw);
+	outline.side(knobW, sw, nw);
 
 	// Roundoff (I'm guessing) will sometimes cause the path bounds to be
 	// outside of the image bounds, even though that edge is a straight
 	// line.  This would cause the edge pieces to appear not to line up
 	// while they're being put together.  When the puzzle is finished, the
 	// dissolve trick would cause the image to appear blurry due to its
-	// finished version being one pixel off from the other.  Clamp all
-	// sides to the image bounds.  The old PixelGrabber code didn't care,
+	// finished version being one pixel off from the other.  So the bounds
+	// are clipped to the image.  The old PixelGrabber code didn't care,
 	// but bufferedImages.getRGB() will exception if you try and read
 	// outside the image.
-	Rectangle box = path.getBounds();
-	if (box.x < 0) {
-	    box.x = 0;
-	}
-	if (box.y < 0) {
-	    box.y = 0;
-	}
-
+	Rectangle box = getPieceBounds(outline, twidth, theight);
+	int minX = box.x;
+	int minY = box.y;
 	int width = box.width;
 	int height = box.height;
 
-	if (box.x + width > twidth) {
-	    width = twidth - box.x;
-	}
-	if (box.y + height > theight) {
-	    height = theight - box.y;
-	}
-
 	int[] data = new int[width * height];
-	data = image.getRGB(box.x, box.y, width, height, data, 0, width);
-
-	int minX = box.x;
-	int minY = box.y;
-	mask(data, path, minX, minY, width, height);
-
-	int rotation = ThreadLocalRandom.current().nextInt(4) * 90;
+	data = image.getRGB(minX, minY, width, height, data, 0, width);
+	outline.mask(data, minX, minY, width, height);
 
-	return new Piece(data, minX, minY, width, height,
+	return newPiece(data, minX, minY, width, height,
 			twidth, theight, rotation);
     }
-
-    private void mask(final int[] data, final GeneralPath path,
-		      final int minX, final int minY,
-		      final int width, final int height) {
-	for (int j = 0; j < height; j++) {
-	    int pathY = minY + j;
-	    for (int i = 0; i < width; i++) {
-		// int pathX = minX + i;
-		if (!path.contains(minX + i, pathY)) {
-		    data[j * width + i] = 0;
-		}
-	    }
-	}
-    }
 }
@@ -0,0 +1,325 @@
+package uk.co.petertribble.sphaero2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One end of a connection between a CoopServer and a CoopClient. What is
+ * sent is a stream of frames, each a length followed by that many bytes
+ * of records. Records are those written by MoveJournal, plus a few of
+ * our own: a batch of drag moves, a request for a snapshot, and the
+ * snapshot itself.
+ *
+ * <p>Records are collected as they're made, and a background thread
+ * sends whatever has been collected as a single frame once per frame
+ * interval. While a piece is being dragged only its latest position is
+ * kept, so however fast the mouse moves a piece is sent at most once per
+ * frame. Drag moves collected so far are always sent ahead of any other
+ * record, so that the order of changes is kept. A snapshot is always sent
+ * in a frame of its own, so that it can be read without first reading
+ * the records before it.
+ *
+ * <p>If the other end stops reading, frames would pile up without limit,
+ * so once more than {@link #MAX_QUEUED} bytes are waiting to be sent the
+ * connection is dropped. How big a frame the other end may send is
+ * limited too, to what it can have any reason to send.
+ */
+final class CoopChannel implements Runnable {
+
+    /**
+     * A batch of drag moves: a count, then for each piece its key and
+     * position.
+     */
+    static final byte DRAG = 7;
+
+    /**
+     * A request from a client for a fresh snapshot.
+     */
+    static final byte RESYNC = 8;
+
+    /**
+     * A snapshot of the whole puzzle: a length, then the image as a PNG,
+     * then the puzzle as written by PuzzleFile.
+     */
+    static final byte SNAPSHOT = 9;
+
+    /**
+     * How often, in milliseconds, collected records are sent by default.
+     */
+    static final long FRAME_MILLIS = 16L;
+
+    /**
+     * The biggest frame a server accepts from a client. Clients only send
+     * changes to the puzzle, which are small.
+     */
+    static final int MAX_CHANGES = 1 << 20;
+
+    /**
+     * The biggest frame a client accepts from a server, which may be a
+     * snapshot: the picture as a PNG, and the puzzle.
+     */
+    static final int MAX_SNAPSHOT = 1 << 26;
+
+    /**
+     * The most bytes that may be waiting to be sent before the other end
+     * is taken to have stalled, and is disconnected. A frame is always
+     * accepted when nothing is waiting, so a snapshot can be sent however
+     * big it is.
+     */
+    static final int MAX_QUEUED = 1 << 26;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final long frameMillis;
+    private final int maxFrame;
+    private final Thread thread;
+
+    /*
+     * Frames ready to send and how many bytes they hold, records
+     * collected for the next frame, and the latest position of each piece
+     * being dragged, guarded by the lock.
+     */
+    private final Object lock = new Object();
+    private final List<byte[]> frames = new ArrayList<>();
+    private long framesBytes;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private final Map<Integer, int[]> drags = new LinkedHashMap<>();
+    private boolean closed;
+
+    /**
+     * Start sending on the given socket.
+     *
+     * @param nsocket the connected Socket
+     * @param nframeMillis how often to send collected records, in
+     * milliseconds, at least one
+     * @param nmaxFrame the biggest frame to accept from the other end
+     * @param name the name of the sending thread
+     *
+     * @throws IOException if the socket's streams cannot be opened
+     */
+    CoopChannel(final Socket nsocket, final long nframeMillis,
+		final int nmaxFrame, final String name) throws IOException {
+	socket = nsocket;
+	socket.setTcpNoDelay(true);
+	in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+	out = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream()));
+	frameMillis = Math.max(1L, nframeMillis);
+	maxFrame = nmaxFrame;
+	thread = new Thread(this, name);
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /**
+     * Note that a piece has been dragged to a new position. Only the
+     * latest position of each piece is sent.
+     *
+     * @param key the key of the Piece
+     * @param x the new x position
+     * @param y the new y position
+     */
+    void drag(final int key, final int x, final int y) {
+	synchronized (lock) {
+	    // Keep the pieces in the order they were last dragged, which is
+	    // the order they should end up in the z-order.
+	    int[] pos = drags.remove(key);
+	    if (pos == null) {
+		pos = new int[2];
+	    }
+	    pos[0] = x;
+	    pos[1] = y;
+	    drags.put(key, pos);
+	}
+    }
+
+    /**
+     * Queue a record to be sent in the next frame, after any drag moves
+     * already queued.
+     *
+     * @param record the bytes of the record
+     * @param off where in the array the record starts
+     * @param len the length of the record
+     */
+    void send(final byte[] record, final int off, final int len) {
+	synchronized (lock) {
+	    if (closed) {
+		return;
+	    }
+	    writeDrags();
+	    pending.write(record, off, len);
+	    checkQueued(len);
+	}
+    }
+
+    /**
+     * Queue a record to be sent in a frame of its own, after everything
+     * already queued.
+     *
+     * @param record the bytes of the record
+     */
+    void sendAlone(final byte[] record) {
+	synchronized (lock) {
+	    if (closed) {
+		return;
+	    }
+	    endFrame();
+	    frames.add(record);
+	    framesBytes += record.length;
+	    checkQueued(record.length);
+	}
+    }
+
+    /*
+     * If too much is waiting to be sent, the other end has stopped
+     * reading, so throw it all away and drop the connection. The record
+     * of the given length just queued is let through if it's all there
+     * is. Closing the socket also wakes the sending thread if it's stuck
+     * writing. Must be called with the lock held.
+     */
+    private void checkQueued(final int len) {
+	long queued = framesBytes + pending.size();
+	if (queued <= MAX_QUEUED || queued == len) {
+	    return;
+	}
+	closed = true;
+	frames.clear();
+	framesBytes = 0L;
+	pending.reset();
+	drags.clear();
+	lock.notifyAll();
+	try {
+	    socket.close();
+	} catch (IOException e) { }
+    }
+
+    /*
+     * Finish the frame being collected, if there's anything in it. Must
+     * be called with the lock held.
+     */
+    private void endFrame() {
+	writeDrags();
+	if (pending.size() > 0) {
+	    frames.add(pending.toByteArray());
+	    framesBytes += pending.size();
+	    pending.reset();
+	}
+    }
+
+    /*
+     * Move the collected drag moves into the pending records. Must be
+     * called with the lock held.
+     */
+    private void writeDrags() {
+	if (drags.isEmpty()) {
+	    return;
+	}
+	try {
+	    pendingOut.writeByte(DRAG);
+	    pendingOut.writeInt(drags.size());
+	    for (Map.Entry<Integer, int[]> entry : drags.entrySet()) {
+		pendingOut.writeInt(entry.getKey());
+		pendingOut.writeInt(entry.getValue()[0]);
+		pendingOut.writeInt(entry.getValue()[1]);
+	    }
+	} catch (IOException e) { }
+	drags.clear();
+    }
+
+    /**
+     * Wait for the next frame to arrive.
+     *
+     * @return the records in the frame
+     *
+     * @throws IOException if the connection has been closed or broken
+     */
+    byte[] receive() throws IOException {
+	int len = in.readInt();
+	if (len < 0 || len > maxFrame) {
+	    throw new IOException("Corrupt frame");
+	}
+	byte[] frame = new byte[len];
+	in.readFully(frame);
+	return frame;
+    }
+
+    /**
+     * Stop sending, once anything already queued has been sent, and close
+     * the connection.
+     */
+    void close() {
+	synchronized (lock) {
+	    closed = true;
+	    lock.notifyAll();
+	}
+	if (Thread.currentThread() != thread) {
+	    try {
+		thread.join();
+	    } catch (InterruptedException e) { }
+	}
+	try {
+	    socket.close();
+	} catch (IOException e) { }
+    }
+
+    /**
+     * Returns whether this channel has been closed.
+     *
+     * @return true if this channel has been closed
+     */
+    boolean isClosed() {
+	synchronized (lock) {
+	    return closed;
+	}
+    }
+
+    // The sending thread ---------------------------------------------------
+
+    @Override
+    public void run() {
+	try {
+	    boolean done = false;
+	    while (!done) {
+		List<byte[]> ready;
+		synchronized (lock) {
+		    if (!closed) {
+			try {
+			    lock.wait(frameMillis);
+			} catch (InterruptedException e) { }
+		    }
+		    done = closed;
+		    endFrame();
+		    ready = new ArrayList<>(frames);
+		    frames.clear();
+		    framesBytes = 0L;
+		}
+		for (byte[] frame : ready) {
+		    out.writeInt(frame.length);
+		    out.write(frame);
+		}
+		if (!ready.isEmpty()) {
+		    out.flush();
+		}
+	    }
+	} catch (IOException e) {
+	    synchronized (lock) {
+		closed = true;
+	    }
+	    try {
+		socket.close();
+	    } catch (IOException e2) { }
+	}
+    }
+}
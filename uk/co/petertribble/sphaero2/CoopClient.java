@@ -0,0 +1,376 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.BorderLayout;
+import java.awt.EventQueue;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+
+/**
+ * A player's end of a puzzle shared by a CoopServer. The client shows its
+ * own copy of the puzzle, made from the snapshot the server sends when it
+ * connects. It records every change the player makes and sends it to the
+ * server, and applies the changes other players make as the server
+ * passes them on.
+ *
+ * <p>If a change from the server can't be applied here, this copy of the
+ * puzzle has gone astray, so the client asks for a fresh snapshot and
+ * ignores further changes until it arrives.
+ */
+public final class CoopClient implements PuzzleRecorder, Runnable {
+
+    private final CoopChannel channel;
+    private final JigsawPuzzle puzzle;
+    private final long elapsed;
+    private final Thread thread;
+
+    /*
+     * Used on the AWT thread to encode records.
+     */
+    private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    private final DataOutputStream bufOut = new DataOutputStream(buf);
+
+    /*
+     * Only used on the AWT thread.
+     */
+    private boolean resyncing;
+
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * Connect to a server, and make a copy of its puzzle. Changes aren't
+     * sent or received until {@link #start} is called.
+     *
+     * @param host the host the server is running on
+     * @param port the port the server is listening on
+     *
+     * @throws IOException if the server cannot be reached, or its puzzle
+     * cannot be read
+     */
+    public CoopClient(final String host, final int port) throws IOException {
+	this(host, port, CoopChannel.FRAME_MILLIS);
+    }
+
+    /**
+     * Connect to a server, sending changes at the given interval.
+     *
+     * @param host the host the server is running on
+     * @param port the port the server is listening on
+     * @param frameMillis how often changes are sent, in milliseconds
+     *
+     * @throws IOException if the server cannot be reached, or its puzzle
+     * cannot be read
+     */
+    CoopClient(final String host, final int port, final long frameMillis)
+	    throws IOException {
+	Socket socket = new Socket(host, port);
+	channel = new CoopChannel(socket, frameMillis,
+				  CoopChannel.MAX_SNAPSHOT,
+				  "sphaero2-coop-send");
+	try {
+	    DataInputStream in = new DataInputStream(
+			new ByteArrayInputStream(channel.receive()));
+	    if (in.readByte() != CoopChannel.SNAPSHOT) {
+		throw new IOException("Expected a snapshot");
+	    }
+	    PuzzleFile pf = readSnapshot(in);
+	    puzzle = new JigsawPuzzle(pf.getImage(), pf.getCutter());
+	    puzzle.setSize(puzzle.getPreferredSize());
+	    puzzle.restore(pf.getLayout(), pf.getPieces());
+	    elapsed = pf.getElapsed();
+	} catch (IOException e) {
+	    channel.close();
+	    throw e;
+	}
+	thread = new Thread(this, "sphaero2-coop-receive");
+	thread.setDaemon(true);
+    }
+
+    /*
+     * Read a snapshot, and cut the pieces it describes. The snapshot is
+     * read from a whole frame, so the picture can't be longer than what's
+     * left of it.
+     */
+    private static PuzzleFile readSnapshot(final DataInputStream in)
+	    throws IOException {
+	in.readInt();
+	int len = in.readInt();
+	if (len < 0 || len > in.available()) {
+	    throw new IOException("Corrupt snapshot");
+	}
+	byte[] png = new byte[len];
+	in.readFully(png);
+	BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+	if (image == null) {
+	    throw new IOException("Unrecognized image in snapshot");
+	}
+	return PuzzleFile.read(in, image);
+    }
+
+    /**
+     * Returns this client's copy of the puzzle.
+     *
+     * @return the shared JigsawPuzzle
+     */
+    public JigsawPuzzle getPuzzle() {
+	return puzzle;
+    }
+
+    /**
+     * Returns how long the puzzle had been shared for when this client
+     * connected.
+     *
+     * @return the elapsed solution time in milliseconds
+     */
+    public long getElapsed() {
+	return elapsed;
+    }
+
+    /**
+     * Returns how many changes from other players have been applied.
+     *
+     * @return the number of changes applied
+     */
+    public long getReceived() {
+	return received.get();
+    }
+
+    /**
+     * Start sending the player's changes, and applying everyone else's.
+     * Must be called on the AWT thread if the puzzle is being shown.
+     */
+    public void start() {
+	puzzle.setRecorder(this);
+	thread.start();
+    }
+
+    /**
+     * Disconnect from the server. The puzzle stays as it is.
+     */
+    public void close() {
+	puzzle.setRecorder(null);
+	channel.close();
+    }
+
+    // Receiving changes ----------------------------------------------------
+
+    @Override
+    public void run() {
+	try {
+	    while (!channel.isClosed()) {
+		final byte[] frame = channel.receive();
+		PuzzleFile pf = null;
+		if (frame.length > 0 && frame[0] == CoopChannel.SNAPSHOT) {
+		    DataInputStream in = new DataInputStream(
+					new ByteArrayInputStream(frame));
+		    in.readByte();
+		    pf = readSnapshot(in);
+		}
+		final PuzzleFile snapshot = pf;
+		EventQueue.invokeLater(new Runnable() {
+		    @Override
+		    public void run() {
+			if (snapshot == null) {
+			    apply(frame);
+			} else {
+			    restore(snapshot);
+			}
+		    }
+		});
+	    }
+	} catch (IOException e) {
+	    if (!channel.isClosed()) {
+		System.err.println("Lost co-op server: " + e); // NOPMD
+	    }
+	}
+	channel.close();
+    }
+
+    /*
+     * Replace the puzzle with a snapshot, which has already been read and
+     * cut, as a snapshot always arrives in a frame of its own.
+     */
+    private void restore(final PuzzleFile snapshot) {
+	puzzle.restore(snapshot.getLayout(), snapshot.getPieces());
+	resyncing = false;
+    }
+
+    /*
+     * Apply the records in a frame from the server. If one can't be
+     * applied, ask for a snapshot.
+     */
+    private void apply(final byte[] frame) {
+	if (resyncing) {
+	    return;
+	}
+	DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(frame));
+	boolean ok = true;
+	try {
+	    while (ok && in.available() > 0) {
+		byte op = in.readByte();
+		if (op == CoopChannel.DRAG) {
+		    int n = in.readInt();
+		    for (int i = 0; ok && i < n; i++) {
+			int key = in.readInt();
+			int x = in.readInt();
+			ok = puzzle.replayMove(key, x, in.readInt());
+			received.incrementAndGet();
+		    }
+		} else {
+		    ok = MoveJournal.apply(puzzle, op, in, frame.length);
+		    received.incrementAndGet();
+		}
+	    }
+	} catch (IOException e) {
+	    ok = false;
+	}
+	if (ok) {
+	    return;
+	}
+	resyncing = true;
+	channel.send(new byte[] {CoopChannel.RESYNC}, 0, 1);
+    }
+
+    // PuzzleRecorder -------------------------------------------------------
+
+    private void send() {
+	channel.send(buf.toByteArray(), 0, buf.size());
+    }
+
+    @Override
+    public void moved(final Piece piece) {
+	buf.reset();
+	try {
+	    MoveJournal.writeMoved(bufOut, piece);
+	} catch (IOException e) { }
+	send();
+    }
+
+    @Override
+    public void dragged(final Piece piece) {
+	channel.drag(piece.getKey(), piece.getPuzzleX(), piece.getPuzzleY());
+    }
+
+    @Override
+    public void rotated(final Piece piece) {
+	buf.reset();
+	try {
+	    MoveJournal.writeRotated(bufOut, piece);
+	} catch (IOException e) { }
+	send();
+    }
+
+    @Override
+    public void joined(final Piece piece) {
+	buf.reset();
+	try {
+	    MoveJournal.writeJoined(bufOut, piece);
+	} catch (IOException e) { }
+	send();
+    }
+
+    @Override
+    public void pushed() {
+	buf.reset();
+	try {
+	    MoveJournal.writePushed(bufOut);
+	} catch (IOException e) { }
+	send();
+    }
+
+    @Override
+    public void shuffled(final List<Piece> pieces) {
+	buf.reset();
+	try {
+	    MoveJournal.writePositions(bufOut, true, pieces);
+	} catch (IOException e) { }
+	send();
+    }
+
+    @Override
+    public void scattered(final List<Piece> pieces) {
+	buf.reset();
+	try {
+	    MoveJournal.writePositions(bufOut, false, pieces);
+	} catch (IOException e) { }
+	send();
+    }
+
+    /**
+     * The puzzle has been finished. The server finishes its own copy when
+     * it applies the last join, so there's nothing to send.
+     */
+    @Override
+    public void finished() {
+    }
+
+    // Main -----------------------------------------------------------------
+
+    private static void usage() {
+	System.err.println("Usage: CoopClient host[:port]"); // NOPMD
+	System.exit(2);
+    }
+
+    private static void fatalError(final String s) {
+	System.err.println(s); // NOPMD
+	System.exit(1);
+    }
+
+    /**
+     * Join a shared puzzle, and show it in a window.
+     *
+     * @param args command line arguments: the server's host, and
+     * optionally its port
+     */
+    public static void main(final String[] args) {
+	if (args.length != 1) {
+	    usage();
+	}
+	String host = args[0];
+	int port = CoopServer.DEFAULT_PORT;
+	int colon = host.lastIndexOf(':');
+	if (colon >= 0) {
+	    try {
+		port = Integer.parseInt(host.substring(colon + 1));
+	    } catch (NumberFormatException e) {
+		fatalError("Invalid port!");
+	    }
+	    host = host.substring(0, colon);
+	}
+	final CoopClient client;
+	try {
+	    client = new CoopClient(host, port);
+	} catch (IOException e) {
+	    fatalError("Unable to join " + args[0] + ": " + e.getMessage());
+	    return;
+	}
+	EventQueue.invokeLater(new Runnable() {
+	    @Override
+	    public void run() {
+		JFrame frame = new JFrame("Jigsaw Puzzle - " + args[0]);
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		JPanel ppanel = new JPanel(new BorderLayout());
+		ppanel.add(new JScrollPane(client.getPuzzle()));
+		TimeLabel tlabel = new TimeLabel();
+		ppanel.add(tlabel, BorderLayout.SOUTH);
+		frame.setContentPane(ppanel);
+		frame.setSize(1024, 740);
+		frame.setVisible(true);
+		tlabel.start(client.getElapsed());
+		client.getPuzzle().setTimeLabel(tlabel);
+		client.start();
+	    }
+	});
+    }
+}
@@ -0,0 +1,384 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+/**
+ * Lets several people solve one puzzle together from different machines.
+ * The server owns the puzzle: every change a player makes is sent to the
+ * server, which applies it to its own copy and passes it on to everyone
+ * else. A player joining is sent a snapshot of the whole puzzle, image
+ * included, and from then on only the changes.
+ *
+ * <p>Changes are applied in the order the server receives them, so if two
+ * players do something to the same piece at once, the server's copy may
+ * not be what one of them saw. A change that can't be applied, because
+ * its piece has already been joined to something else, or a join that
+ * didn't join anything here, means that player's copy has gone astray,
+ * so they're sent a fresh snapshot rather than the change being passed
+ * on.
+ *
+ * <p>The server has no display; anyone who wants to play, including
+ * whoever started the server, connects with a CoopClient.
+ */
+public final class CoopServer implements Runnable {
+
+    /**
+     * The port the server listens on by default.
+     */
+    public static final int DEFAULT_PORT = 27143;
+
+    private final JigsawPuzzle puzzle;
+    private final File imageFile;
+    private final ServerSocket serverSocket;
+    private final long frameMillis;
+    private final long start;
+    private final Thread thread;
+    private byte[] png;
+
+    /*
+     * The connected clients, and the count of drag moves applied, guarded
+     * by the puzzle.
+     */
+    private final List<CoopChannel> clients = new ArrayList<>();
+    private long moves;
+
+    /**
+     * Start serving the given puzzle, which must already have been cut.
+     *
+     * @param npuzzle the JigsawPuzzle to share
+     * @param nimageFile the image file the puzzle was made from
+     * @param port the port to listen on, or zero for any free port
+     *
+     * @throws IOException if the server cannot listen on the port
+     */
+    public CoopServer(final JigsawPuzzle npuzzle, final File nimageFile,
+		      final int port) throws IOException {
+	this(npuzzle, nimageFile, port, CoopChannel.FRAME_MILLIS);
+    }
+
+    /**
+     * Start serving the given puzzle, sending changes at the given
+     * interval.
+     *
+     * @param npuzzle the JigsawPuzzle to share
+     * @param nimageFile the image file the puzzle was made from
+     * @param port the port to listen on, or zero for any free port
+     * @param nframeMillis how often changes are sent, in milliseconds
+     *
+     * @throws IOException if the server cannot listen on the port
+     */
+    CoopServer(final JigsawPuzzle npuzzle, final File nimageFile,
+	       final int port, final long nframeMillis) throws IOException {
+	puzzle = npuzzle;
+	imageFile = nimageFile;
+	frameMillis = nframeMillis;
+	start = System.currentTimeMillis();
+	serverSocket = new ServerSocket(port);
+	thread = new Thread(this, "sphaero2-coop-server");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     *
+     * @return the server's port
+     */
+    public int getPort() {
+	return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns how many drag moves have been applied to the puzzle.
+     *
+     * @return the number of drag moves applied
+     */
+    public long getMoves() {
+	synchronized (puzzle) {
+	    return moves;
+	}
+    }
+
+    /**
+     * Stop serving, and disconnect all the clients.
+     */
+    public void close() {
+	try {
+	    serverSocket.close();
+	} catch (IOException e) { }
+	List<CoopChannel> old;
+	synchronized (puzzle) {
+	    old = new ArrayList<>(clients);
+	    clients.clear();
+	}
+	for (CoopChannel client : old) {
+	    client.close();
+	}
+    }
+
+    // Accepting clients ----------------------------------------------------
+
+    @Override
+    public void run() {
+	while (!serverSocket.isClosed()) {
+	    try {
+		accept(serverSocket.accept());
+	    } catch (IOException e) {
+		if (!serverSocket.isClosed()) {
+		    System.err.println("Co-op connection failed: " // NOPMD
+				       + e);
+		}
+	    }
+	}
+    }
+
+    private void accept(final Socket socket) throws IOException {
+	final CoopChannel client = new CoopChannel(socket, frameMillis,
+				CoopChannel.MAX_CHANGES,
+				"sphaero2-coop-send-" + socket.getPort());
+	synchronized (puzzle) {
+	    sendSnapshot(client);
+	    clients.add(client);
+	}
+	Thread reader = new Thread(new Runnable() {
+	    @Override
+	    public void run() {
+		try {
+		    while (!client.isClosed()) {
+			apply(client, client.receive());
+		    }
+		} catch (IOException e) {
+		    // the client has gone
+		}
+		synchronized (puzzle) {
+		    clients.remove(client);
+		}
+		client.close();
+	    }
+	}, "sphaero2-coop-receive-" + socket.getPort());
+	reader.setDaemon(true);
+	reader.start();
+    }
+
+    // Applying changes -----------------------------------------------------
+
+    /*
+     * Apply the records in a frame from a client, and pass each one on to
+     * the other clients. If a record can't be applied, the rest of the
+     * frame was made from a different puzzle, so is thrown away.
+     */
+    private void apply(final CoopChannel from, final byte[] frame)
+	    throws IOException {
+	DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(frame));
+	synchronized (puzzle) {
+	    while (in.available() > 0) {
+		int off = frame.length - in.available();
+		byte op = in.readByte();
+		boolean ok;
+		if (op == CoopChannel.DRAG) {
+		    ok = applyDrags(from, in, frame.length);
+		} else if (op == CoopChannel.RESYNC) {
+		    sendSnapshot(from);
+		    continue;
+		} else {
+		    int before = puzzle.getZOrder().size();
+		    ok = MoveJournal.apply(puzzle, op, in, frame.length);
+		    if (op == MoveJournal.JOIN) {
+			ok = ok && puzzle.getZOrder().size() < before;
+		    }
+		    if (ok) {
+			int len = frame.length - in.available() - off;
+			for (CoopChannel client : clients) {
+			    if (client != from) {
+				client.send(frame, off, len);
+			    }
+			}
+		    }
+		}
+		if (!ok) {
+		    sendSnapshot(from);
+		    return;
+		}
+	    }
+	}
+    }
+
+    private boolean applyDrags(final CoopChannel from,
+			       final DataInputStream in, final int limit)
+	    throws IOException {
+	int n = in.readInt();
+	if (n < 0 || n > limit) {
+	    throw new IOException("Corrupt frame");
+	}
+	for (int i = 0; i < n; i++) {
+	    int key = in.readInt();
+	    int x = in.readInt();
+	    int y = in.readInt();
+	    if (!puzzle.replayMove(key, x, y)) {
+		return false;
+	    }
+	    moves++;
+	    for (CoopChannel client : clients) {
+		if (client != from) {
+		    client.drag(key, x, y);
+		}
+	    }
+	}
+	return true;
+    }
+
+    /*
+     * Send a client the whole puzzle. The image is encoded once, as it
+     * never changes. Must be called holding the puzzle's lock.
+     */
+    private void sendSnapshot(final CoopChannel client) throws IOException {
+	if (png == null) {
+	    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	    ImageIO.write(puzzle.getImage(), "png", bos);
+	    png = bos.toByteArray();
+	}
+	ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(bos);
+	out.writeInt(png.length);
+	out.write(png);
+	PuzzleFile.write(out, puzzle, imageFile,
+			 System.currentTimeMillis() - start);
+	out.flush();
+	byte[] body = bos.toByteArray();
+	bos.reset();
+	out.writeByte(CoopChannel.SNAPSHOT);
+	out.writeInt(body.length);
+	out.write(body);
+	out.flush();
+	client.sendAlone(bos.toByteArray());
+    }
+
+    // Main -----------------------------------------------------------------
+
+    private static void usage() {
+	System.err.println("Usage: CoopServer [-p pieces] [-c cutter]" // NOPMD
+		+ " [-seed seed] [-max size] [-port port] image");
+	System.exit(2);
+    }
+
+    private static void fatalError(final String s) {
+	System.err.println(s); // NOPMD
+	System.exit(1);
+    }
+
+    private static int intArg(final String[] args, final int arg,
+			      final String flag) {
+	if (arg >= args.length) {
+	    fatalError("Expecting an argument to " + flag + "!");
+	}
+	try {
+	    return Integer.parseInt(args[arg]);
+	} catch (NumberFormatException e) {
+	    fatalError("Invalid number for " + flag + "!");
+	}
+	return 0;
+    }
+
+    /**
+     * Cut an image into a puzzle and serve it until killed.
+     *
+     * <pre>
+     * -p &lt;<i>number</i>&gt; Cut the picture into roughly this number of
+     * pieces.
+     * -c &lt;<i>name</i>&gt; The piece style.
+     * -seed &lt;<i>number</i>&gt; Cut and shuffle the same way every time.
+     * -max &lt;<i>size</i>&gt; Shrink the picture to fit this size.
+     * -port &lt;<i>number</i>&gt; The port to listen on.
+     * </pre>
+     *
+     * @param args command line arguments
+     */
+    public static void main(final String[] args) {
+	JigsawCutter ncutter = JigsawCutter.getCutters()[0];
+	int pieces = JigsawCutter.DEFAULT_PIECES;
+	Long nseed = null;
+	int nmaxSize = 0;
+	int port = DEFAULT_PORT;
+	File file = null;
+	int arg = 0;
+	while (arg < args.length) {
+	    if ("-p".equals(args[arg])) {
+		arg++;
+		pieces = intArg(args, arg, "-p");
+	    } else if ("-c".equals(args[arg])) {
+		arg++;
+		if (arg >= args.length) {
+		    fatalError("Expecting an argument to -c!");
+		}
+		ncutter = JigsawCutter.forName(args[arg]);
+		if (ncutter == null) {
+		    fatalError("Invalid cutter!");
+		}
+	    } else if ("-seed".equals(args[arg])) {
+		arg++;
+		if (arg >= args.length) {
+		    fatalError("Expecting an argument to -seed!");
+		}
+		try {
+		    nseed = Long.valueOf(args[arg]);
+		} catch (NumberFormatException e) {
+		    fatalError("Invalid seed!");
+		}
+	    } else if ("-max".equals(args[arg])) {
+		arg++;
+		nmaxSize = intArg(args, arg, "-max");
+	    } else if ("-port".equals(args[arg])) {
+		arg++;
+		port = intArg(args, arg, "-port");
+	    } else if (args[arg].startsWith("-") || file != null) {
+		usage();
+	    } else {
+		file = new File(args[arg]);
+	    }
+	    arg++;
+	}
+	if (file == null || pieces < JigsawCutter.MIN_PIECES) {
+	    usage();
+	}
+	BufferedImage image = null;
+	try {
+	    image = ImageIO.read(file);
+	} catch (IOException e) {
+	    fatalError("Unable to read " + file + ": " + e.getMessage());
+	}
+	if (image == null) {
+	    fatalError("Unrecognized image format: " + file);
+	}
+	image = JigUtil.scaledImage(image, nmaxSize);
+
+	// Set the number of pieces directly, so it isn't limited.
+	ncutter.prefPieces = pieces;
+	ncutter.setSeed(nseed);
+	JigsawPuzzle puzzle = new JigsawPuzzle(image, ncutter);
+	puzzle.setSize(puzzle.getPreferredSize());
+	puzzle.reset();
+	try {
+	    CoopServer server = new CoopServer(puzzle, file, port);
+	    System.out.println("Serving " + file + " on port " // NOPMD
+			       + server.getPort());
+	    server.thread.join();
+	} catch (IOException e) {
+	    fatalError("Unable to serve on port " + port + ": "
+		       + e.getMessage());
+	} catch (InterruptedException e) {
+	    fatalError("Interrupted");
+	}
+    }
+}
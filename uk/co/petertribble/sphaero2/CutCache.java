@@ -0,0 +1,336 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A cache on disk of the results of cutting images, so that an image that
+ * has been cut before can be cut again without the expensive work of
+ * deciding which pixels belong to which piece.
+ *
+ * <p>For each piece the cache holds its position and size in the image,
+ * its neighbors, and a mask of the pixels it contains. The pixel data
+ * isn't stored, but is sliced from the image again when the pieces are
+ * rebuilt. Entries are keyed by a hash of the image content, the style of
+ * cutter, the number of pieces asked for, and the seed, which between
+ * them determine the pieces exactly. The initial rotations of the pieces
+ * aren't part of the key, so a saved puzzle can use the cache however its
+ * pieces have been turned.
+ *
+ * <p>The cache is bounded in size. Each use of an entry marks it as
+ * recently used, and when the cache grows too big the least recently used
+ * entries are removed.
+ */
+public final class CutCache {
+
+    /**
+     * The default maximum size of the cache, 64MB.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final int MAGIC = 0x53504843; // "SPHC"
+    private static final int VERSION = 4;
+    private static final String SUFFIX = ".cut";
+
+    private final File dir;
+    private final long maxBytes;
+
+    /**
+     * Create a new CutCache.
+     *
+     * @param ndir the folder to keep the cache in, which will be created
+     * if necessary
+     * @param nmaxBytes the maximum total size of the cache, in bytes
+     */
+    public CutCache(final File ndir, final long nmaxBytes) {
+	dir = ndir;
+	maxBytes = nmaxBytes;
+    }
+
+    /**
+     * Returns how many bytes the cache uses on disk.
+     *
+     * @return the total size of the cache's entries in bytes
+     */
+    public long getBytes() {
+	long total = 0L;
+	for (File f : entries()) {
+	    total += f.length();
+	}
+	return total;
+    }
+
+    /**
+     * Returns how many entries there are in the cache.
+     *
+     * @return the number of cut puzzles in the cache
+     */
+    public int getEntries() {
+	return entries().length;
+    }
+
+    private File[] entries() {
+	File[] files = dir.listFiles(new FilenameFilter() {
+	    @Override
+	    public boolean accept(final File d, final String name) {
+		return name.endsWith(SUFFIX);
+	    }
+	});
+	return files == null ? new File[0] : files;
+    }
+
+    /**
+     * Returns the folder the cache is kept in by default.
+     *
+     * @return the default cache folder
+     */
+    public static File defaultDirectory() {
+	return new File(MoveJournal.defaultDirectory(), "cache");
+    }
+
+    /**
+     * Returns the key for the pieces cut from the given image according to
+     * the given layout. This is a hash of everything that determines the
+     * pieces, apart from their initial rotations.
+     *
+     * @param image the image to be cut
+     * @param cutter the cutter that made the layout
+     * @param layout the layout of the pieces
+     *
+     * @return the key for the cut pieces
+     */
+    public static String key(final BufferedImage image,
+			     final JigsawCutter cutter,
+			     final CutLayout layout) {
+	MessageDigest md;
+	try {
+	    md = MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+	md.update(JigUtil.imageHash(image));
+	md.update(cutter.getName().getBytes(StandardCharsets.UTF_8));
+	StringBuilder sb = new StringBuilder();
+	sb.append(':').append(layout.getWidth());
+	sb.append(':').append(layout.getHeight());
+	sb.append(':').append(layout.getPreferredPieces());
+	sb.append(':').append(layout.getSeed());
+	md.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+	StringBuilder key = new StringBuilder();
+	for (byte b : md.digest()) {
+	    key.append(String.format("%02x", b));
+	}
+	return key.toString();
+    }
+
+    /**
+     * Returns the pieces cut from the given image according to the given
+     * layout, if they're in the cache. The pieces are rebuilt from the
+     * image using the cached masks, and rotated as given by the layout.
+     *
+     * @param key the key for the cut pieces
+     * @param image the image to be cut
+     * @param cutter the cutter that made the layout, which is used to
+     * show progress
+     * @param layout the layout of the pieces
+     *
+     * @return the array of Pieces, or null if they aren't in the cache
+     *
+     * @see #key
+     */
+    public Piece[] get(final String key, final BufferedImage image,
+		       final JigsawCutter cutter, final CutLayout layout) {
+	File file = new File(dir, key + SUFFIX);
+	if (!file.isFile()) {
+	    return null;
+	}
+	Piece[] pieces;
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new GZIPInputStream(new FileInputStream(file))))) {
+	    pieces = read(in, image, cutter, layout);
+	} catch (IOException e) {
+	    file.delete();
+	    return null;
+	}
+	file.setLastModified(System.currentTimeMillis());
+	return pieces;
+    }
+
+    /**
+     * Add newly cut pieces to the cache. If the cache is then too big, the
+     * least recently used entries are removed. Failure to write to the
+     * cache is ignored.
+     *
+     * @param key the key for the cut pieces
+     * @param pieces the Pieces, as returned by the cutter
+     *
+     * @see #key
+     */
+    public void put(final String key, final Piece[] pieces) {
+	if (!dir.isDirectory() && !dir.mkdirs()) {
+	    return;
+	}
+	File file = new File(dir, key + SUFFIX);
+	File tmpfile = null;
+	try {
+	    tmpfile = File.createTempFile("cut", ".tmp", dir);
+	    try (DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(new GZIPOutputStream(
+				new FileOutputStream(tmpfile))))) {
+		write(out, pieces);
+	    }
+	    Files.move(tmpfile.toPath(), file.toPath(),
+		       StandardCopyOption.REPLACE_EXISTING);
+	} catch (IOException e) {
+	    if (tmpfile != null) {
+		tmpfile.delete();
+	    }
+	    return;
+	}
+	evict();
+    }
+
+    /*
+     * Each piece is written as its position and size in the image, its
+     * neighbors, and its mask. Pieces that fill their whole rectangle, as
+     * the square and rectangular ones do, don't need a mask.
+     */
+    private static void write(final DataOutputStream out,
+			      final Piece[] pieces) throws IOException {
+	out.writeInt(MAGIC);
+	out.writeShort(VERSION);
+	out.writeInt(pieces.length);
+	for (Piece piece : pieces) {
+	    out.writeInt(piece.getImageX());
+	    out.writeInt(piece.getImageY());
+	    out.writeInt(piece.getImageWidth());
+	    out.writeInt(piece.getImageHeight());
+	    out.writeShort(piece.neighbors.size());
+	    for (Piece neighbor : piece.neighbors) {
+		out.writeInt(neighbor.getIndex());
+	    }
+	    int[] data = piece.getOriginalData();
+	    byte[] mask = new byte[(data.length + 7) / 8];
+	    boolean full = true;
+	    for (int i = 0; i < data.length; i++) {
+		if (data[i] != 0) {
+		    mask[i >> 3] |= 1 << (i & 7);
+		} else {
+		    full = false;
+		}
+	    }
+	    out.writeBoolean(full);
+	    if (!full) {
+		out.write(mask);
+	    }
+	}
+    }
+
+    private static Piece[] read(final DataInputStream in,
+				final BufferedImage image,
+				final JigsawCutter cutter,
+				final CutLayout layout) throws IOException {
+	if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+	    throw new IOException("Not a cut cache entry");
+	}
+	int npieces = in.readInt();
+	if (npieces != layout.getPieceCount()) {
+	    throw new IOException("Cut cache entry doesn't match layout");
+	}
+	int width = layout.getWidth();
+	int height = layout.getHeight();
+	cutter.startProgress(npieces);
+	Piece[] pieces = new Piece[npieces];
+	int[][] neighbors = new int[npieces][];
+	for (int n = 0; n < npieces; n++) {
+	    int x = in.readInt();
+	    int y = in.readInt();
+	    int w = in.readInt();
+	    int h = in.readInt();
+	    if (x < 0 || y < 0 || w <= 0 || h <= 0
+		    || x + w > width || y + h > height) {
+		throw new IOException("Corrupt cut cache entry");
+	    }
+	    neighbors[n] = new int[in.readUnsignedShort()];
+	    for (int i = 0; i < neighbors[n].length; i++) {
+		neighbors[n][i] = in.readInt();
+		if (neighbors[n][i] < 0 || neighbors[n][i] >= npieces) {
+		    throw new IOException("Corrupt cut cache entry");
+		}
+	    }
+	    int[] data = image.getRGB(x, y, w, h, null, 0, w);
+	    if (!in.readBoolean()) {
+		byte[] mask = new byte[(data.length + 7) / 8];
+		in.readFully(mask);
+		for (int i = 0; i < data.length; i++) {
+		    if ((mask[i >> 3] & (1 << (i & 7))) == 0) {
+			data[i] = 0;
+		    }
+		}
+	    }
+	    pieces[n] = new Piece(data, x, y, w, h, width, height,
+				  layout.getRotation(n));
+	    pieces[n].setIndex(n);
+	    cutter.updateProgress();
+	}
+	for (int n = 0; n < npieces; n++) {
+	    for (int neighbor : neighbors[n]) {
+		pieces[n].addNeighbor(pieces[neighbor]);
+	    }
+	}
+	return pieces;
+    }
+
+    /*
+     * Remove the least recently used entries until the cache fits. This
+     * is synchronized so that two cuts finishing together don't both try
+     * to remove the same entries.
+     */
+    private synchronized void evict() {
+	File[] files = dir.listFiles();
+	if (files == null) {
+	    return;
+	}
+	long total = 0L;
+	for (File f : files) {
+	    total += f.length();
+	}
+	if (total <= maxBytes) {
+	    return;
+	}
+	Arrays.sort(files, new Comparator<File>() {
+	    @Override
+	    public int compare(final File f1, final File f2) {
+		return Long.compare(f1.lastModified(), f2.lastModified());
+	    }
+	});
+	for (File f : files) {
+	    if (total <= maxBytes) {
+		break;
+	    }
+	    if (f.getName().endsWith(SUFFIX)) {
+		long len = f.length();
+		if (f.delete()) {
+		    total -= len;
+		}
+	    }
+	}
+    }
+}
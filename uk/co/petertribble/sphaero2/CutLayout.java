@@ -0,0 +1,309 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.Point;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The geometry of a cut: every random decision a JigsawCutter makes
+ * about where the pieces go and what shape they are, and the seed those
+ * decisions were made from, but none of the image data. Cutting is done
+ * in two stages; first a JigsawCutter lays out the pieces, then it cuts
+ * the image according to the layout. A given layout always produces
+ * exactly the same pieces, so it can be saved and used to recreate a
+ * puzzle without cutting it afresh.
+ *
+ * <p>The corner points and knobs are only used by cutters that need them,
+ * and are null otherwise. Corner points are indexed as [column][row], and
+ * knobs as [column][row] of the piece to their west or north.
+ */
+public final class CutLayout {
+
+    /**
+     * The most pieces a layout that's read back may have; far more than
+     * any cutter makes of a picture that fits in memory, but few enough
+     * that a corrupt count can't exhaust the heap.
+     */
+    private static final int MAX_READ_PIECES = 1 << 20;
+
+    private final int width;
+    private final int height;
+    private final int npieces;
+    private final int columns;
+    private final int rows;
+    private final Point[][] points;
+    private final Knob[][] vknobs;
+    private final Knob[][] hknobs;
+    private final int[] rotations;
+    private final long seed;
+
+    /**
+     * Creates a new CutLayout. The arrays are used directly, and should
+     * not be modified afterward.
+     *
+     * @param nwidth the width of the image to be cut
+     * @param nheight the height of the image to be cut
+     * @param nnpieces the number of pieces that was asked for
+     * @param ncolumns the number of columns of pieces
+     * @param nrows the number of rows of pieces
+     * @param npoints the corner points of the pieces, or null
+     * @param nvknobs the knobs on vertical edges, or null
+     * @param nhknobs the knobs on horizontal edges, or null
+     * @param nrotations the initial rotation of each piece, in the order
+     * the pieces are returned by the cutter
+     * @param nseed the seed the random decisions were made from
+     */
+    public CutLayout(final int nwidth, final int nheight, final int nnpieces,
+		     final int ncolumns, final int nrows,
+		     final Point[][] npoints,
+		     final Knob[][] nvknobs, final Knob[][] nhknobs,
+		     final int[] nrotations, final long nseed) {
+	width = nwidth;
+	height = nheight;
+	npieces = nnpieces;
+	columns = ncolumns;
+	rows = nrows;
+	points = npoints; // NOPMD
+	vknobs = nvknobs; // NOPMD
+	hknobs = nhknobs; // NOPMD
+	rotations = nrotations; // NOPMD
+	seed = nseed;
+    }
+
+    /**
+     * Returns the seed this layout was made from. Laying out an image of
+     * the same size with the same seed, and with the same style of cutter
+     * and number of pieces, gives the same layout.
+     *
+     * @return the seed for this layout
+     */
+    public long getSeed() {
+	return seed;
+    }
+
+    /**
+     * Returns the width of the image this layout is for.
+     *
+     * @return the width of the image in pixels
+     */
+    public int getWidth() {
+	return width;
+    }
+
+    /**
+     * Returns the height of the image this layout is for.
+     *
+     * @return the height of the image in pixels
+     */
+    public int getHeight() {
+	return height;
+    }
+
+    /**
+     * Returns the number of pieces that was asked for when this layout was
+     * created.
+     *
+     * @return the preferred number of pieces
+     */
+    public int getPreferredPieces() {
+	return npieces;
+    }
+
+    /**
+     * Returns the number of columns of pieces.
+     *
+     * @return the number of columns
+     */
+    public int getColumns() {
+	return columns;
+    }
+
+    /**
+     * Returns the number of rows of pieces.
+     *
+     * @return the number of rows
+     */
+    public int getRows() {
+	return rows;
+    }
+
+    /**
+     * Returns the given corner point.
+     *
+     * @param i the column of the corner
+     * @param j the row of the corner
+     *
+     * @return the corner Point
+     */
+    public Point getPoint(final int i, final int j) {
+	return points[i][j];
+    }
+
+    /**
+     * Returns the knob on the vertical edge east of the given piece.
+     *
+     * @param i the column of the piece
+     * @param j the row of the piece
+     *
+     * @return the Knob on the edge
+     */
+    public Knob getVKnob(final int i, final int j) {
+	return vknobs[i][j];
+    }
+
+    /**
+     * Returns the knob on the horizontal edge south of the given piece.
+     *
+     * @param i the column of the piece
+     * @param j the row of the piece
+     *
+     * @return the Knob on the edge
+     */
+    public Knob getHKnob(final int i, final int j) {
+	return hknobs[i][j];
+    }
+
+    /**
+     * Returns the number of pieces this layout will produce.
+     *
+     * @return the number of pieces
+     */
+    public int getPieceCount() {
+	return rotations.length;
+    }
+
+    /**
+     * Returns the initial rotation of the given piece.
+     *
+     * @param index the index of the piece, as returned by the cutter
+     *
+     * @return the initial rotation of the piece, in degrees
+     */
+    public int getRotation(final int index) {
+	return rotations[index];
+    }
+
+    /**
+     * Returns a copy of this layout with different initial rotations.
+     *
+     * @param nrotations the new initial rotations
+     *
+     * @return a new CutLayout with the same geometry as this one
+     */
+    public CutLayout withRotations(final int[] nrotations) {
+	return new CutLayout(width, height, npieces, columns, rows,
+			points, vknobs, hknobs, nrotations, seed);
+    }
+
+    /**
+     * Writes this layout, so that it can be recreated exactly by
+     * {@link #read}.
+     *
+     * @param out the DataOutput to write to
+     *
+     * @throws IOException if the layout cannot be written
+     */
+    public void write(final DataOutput out) throws IOException {
+	out.writeLong(seed);
+	out.writeInt(width);
+	out.writeInt(height);
+	out.writeInt(npieces);
+	out.writeInt(columns);
+	out.writeInt(rows);
+	out.writeBoolean(points != null);
+	if (points != null) {
+	    for (Point[] column : points) {
+		for (Point p : column) {
+		    out.writeInt(p.x);
+		    out.writeInt(p.y);
+		}
+	    }
+	}
+	writeKnobs(out, vknobs, columns - 1, rows);
+	writeKnobs(out, hknobs, columns, rows - 1);
+	out.writeInt(rotations.length);
+	for (int rotation : rotations) {
+	    out.writeByte(rotation / 90);
+	}
+    }
+
+    private static void writeKnobs(final DataOutput out, final Knob[][] knobs,
+				   final int ni, final int nj)
+	    throws IOException {
+	out.writeBoolean(knobs != null);
+	if (knobs != null) {
+	    for (int i = 0; i < ni; i++) {
+		for (int j = 0; j < nj; j++) {
+		    knobs[i][j].write(out);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Reads a layout previously written by {@link #write}.
+     *
+     * @param in the DataInput to read from
+     *
+     * @return the recreated CutLayout
+     *
+     * @throws IOException if the layout cannot be read, or is corrupt
+     */
+    public static CutLayout read(final DataInput in) throws IOException {
+	long nseed = in.readLong();
+	int nwidth = in.readInt();
+	int nheight = in.readInt();
+	int nnpieces = in.readInt();
+	int ncolumns = in.readInt();
+	int nrows = in.readInt();
+	if (nwidth < 1 || nheight < 1 || nnpieces < 1
+		|| ncolumns < 1 || ncolumns > nwidth
+		|| nrows < 1 || nrows > nheight
+		|| (long) ncolumns * nrows > MAX_READ_PIECES) {
+	    throw new IOException("Corrupt saved puzzle");
+	}
+	Point[][] npoints = null;
+	if (in.readBoolean()) {
+	    npoints = new Point[ncolumns + 1][nrows + 1];
+	    for (Point[] column : npoints) {
+		for (int j = 0; j < column.length; j++) {
+		    int x = in.readInt();
+		    column[j] = new Point(x, in.readInt());
+		}
+	    }
+	}
+	Knob[][] nvknobs = readKnobs(in, ncolumns - 1, nrows);
+	Knob[][] nhknobs = readKnobs(in, ncolumns, nrows - 1);
+	// Every cutter makes one piece for each column of each row.
+	int count = in.readInt();
+	if (count != ncolumns * nrows) {
+	    throw new IOException("Corrupt saved puzzle");
+	}
+	int[] nrotations = new int[count];
+	for (int i = 0; i < count; i++) {
+	    int quarters = in.readUnsignedByte();
+	    if (quarters > 3) {
+		throw new IOException("Corrupt saved puzzle");
+	    }
+	    nrotations[i] = quarters * 90;
+	}
+	return new CutLayout(nwidth, nheight, nnpieces, ncolumns, nrows,
+			npoints, nvknobs, nhknobs, nrotations, nseed);
+    }
+
+    private static Knob[][] readKnobs(final DataInput in,
+				      final int ni, final int nj)
+	    throws IOException {
+	if (!in.readBoolean()) {
+	    return null;
+	}
+	Knob[][] knobs = new Knob[ni][nj];
+	for (int i = 0; i < ni; i++) {
+	    for (int j = 0; j < nj; j++) {
+		knobs[i][j] = Knob.read(in);
+	    }
+	}
+	return knobs;
+    }
+}
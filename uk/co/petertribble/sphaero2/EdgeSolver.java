@@ -0,0 +1,604 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Solves a puzzle by looking at the pieces, without using any knowledge
+ * of where they came from. Only puzzles whose pieces are whole rectangles,
+ * as cut by the Squares and Rectangles cutters, can be solved.
+ *
+ * <p>Each side of each piece, as currently shown, is described by the
+ * colors just inside its edge, extrapolated outwards to predict the color
+ * at the edge itself. Two sides that belong together should predict
+ * similar colors, so every side is compared with every other side of the
+ * same length to find its best matches. The comparisons are a brute force
+ * search, split across processors, as the descriptors have too many
+ * dimensions for a tree to help.
+ *
+ * <p>Pieces are then assembled greedily into groups on a grid, taking the
+ * most distinctive matches first, and turning pieces as needed. A match
+ * that would put two pieces in the same place is rejected. Finally each
+ * group is laid out and its pieces joined, just as the player would join
+ * them, which only happens if the solution is right.
+ *
+ * <p>The true neighbors of the pieces are only used afterwards, to measure
+ * how accurate the solution was.
+ */
+public final class EdgeSolver {
+
+    /*
+     * Sides are numbered clockwise from the top, and a descriptor runs
+     * clockwise round the piece, so two sides that meet run in opposite
+     * directions.
+     */
+    private static final int[] DX = {0, 1, 0, -1};
+    private static final int[] DY = {-1, 0, 1, 0};
+
+    /*
+     * The number of points along each side, and the number of best
+     * matches kept for each side.
+     */
+    private static final int SAMPLES = 32;
+    private static final int MATCHES = 3;
+
+    private final Piece[] pieces;
+    private final int nsides;
+    private final int[] sideLength;
+    private final float[][] desc;
+    private final float[][] rdesc;
+    private final int[][] matchSide;
+    private final float[][] matchScore;
+
+    // The assembly: each piece's group, place, and quarter turns.
+    private final int[] group;
+    private final int[] gx;
+    private final int[] gy;
+    private final int[] turns;
+    private final Map<Integer, List<Integer>> members = new HashMap<>();
+    private final Map<Integer, Map<Long, Integer>> cells = new HashMap<>();
+
+    private long describeNanos;
+    private long matchNanos;
+    private long assembleNanos;
+    private long joinNanos;
+    private int declared;
+    private int correct;
+    private int trueAdjacent;
+    private int remaining;
+
+    /**
+     * Create a new EdgeSolver.
+     *
+     * @param npieces the pieces to solve, as cut
+     *
+     * @throws IllegalArgumentException if any of the pieces isn't a whole
+     * rectangle at least three pixels each way
+     */
+    public EdgeSolver(final Piece[] npieces) {
+	pieces = npieces.clone();
+	for (Piece piece : pieces) {
+	    if (piece instanceof MultiPiece
+		    || piece.getCurrentWidth() < 3
+		    || piece.getCurrentHeight() < 3) {
+		throw new IllegalArgumentException("Unsuitable piece " + piece);
+	    }
+	    for (int pixel : piece.curData) {
+		if ((pixel >>> 24) == 0) {
+		    throw new IllegalArgumentException(
+				"Only rectangular pieces can be solved");
+		}
+	    }
+	}
+	nsides = 4 * pieces.length;
+	sideLength = new int[nsides];
+	desc = new float[nsides][];
+	rdesc = new float[nsides][];
+	matchSide = new int[nsides][];
+	matchScore = new float[nsides][];
+	group = new int[pieces.length];
+	gx = new int[pieces.length];
+	gy = new int[pieces.length];
+	turns = new int[pieces.length];
+    }
+
+    /**
+     * Solve the puzzle. The pieces are turned, moved, and joined.
+     */
+    public void solve() {
+	long t0 = System.nanoTime();
+	IntStream.range(0, pieces.length).parallel().forEach(
+	    new IntConsumer() {
+		@Override
+		public void accept(final int n) {
+		    describe(n);
+		}
+	    });
+	long t1 = System.nanoTime();
+	IntStream.range(0, nsides).parallel().forEach(new IntConsumer() {
+	    @Override
+	    public void accept(final int side) {
+		match(side);
+	    }
+	});
+	long t2 = System.nanoTime();
+	assemble();
+	long t3 = System.nanoTime();
+	layout();
+	evaluate();
+	join();
+	long t4 = System.nanoTime();
+	describeNanos = t1 - t0;
+	matchNanos = t2 - t1;
+	assembleNanos = t3 - t2;
+	joinNanos = t4 - t3;
+    }
+
+    // Descriptors ----------------------------------------------------------
+
+    /*
+     * Returns the pixel the given distance in from the given point along
+     * a side, where the point runs clockwise from 0 to the side's length.
+     */
+    private static int pixel(final Piece piece, final int side,
+			     final int along, final int depth) {
+	int w = piece.getCurrentWidth();
+	int h = piece.getCurrentHeight();
+	int x;
+	int y;
+	if (side == 0) {
+	    x = along;
+	    y = depth;
+	} else if (side == 1) {
+	    x = w - 1 - depth;
+	    y = along;
+	} else if (side == 2) {
+	    x = w - 1 - along;
+	    y = h - 1 - depth;
+	} else {
+	    x = depth;
+	    y = h - 1 - along;
+	}
+	return piece.curData[y * w + x];
+    }
+
+    /*
+     * The outermost pixels are bevelled, so the colors at the edge are
+     * predicted from the two rows inside them, and the corners, which are
+     * bevelled by the adjoining sides, are left out.
+     */
+    private void describe(final int n) {
+	Piece piece = pieces[n];
+	for (int side = 0; side < 4; side++) {
+	    int len = side % 2 == 0 ? piece.getCurrentWidth()
+		: piece.getCurrentHeight();
+	    float[] d = new float[3 * SAMPLES];
+	    for (int i = 0; i < SAMPLES; i++) {
+		int along = 1 + i * (len - 3) / (SAMPLES - 1);
+		int p1 = pixel(piece, side, along, 1);
+		int p2 = pixel(piece, side, along, 2);
+		for (int c = 0; c < 3; c++) {
+		    int shift = 16 - 8 * c;
+		    int v1 = (p1 >> shift) & 0xFF;
+		    int v2 = (p2 >> shift) & 0xFF;
+		    d[3 * i + c] = v1 + (v1 - v2);
+		}
+	    }
+	    float[] r = new float[3 * SAMPLES];
+	    for (int i = 0; i < SAMPLES; i++) {
+		System.arraycopy(d, 3 * (SAMPLES - 1 - i), r, 3 * i, 3);
+	    }
+	    sideLength[4 * n + side] = len;
+	    desc[4 * n + side] = d;
+	    rdesc[4 * n + side] = r;
+	}
+    }
+
+    // Matching -------------------------------------------------------------
+
+    /*
+     * Find the best matches for a side among the sides of the same length
+     * on other pieces. Comparisons stop as soon as they can't get into the
+     * list of best matches.
+     */
+    private void match(final int side) {
+	int[] best = new int[MATCHES];
+	float[] scores = new float[MATCHES];
+	Arrays.fill(best, -1);
+	Arrays.fill(scores, Float.MAX_VALUE);
+	float[] d = desc[side];
+	int piece = side / 4;
+	for (int other = 0; other < nsides; other++) {
+	    if (other / 4 == piece
+		    || Math.abs(sideLength[other] - sideLength[side]) > 1) {
+		continue;
+	    }
+	    float[] r = rdesc[other];
+	    float limit = scores[MATCHES - 1];
+	    float sum = 0.0f;
+	    for (int i = 0; i < d.length && sum < limit; i++) {
+		float diff = d[i] - r[i];
+		sum += diff * diff;
+	    }
+	    if (sum < limit) {
+		int i = MATCHES - 1;
+		while (i > 0 && scores[i - 1] > sum) {
+		    scores[i] = scores[i - 1];
+		    best[i] = best[i - 1];
+		    i--;
+		}
+		scores[i] = sum;
+		best[i] = other;
+	    }
+	}
+	matchSide[side] = best;
+	matchScore[side] = scores;
+    }
+
+    // Assembly -------------------------------------------------------------
+
+    private static long cell(final int x, final int y) {
+	return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /*
+     * A match is as good as it is distinctive: how much better it is than
+     * the next best match for either side.
+     */
+    private float confidence(final int a, final int b, final float score) {
+	float second = Math.min(matchScore[a][1], matchScore[b][1]);
+	return score / (second + 1.0f);
+    }
+
+    private void assemble() {
+	for (int n = 0; n < pieces.length; n++) {
+	    group[n] = n;
+	    List<Integer> list = new ArrayList<>();
+	    list.add(n);
+	    members.put(n, list);
+	    Map<Long, Integer> map = new HashMap<>();
+	    map.put(cell(0, 0), n);
+	    cells.put(n, map);
+	}
+
+	// Each pair of sides only needs to be considered once.
+	List<float[]> candidates = new ArrayList<>();
+	Set<Long> seen = new HashSet<>();
+	for (int a = 0; a < nsides; a++) {
+	    for (int i = 0; i < MATCHES; i++) {
+		int b = matchSide[a][i];
+		if (b < 0 || !seen.add(cell(Math.min(a, b), Math.max(a, b)))) {
+		    continue;
+		}
+		candidates.add(new float[] {a, b,
+		    confidence(a, b, matchScore[a][i])});
+	    }
+	}
+	candidates.sort(new Comparator<float[]>() {
+	    @Override
+	    public int compare(final float[] c1, final float[] c2) {
+		return Float.compare(c1[2], c2[2]);
+	    }
+	});
+	for (float[] c : candidates) {
+	    merge((int) c[0], (int) c[1]);
+	}
+    }
+
+    /*
+     * Put side a against side b, turning and moving the smaller group,
+     * unless that would put two pieces in the same place.
+     */
+    private void merge(final int nsideA, final int nsideB) {
+	int sideA = nsideA;
+	int sideB = nsideB;
+	if (group[sideA / 4] == group[sideB / 4]) {
+	    return;
+	}
+	if (members.get(group[sideB / 4]).size()
+		> members.get(group[sideA / 4]).size()) {
+	    sideA = nsideB;
+	    sideB = nsideA;
+	}
+	int a = sideA / 4;
+	int b = sideB / 4;
+	int dir = (sideA % 4 + turns[a]) % 4;
+	int k = ((dir + 2 - sideB % 4) % 4 - turns[b] + 8) % 4;
+	int tx = gx[a] + DX[dir];
+	int ty = gy[a] + DY[dir];
+	Map<Long, Integer> into = cells.get(group[a]);
+	List<Integer> moving = members.get(group[b]);
+	int size = moving.size();
+	int[] nx = new int[size];
+	int[] ny = new int[size];
+	for (int i = 0; i < size; i++) {
+	    int p = moving.get(i);
+	    int x = gx[p] - gx[b];
+	    int y = gy[p] - gy[b];
+	    for (int q = 0; q < k; q++) {
+		int t = x;
+		x = -y;
+		y = t;
+	    }
+	    nx[i] = tx + x;
+	    ny[i] = ty + y;
+	    if (into.containsKey(cell(nx[i], ny[i]))) {
+		return;
+	    }
+	}
+	int from = group[b];
+	List<Integer> to = members.get(group[a]);
+	for (int i = 0; i < size; i++) {
+	    int p = moving.get(i);
+	    gx[p] = nx[i];
+	    gy[p] = ny[i];
+	    turns[p] = (turns[p] + k) % 4;
+	    group[p] = group[a];
+	    into.put(cell(nx[i], ny[i]), p);
+	    to.add(p);
+	}
+	members.remove(from);
+	cells.remove(from);
+    }
+
+    // Laying out and joining -----------------------------------------------
+
+    /*
+     * Turn the pieces, then place them by walking each group's grid from
+     * its first piece, putting each piece against the one it was reached
+     * from. Groups are spaced well apart.
+     */
+    private void layout() {
+	for (int n = 0; n < pieces.length; n++) {
+	    pieces[n].setRotation((pieces[n].getRotation() + 90 * turns[n])
+				  % 360);
+	}
+	int spacing = 2 * (pieces[0].getTotalWidth()
+			   + pieces[0].getTotalHeight());
+	int offset = 0;
+	boolean[] placed = new boolean[pieces.length];
+	Queue<Integer> queue = new ArrayDeque<>();
+	for (Map.Entry<Integer, List<Integer>> e : members.entrySet()) {
+	    Map<Long, Integer> map = cells.get(e.getKey());
+	    int first = e.getValue().get(0);
+	    pieces[first].setPuzzlePosition(offset, 0);
+	    placed[first] = true;
+	    queue.add(first);
+	    while (!queue.isEmpty()) {
+		int n = queue.remove();
+		Piece p = pieces[n];
+		for (int dir = 0; dir < 4; dir++) {
+		    Integer next = map.get(cell(gx[n] + DX[dir],
+						gy[n] + DY[dir]));
+		    if (next == null || placed[next]) {
+			continue;
+		    }
+		    Piece q = pieces[next];
+		    int x = p.getPuzzleX();
+		    int y = p.getPuzzleY();
+		    if (dir == 0) {
+			y -= q.getCurrentHeight();
+		    } else if (dir == 1) {
+			x += p.getCurrentWidth();
+		    } else if (dir == 2) {
+			y += p.getCurrentHeight();
+		    } else {
+			x -= q.getCurrentWidth();
+		    }
+		    q.setPuzzlePosition(x, y);
+		    placed[next] = true;
+		    queue.add(next);
+		}
+	    }
+	    offset += spacing;
+	}
+    }
+
+    /*
+     * Count the pairs of pieces placed side by side, and how many of them
+     * really are neighbors in the right place.
+     */
+    private void evaluate() {
+	Set<Piece> all = new HashSet<>(Arrays.asList(pieces));
+	for (Piece piece : pieces) {
+	    for (Piece neighbor : piece.neighbors) {
+		if (all.contains(neighbor)) {
+		    trueAdjacent++;
+		}
+	    }
+	}
+	trueAdjacent /= 2;
+	for (Map<Long, Integer> map : cells.values()) {
+	    for (int p : map.values()) {
+		for (int dir = 1; dir <= 2; dir++) {
+		    Integer q = map.get(cell(gx[p] + DX[dir], gy[p] + DY[dir]));
+		    if (q != null) {
+			declared++;
+			if (pieces[p].neighbors.contains(pieces[q])
+				&& pieces[q].isCloseTo(pieces[p])) {
+			    correct++;
+			}
+		    }
+		}
+	    }
+	}
+    }
+
+    private void join() {
+	Set<Piece> current = new HashSet<>(Arrays.asList(pieces));
+	for (List<Integer> list : members.values()) {
+	    for (int p : list) {
+		Piece piece = pieces[p];
+		while (current.contains(piece)) {
+		    Piece[] result = piece.join();
+		    if (result == null) {
+			break;
+		    }
+		    for (int i = 1; i < result.length; i++) {
+			current.remove(result[i]);
+		    }
+		    current.add(result[0]);
+		    piece = result[0];
+		}
+	    }
+	}
+	remaining = current.size();
+    }
+
+    /**
+     * Returns whether the puzzle was solved, with every piece joined into
+     * one.
+     *
+     * @return true if the puzzle was solved
+     */
+    public boolean isSolved() {
+	return remaining == 1;
+    }
+
+    /**
+     * Print a report of how long each stage took, and how accurate the
+     * solution was.
+     *
+     * @param out the stream to print to
+     */
+    public void report(final PrintStream out) {
+	out.println(pieces.length + " pieces, " + nsides + " sides");
+	out.println("  describe " + millis(describeNanos)
+		+ "  match " + millis(matchNanos)
+		+ "  assemble " + millis(assembleNanos)
+		+ "  join " + millis(joinNanos)
+		+ "  total " + millis(describeNanos + matchNanos
+				      + assembleNanos + joinNanos));
+	out.println("  " + members.size() + " groups; " + correct + " of "
+		+ declared + " adjacencies correct ("
+		+ percent(correct, declared) + "), " + percent(correct,
+							 trueAdjacent)
+		+ " of " + trueAdjacent + " true adjacencies found");
+	out.println("  " + remaining + (remaining == 1 ? " piece" : " pieces")
+		+ " after joining" + (isSolved() ? ", solved" : ""));
+    }
+
+    private static String millis(final long nanos) {
+	return String.format("%.0fms", nanos / 1000000.0);
+    }
+
+    private static String percent(final int n, final int total) {
+	return String.format("%.1f%%", total == 0 ? 0.0 : 100.0 * n / total);
+    }
+
+    private static void usage() {
+	System.err.println("Usage: EdgeSolver [-p pieces]" // NOPMD
+		+ " [-c Squares|Rectangles] [-seed seed] [-max size] image");
+	System.exit(1);
+    }
+
+    private static void fatalError(final String s) {
+	System.err.println(s); // NOPMD
+	System.exit(1);
+    }
+
+    private static int intArg(final String[] args, final int arg,
+			      final String name) {
+	if (arg >= args.length) {
+	    fatalError("Expecting an argument to " + name + "!");
+	}
+	try {
+	    return Integer.parseInt(args[arg]);
+	} catch (NumberFormatException e) {
+	    fatalError("Invalid argument to " + name + "!");
+	}
+	return 0;
+    }
+
+    /**
+     * Cut an image and solve it by looking at the pieces. This runs
+     * without a display, so may be run with java.awt.headless set to true.
+     *
+     * <p>The -p and -seed flags are as for the interactive application,
+     * except that the number of pieces isn't limited. The -c flag chooses
+     * the cutter, which must be Squares, the default, or Rectangles. The
+     * -max flag expects a size in pixels; larger images are scaled down to
+     * fit.
+     *
+     * @param args command line arguments
+     */
+    public static void main(final String[] args) {
+	JigsawCutter ncutter = new SquareCutter();
+	int npieces = JigsawCutter.DEFAULT_PIECES;
+	Long nseed = null;
+	int nmaxSize = 0;
+	File file = null;
+	int arg = 0;
+	while (arg < args.length) {
+	    if ("-p".equals(args[arg])) {
+		arg++;
+		npieces = intArg(args, arg, "-p");
+	    } else if ("-c".equals(args[arg])) {
+		arg++;
+		if (arg >= args.length) {
+		    fatalError("Expecting an argument to -c!");
+		}
+		ncutter = JigsawCutter.forName(args[arg]);
+		if (!(ncutter instanceof SquareCutter)
+			&& !(ncutter instanceof RectCutter)) {
+		    fatalError("Invalid cutter!");
+		}
+	    } else if ("-seed".equals(args[arg])) {
+		arg++;
+		if (arg >= args.length) {
+		    fatalError("Expecting an argument to -seed!");
+		}
+		try {
+		    nseed = Long.valueOf(args[arg]);
+		} catch (NumberFormatException e) {
+		    fatalError("Invalid seed!");
+		}
+	    } else if ("-max".equals(args[arg])) {
+		arg++;
+		nmaxSize = intArg(args, arg, "-max");
+	    } else if (args[arg].startsWith("-") || file != null) {
+		usage();
+	    } else {
+		file = new File(args[arg]);
+	    }
+	    arg++;
+	}
+	if (file == null || npieces < JigsawCutter.MIN_PIECES) {
+	    usage();
+	}
+	BufferedImage image = null;
+	try {
+	    image = ImageIO.read(file);
+	} catch (IOException e) {
+	    fatalError("Unable to read " + file + ": " + e.getMessage());
+	}
+	if (image == null) {
+	    fatalError("Unrecognized image format: " + file);
+	}
+	image = JigUtil.scaledImage(image, nmaxSize);
+
+	// Set the number of pieces directly, so it isn't limited.
+	ncutter.prefPieces = npieces;
+	ncutter.setSeed(nseed);
+	CutLayout layout = ncutter.layout(image.getWidth(), image.getHeight());
+	EdgeSolver solver = new EdgeSolver(ncutter.cut(image, layout));
+	solver.solve();
+	solver.report(System.out);
+	System.exit(solver.isSolved() ? 0 : 1);
+    }
+}
@@ -0,0 +1,254 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.AWTEvent;
+import java.awt.Color;
+import java.awt.DisplayMode;
+import java.awt.EventQueue;
+import java.awt.Graphics;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import javax.swing.JComponent;
+import javax.swing.Timer;
+
+/**
+ * Paces repainting of a component to the display's refresh rate. Areas
+ * that need repainting are collected as they're reported, and once per
+ * frame the smallest rectangle covering them all is repainted, so however
+ * fast the mouse sends events a piece being dragged is painted at most
+ * once per frame.
+ *
+ * <p>The scheduler also keeps some statistics, which can be shown over
+ * the component: how many frames are painted each second, how long it
+ * takes from an input event to the frame showing its effect being
+ * painted, and how many frames were missed because painting couldn't
+ * keep up.
+ */
+final class FrameScheduler {
+
+    /*
+     * The refresh rate assumed if the display doesn't say.
+     */
+    private static final int DEFAULT_RATE = 60;
+
+    /*
+     * How many frames to wait with nothing to paint before stopping.
+     */
+    private static final int IDLE_FRAMES = 10;
+
+    private static final int OVERLAY_WIDTH = 360;
+    private static final int OVERLAY_HEIGHT = 18;
+    private static final Color OVERLAY_BG = new Color(0, 0, 0, 160);
+
+    private final JComponent component;
+    private final long frameNanos;
+    private final Timer timer;
+
+    /*
+     * The area waiting to be repainted, the time of the earliest input
+     * event it's waiting to show, or zero, and the same for the frame
+     * that has been asked for but not yet painted.
+     */
+    private final Rectangle pending = new Rectangle();
+    private long pendingWhen;
+    private boolean flushed;
+    private long flushedWhen;
+    private long lastTick;
+    private int idle;
+
+    private boolean overlay;
+    private final LatencyHistogram latency =
+	new LatencyHistogram("Input to paint");
+    private long dropped;
+    private int frameCount;
+    private long frameWindow;
+    private int fps;
+
+    /**
+     * Create a scheduler for the given component.
+     *
+     * @param ncomponent the component to repaint
+     */
+    FrameScheduler(final JComponent ncomponent) {
+	component = ncomponent;
+	int rate = refreshRate();
+	frameNanos = 1000000000L / rate;
+	timer = new Timer(Math.max(1, 1000 / rate), new ActionListener() {
+	    @Override
+	    public void actionPerformed(final ActionEvent e) {
+		tick();
+	    }
+	});
+    }
+
+    private static int refreshRate() {
+	if (GraphicsEnvironment.isHeadless()) {
+	    return DEFAULT_RATE;
+	}
+	DisplayMode mode = GraphicsEnvironment.getLocalGraphicsEnvironment()
+	    .getDefaultScreenDevice().getDisplayMode();
+	int rate = mode.getRefreshRate();
+	return rate == DisplayMode.REFRESH_RATE_UNKNOWN ? DEFAULT_RATE : rate;
+    }
+
+    /**
+     * Ask for an area of the component to be repainted in the next frame.
+     * If the component isn't showing it's repainted straight away, as
+     * there's no display to keep pace with.
+     *
+     * @param x the x coordinate of the area, in the component
+     * @param y the y coordinate of the area, in the component
+     * @param w the width of the area
+     * @param h the height of the area
+     */
+    void repaint(final int x, final int y, final int w, final int h) {
+	if (!component.isShowing()) {
+	    component.repaint(0, x, y, w, h);
+	    return;
+	}
+	if (pending.isEmpty()) {
+	    pending.setBounds(x, y, w, h);
+	} else {
+	    pending.add(new Rectangle(x, y, w, h));
+	}
+	AWTEvent event = EventQueue.getCurrentEvent();
+	if (pendingWhen == 0L && event instanceof InputEvent) {
+	    pendingWhen = ((InputEvent) event).getWhen();
+	}
+	idle = 0;
+	if (!timer.isRunning()) {
+	    lastTick = System.nanoTime();
+	    timer.start();
+	}
+    }
+
+    /*
+     * Once per frame, repaint whatever has been asked for since the last
+     * frame. A frame is counted as missed if the last frame we asked for
+     * still hasn't been painted, or if the timer itself was late.
+     */
+    private void tick() {
+	long now = System.nanoTime();
+	long late = (now - lastTick) / frameNanos - 1;
+	lastTick = now;
+	if (pending.isEmpty()) {
+	    idle++;
+	    if (idle > IDLE_FRAMES) {
+		timer.stop();
+	    }
+	    return;
+	}
+	// Anything out of sight won't be painted, so needn't be waited for.
+	Rectangle r = pending.intersection(component.getVisibleRect());
+	pending.setBounds(0, 0, 0, 0);
+	if (r.isEmpty()) {
+	    pendingWhen = 0L;
+	    return;
+	}
+	if (flushed) {
+	    dropped++;
+	} else if (late > 0) {
+	    dropped += late;
+	}
+	if (overlay) {
+	    r.add(overlayBounds());
+	}
+	if (!flushed || flushedWhen == 0L) {
+	    flushedWhen = pendingWhen;
+	}
+	flushed = true;
+	pendingWhen = 0L;
+	component.repaint(r);
+    }
+
+    /**
+     * Note that the component has been painted, at the end of its
+     * paintComponent method.
+     */
+    void painted() {
+	long now = System.nanoTime();
+	if (flushed && flushedWhen != 0L) {
+	    latency.record((System.currentTimeMillis() - flushedWhen)
+			   * 1000000L);
+	}
+	flushed = false;
+	flushedWhen = 0L;
+	frameCount++;
+	if (now - frameWindow >= 1000000000L) {
+	    fps = (int) (frameCount * 1000000000L / (now - frameWindow));
+	    frameCount = 0;
+	    frameWindow = now;
+	}
+    }
+
+    /**
+     * Returns the latencies from input events to the frame showing them
+     * being painted.
+     *
+     * @return a LatencyHistogram of input latencies
+     */
+    LatencyHistogram getLatency() {
+	return latency;
+    }
+
+    /**
+     * Returns how many frames have been missed because painting couldn't
+     * keep up.
+     *
+     * @return the number of missed frames
+     */
+    long getDropped() {
+	return dropped;
+    }
+
+    // The overlay ----------------------------------------------------------
+
+    /**
+     * Returns whether the statistics are shown over the component.
+     *
+     * @return true if the overlay is shown
+     */
+    boolean isOverlay() {
+	return overlay;
+    }
+
+    /**
+     * Show or hide the statistics.
+     *
+     * @param flag true to show the overlay
+     */
+    void setOverlay(final boolean flag) {
+	overlay = flag;
+	component.repaint(overlayBounds());
+    }
+
+    /*
+     * The overlay sits in the top left corner of what can be seen.
+     */
+    private Rectangle overlayBounds() {
+	Rectangle r = component.getVisibleRect();
+	return new Rectangle(r.x, r.y, OVERLAY_WIDTH, OVERLAY_HEIGHT);
+    }
+
+    /**
+     * Paint the statistics, if they're being shown.
+     *
+     * @param g the Graphics of the component, unscaled
+     */
+    void paintOverlay(final Graphics g) {
+	if (!overlay) {
+	    return;
+	}
+	Rectangle r = overlayBounds();
+	g.setColor(OVERLAY_BG);
+	g.fillRect(r.x, r.y, r.width, r.height);
+	g.setColor(Color.WHITE);
+	g.drawString(String.format(
+		"%d fps  input p50 %dms p99 %dms  missed %d", fps,
+		latency.getPercentile(50) / 1000000L,
+		latency.getPercentile(99) / 1000000L, dropped),
+		     r.x + 4, r.y + OVERLAY_HEIGHT - 5);
+    }
+}
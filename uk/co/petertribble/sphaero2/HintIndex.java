@@ -0,0 +1,294 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of where the pieces of a puzzle are, and which are on top,
+ * so that a hint can be found, or the pieces in an area selected, quickly
+ * however many pieces there are.
+ *
+ * <p>Each piece that isn't joined to anything, or that is a group of
+ * joined pieces, already knows its neighbors, and its bounds. What it
+ * doesn't know is whether it can be seen. For that, each piece has a stamp
+ * that increases as pieces are raised to the top, so comparing stamps
+ * gives the z-order without searching it, and the puzzle is divided into
+ * a grid of cells, each of which lists the pieces that overlap it. A piece
+ * is visible if, at one of a few points on it, no piece in that cell with
+ * a later stamp covers the point.
+ *
+ * <p>Moving a piece just marks it; the grid is brought up to date only
+ * when a hint is needed, so that dragging a piece costs nothing extra.
+ */
+final class HintIndex {
+
+    /*
+     * The size of a grid cell in pixels.
+     */
+    private static final int CELL = 64;
+
+    /*
+     * Points on a piece that are checked to see if it is covered, as
+     * fractions in quarters of its width and height.
+     */
+    private static final int[] SAMPLES = {2, 1, 3};
+
+    private static final class Entry {
+	private long stamp;
+	private int col0;
+	private int row0;
+	private int col1 = -1;
+	private int row1 = -1;
+    }
+
+    private final Map<Piece, Entry> entries = new IdentityHashMap<>();
+    private final Set<Piece> dirty =
+	Collections.newSetFromMap(new IdentityHashMap<Piece, Boolean>());
+    private final List<List<Piece>> grid = new ArrayList<>();
+    private int columns;
+    private int rows;
+    private long top;
+    private long bottom;
+
+    /**
+     * Start again with the given pieces.
+     *
+     * @param width the width of the puzzle
+     * @param height the height of the puzzle
+     * @param zorder the pieces in z-order, with the topmost last
+     */
+    void reset(final int width, final int height, final List<Piece> zorder) {
+	columns = Math.max(1, (width + CELL - 1) / CELL);
+	rows = Math.max(1, (height + CELL - 1) / CELL);
+	grid.clear();
+	for (int i = 0; i < columns * rows; i++) {
+	    grid.add(new ArrayList<Piece>());
+	}
+	entries.clear();
+	dirty.clear();
+	top = 0L;
+	bottom = 0L;
+	for (Piece piece : zorder) {
+	    raise(piece);
+	}
+    }
+
+    /**
+     * Note that a piece has been put on top of all the others. A piece
+     * that hasn't been seen before is added.
+     *
+     * @param piece the Piece that is now on top
+     */
+    void raise(final Piece piece) {
+	entry(piece).stamp = ++top;
+    }
+
+    /**
+     * Note that a piece has been put underneath all the others.
+     *
+     * @param piece the Piece that is now at the bottom
+     */
+    void lower(final Piece piece) {
+	entry(piece).stamp = --bottom;
+    }
+
+    /**
+     * Note that a piece has moved, or changed shape.
+     *
+     * @param piece the Piece that has moved
+     */
+    void moved(final Piece piece) {
+	if (entries.containsKey(piece)) {
+	    dirty.add(piece);
+	}
+    }
+
+    /**
+     * Note that a piece has gone, having been joined to another.
+     *
+     * @param piece the Piece that has gone
+     */
+    void removed(final Piece piece) {
+	Entry e = entries.remove(piece);
+	if (e != null) {
+	    unplace(piece, e);
+	    dirty.remove(piece);
+	}
+    }
+
+    private Entry entry(final Piece piece) {
+	Entry e = entries.get(piece);
+	if (e == null) {
+	    e = new Entry();
+	    entries.put(piece, e);
+	}
+	dirty.add(piece);
+	return e;
+    }
+
+    private void unplace(final Piece piece, final Entry e) {
+	for (int r = e.row0; r <= e.row1; r++) {
+	    for (int c = e.col0; c <= e.col1; c++) {
+		grid.get(r * columns + c).remove(piece);
+	    }
+	}
+    }
+
+    private int column(final int x) {
+	return Math.max(0, Math.min(columns - 1, Math.floorDiv(x, CELL)));
+    }
+
+    private int row(final int y) {
+	return Math.max(0, Math.min(rows - 1, Math.floorDiv(y, CELL)));
+    }
+
+    /*
+     * Put the pieces that have moved into the right cells.
+     */
+    private void flush() {
+	for (Piece piece : dirty) {
+	    Entry e = entries.get(piece);
+	    unplace(piece, e);
+	    e.col0 = column(piece.getPuzzleX());
+	    e.row0 = row(piece.getPuzzleY());
+	    e.col1 = column(piece.getPuzzleX() + piece.getCurrentWidth() - 1);
+	    e.row1 = row(piece.getPuzzleY() + piece.getCurrentHeight() - 1);
+	    for (int r = e.row0; r <= e.row1; r++) {
+		for (int c = e.col0; c <= e.col1; c++) {
+		    grid.get(r * columns + c).add(piece);
+		}
+	    }
+	}
+	dirty.clear();
+    }
+
+    /*
+     * Whether some part of the piece isn't covered by any piece above it.
+     */
+    private boolean isExposed(final Piece piece) {
+	long stamp = entries.get(piece).stamp;
+	for (int sy : SAMPLES) {
+	    for (int sx : SAMPLES) {
+		int x = piece.getPuzzleX() + piece.getCurrentWidth() * sx / 4;
+		int y = piece.getPuzzleY() + piece.getCurrentHeight() * sy / 4;
+		if (!piece.contains(x, y)) {
+		    continue;
+		}
+		boolean covered = false;
+		for (Piece other : grid.get(row(y) * columns + column(x))) {
+		    if (entries.get(other).stamp > stamp
+			    && other.contains(x, y)) {
+			covered = true;
+			break;
+		    }
+		}
+		if (!covered) {
+		    return true;
+		}
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Find the pieces in an area, looking only at the cells the area
+     * covers.
+     *
+     * @param area the area to look in
+     * @param inside if true, only pieces entirely inside the area are
+     * found; if false, any piece that overlaps it
+     *
+     * @return the Pieces found, in z-order with the topmost last
+     */
+    List<Piece> find(final Rectangle area, final boolean inside) {
+	flush();
+	List<Piece> found = new ArrayList<>();
+	if (area.isEmpty()) {
+	    return found;
+	}
+	int c0 = column(area.x);
+	int r0 = row(area.y);
+	int c1 = column(area.x + area.width - 1);
+	int r1 = row(area.y + area.height - 1);
+	for (int r = r0; r <= r1; r++) {
+	    for (int c = c0; c <= c1; c++) {
+		for (Piece piece : grid.get(r * columns + c)) {
+		    // A piece in several cells is only looked at in the
+		    // first of them that the area covers.
+		    Entry e = entries.get(piece);
+		    if (c != Math.max(e.col0, c0)
+			    || r != Math.max(e.row0, r0)) {
+			continue;
+		    }
+		    int x = piece.getPuzzleX();
+		    int y = piece.getPuzzleY();
+		    int w = piece.getCurrentWidth();
+		    int h = piece.getCurrentHeight();
+		    if (inside ? area.contains(x, y, w, h)
+			    : area.intersects(x, y, w, h)) {
+			found.add(piece);
+		    }
+		}
+	    }
+	}
+	found.sort(new Comparator<Piece>() {
+	    @Override
+	    public int compare(final Piece p1, final Piece p2) {
+		return Long.compare(entries.get(p1).stamp,
+				    entries.get(p2).stamp);
+	    }
+	});
+	return found;
+    }
+
+    /**
+     * Find a piece that fits the given piece. Pieces that can be seen are
+     * preferred to those that are off the screen or under other pieces,
+     * and then nearer pieces to further ones.
+     *
+     * @param piece the Piece to find a fit for
+     * @param view the part of the puzzle that can be seen
+     *
+     * @return a Piece that fits, or null if there is none
+     */
+    Piece hint(final Piece piece, final Rectangle view) {
+	if (!entries.containsKey(piece)) {
+	    return null;
+	}
+	flush();
+	int cx = piece.getPuzzleX() + piece.getCurrentWidth() / 2;
+	int cy = piece.getPuzzleY() + piece.getCurrentHeight() / 2;
+	Piece best = null;
+	int bestRank = Integer.MAX_VALUE;
+	long bestDistance = Long.MAX_VALUE;
+	for (Piece neighbor : piece.neighbors) {
+	    if (!entries.containsKey(neighbor)) {
+		continue;
+	    }
+	    int rank = 2;
+	    if (view.intersects(neighbor.getPuzzleX(), neighbor.getPuzzleY(),
+				neighbor.getCurrentWidth(),
+				neighbor.getCurrentHeight())) {
+		rank = isExposed(neighbor) ? 0 : 1;
+	    }
+	    long dx = neighbor.getPuzzleX() + neighbor.getCurrentWidth() / 2
+		- cx;
+	    long dy = neighbor.getPuzzleY() + neighbor.getCurrentHeight() / 2
+		- cy;
+	    long distance = dx * dx + dy * dy;
+	    if (rank < bestRank
+		    || rank == bestRank && distance < bestDistance) {
+		best = neighbor;
+		bestRank = rank;
+		bestDistance = distance;
+	    }
+	}
+	return best;
+    }
+}
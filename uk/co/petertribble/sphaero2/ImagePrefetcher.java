@@ -0,0 +1,267 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Prepares the next puzzle from a folder in the background. While the
+ * current puzzle is being solved, a random image is selected from the
+ * folder, read, resized and cut on a low priority thread, so that when
+ * the next puzzle is requested from the same folder it can be started
+ * straight away.
+ *
+ * <p>Each stage is only attempted if it looks like it will fit in the
+ * memory that's currently free, so a prefetch may end up with just a
+ * file, or a file and an image, rather than a fully cut puzzle. Whatever
+ * hasn't been prepared is done in the normal way when the puzzle starts.
+ *
+ * <p>Nothing ever waits for a prefetch. When the next puzzle is wanted,
+ * whatever is ready is taken and the rest is abandoned, so the player
+ * never waits for an image to be read or cut without seeing progress.
+ */
+public final class ImagePrefetcher implements Runnable {
+
+    /**
+     * Only use up to this fraction of the free heap for prefetching.
+     */
+    private static final int BUDGET_DIVISOR = 2;
+
+    /**
+     * Roughly how many bytes prefetch threads are using, including those
+     * that have been abandoned but haven't yet noticed.
+     */
+    private static final AtomicLong IN_FLIGHT = new AtomicLong();
+
+    private final File folder;
+    private final JigsawCutter cutter;
+    private final Thread thread;
+    private volatile boolean cancelled;
+
+    private File file;
+    private BufferedImage image;
+    private CutLayout layout;
+    private Piece[] pieces;
+
+    /**
+     * Create a new ImagePrefetcher, which will prepare a puzzle from a
+     * random image in the given folder.
+     *
+     * @param nfolder the folder to select an image from
+     * @param ncutter the cutter that the next puzzle will use
+     */
+    public ImagePrefetcher(final File nfolder, final JigsawCutter ncutter) {
+	folder = nfolder;
+	cutter = ncutter.copy();
+	thread = new Thread(this, "sphaero2-prefetch");
+	thread.setDaemon(true);
+	thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Start preparing the next puzzle in the background.
+     */
+    public void start() {
+	thread.start();
+    }
+
+    /**
+     * Returns whether this prefetch was started for the given folder and
+     * cutter settings, and can therefore be used for the next puzzle.
+     *
+     * @param nfolder the folder the next puzzle is to come from
+     * @param ncutter the cutter the next puzzle is to use
+     *
+     * @return true if the prefetched puzzle can be used
+     */
+    public boolean matches(final File nfolder, final JigsawCutter ncutter) {
+	return !cancelled
+	    && folder.getAbsoluteFile().equals(nfolder.getAbsoluteFile())
+	    && cutter.getName().equals(ncutter.getName())
+	    && cutter.prefPieces == ncutter.prefPieces;
+    }
+
+    /**
+     * Stop preparing, keeping whatever is already ready. A cut in progress
+     * is abandoned at its next piece, and an image still being read is
+     * thrown away once it has been. This doesn't wait for the prefetch
+     * thread, so it can be called on the event thread.
+     */
+    public void stop() {
+	synchronized (this) {
+	    cancelled = true;
+	}
+	cutter.cancel();
+    }
+
+    /**
+     * Abandon this prefetch, releasing anything that has been prepared.
+     * Like {@link #stop()}, this doesn't wait for the prefetch thread.
+     */
+    public void cancel() {
+	stop();
+	synchronized (this) {
+	    file = null;
+	    image = null;
+	    layout = null;
+	    pieces = null;
+	}
+    }
+
+    /**
+     * Returns roughly how many bytes prefetch threads are still using for
+     * work that hasn't finished, whether or not it has been abandoned.
+     *
+     * @return the number of bytes in use by prefetch threads
+     */
+    public static long inFlightBytes() {
+	return IN_FLIGHT.get();
+    }
+
+    /**
+     * Returns the image file that was selected, or null if none could be
+     * found.
+     *
+     * @return the selected image File
+     */
+    public synchronized File getFile() {
+	return file;
+    }
+
+    /**
+     * Returns the resized image, or null if it hasn't been read.
+     *
+     * @return the resized image
+     */
+    public synchronized BufferedImage getImage() {
+	return image;
+    }
+
+    /**
+     * Returns the layout the pieces were cut with, or null if the image
+     * hasn't been cut.
+     *
+     * @return the CutLayout used to cut the image
+     */
+    public synchronized CutLayout getLayout() {
+	return layout;
+    }
+
+    /**
+     * Returns the cut pieces, or null if the image hasn't been cut.
+     *
+     * @return the Pieces cut from the image
+     */
+    public synchronized Piece[] getPieces() {
+	return pieces;
+    }
+
+    @Override
+    public void run() {
+	long[] held = new long[1];
+	try {
+	    prefetch(held);
+	} finally {
+	    IN_FLIGHT.addAndGet(-held[0]);
+	}
+    }
+
+    /*
+     * Do the work, adding what it's expected to use to both the in flight
+     * total and the given count, so that it can be taken off again when
+     * the thread finishes.
+     */
+    private void prefetch(final long[] held) {
+	File nfile;
+	try {
+	    nfile = JigUtil.getRandomImageFile(folder);
+	} catch (FileNotFoundException e) {
+	    return;
+	}
+	synchronized (this) {
+	    if (cancelled) {
+		return;
+	    }
+	    file = nfile;
+	}
+	long size = decodedSize(nfile);
+	if (!fits(size)) {
+	    return;
+	}
+	hold(held, size);
+	BufferedImage nimage;
+	try {
+	    nimage = JigUtil.readImage(nfile);
+	} catch (IOException e) {
+	    return;
+	}
+	synchronized (this) {
+	    if (cancelled) {
+		return;
+	    }
+	    image = nimage;
+	}
+	size = MemoryGovernor.estimate(nimage.getWidth(), nimage.getHeight(),
+				       cutter, false);
+	if (!fits(size)) {
+	    return;
+	}
+	hold(held, size);
+	CutLayout nlayout = cutter.layout(nimage.getWidth(),
+					  nimage.getHeight());
+	Piece[] npieces;
+	try {
+	    npieces = cutter.cut(nimage, nlayout);
+	} catch (CancellationException e) {
+	    return;
+	}
+	synchronized (this) {
+	    if (!cancelled) {
+		layout = nlayout;
+		pieces = npieces;
+	    }
+	}
+    }
+
+    private static void hold(final long[] held, final long bytes) {
+	held[0] += bytes;
+	IN_FLIGHT.addAndGet(bytes);
+    }
+
+    /*
+     * How many bytes will the given image file take once decoded? Only the
+     * header is read. If we can't tell, assume it won't fit.
+     */
+    private static long decodedSize(final File f) {
+	try (ImageInputStream iis = ImageIO.createImageInputStream(f)) {
+	    Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+	    if (readers.hasNext()) {
+		ImageReader reader = readers.next();
+		try {
+		    reader.setInput(iis);
+		    return 4L * reader.getWidth(0) * reader.getHeight(0);
+		} finally {
+		    reader.dispose();
+		}
+	    }
+	} catch (IOException e) { }
+	return Long.MAX_VALUE;
+    }
+
+    /*
+     * Is there room for something of the given size in our share of the
+     * free heap?
+     */
+    private static boolean fits(final long bytes) {
+	Runtime rt = Runtime.getRuntime();
+	long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+	return bytes < free / BUDGET_DIVISOR;
+    }
+}
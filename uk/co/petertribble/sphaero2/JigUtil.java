@@ -2,6 +2,7 @@ package uk.co.petertribble.sphaero2;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
 import java.awt.Image;
 import java.awt.MediaTracker;
 import java.awt.Toolkit;
@@ -9,7 +10,11 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.ThreadLocalRandom;
+import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 
 /**
@@ -42,7 +47,26 @@ public final class JigUtil {
     }
 
     /**
-     * Rescale the image to fit on the screen, allowing for a border.
+     * Returns how many device pixels there are to each pixel the user
+     * interface is laid out in, on the default screen. This is more than
+     * one on a high resolution screen that the user interface is scaled
+     * up for.
+     *
+     * @return the default screen's scale, or one if there is no screen
+     */
+    public static double deviceScale() {
+	if (GraphicsEnvironment.isHeadless()) {
+	    return 1.0;
+	}
+	return GraphicsEnvironment.getLocalGraphicsEnvironment()
+	    .getDefaultScreenDevice().getDefaultConfiguration()
+	    .getDefaultTransform().getScaleX();
+    }
+
+    /**
+     * Rescale the image to fit on the screen, allowing for a border. The
+     * size is worked out in device pixels, so that on a scaled screen the
+     * puzzle is cut at the screen's full resolution.
      *
      * @param image the input Image
      *
@@ -50,27 +74,134 @@ public final class JigUtil {
      */
     public static BufferedImage resizedImage(final BufferedImage image) {
 	Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
-	int wtarg = 3 * screen.width / 5;
-	int htarg = 3 * screen.height / 5;
+	double dscale = deviceScale();
+	int wtarg = (int) (3 * screen.width * dscale / 5);
+	int htarg = (int) (3 * screen.height * dscale / 5);
 	/*
 	 * If already small enough, just recreate the Image. The reason for
 	 * this is that ImageIO uses type 0, which gives a very noticeable
-	 * performance hit. So we always explicitly rewrite to ARGB.
+	 * performance hit. So we always explicitly rewrite to ARGB, which
+	 * also lets rectangular pieces share the image's pixels.
+	 *
+	 * On a scaled screen, a small image is scaled up by the screen's
+	 * scale, so that it appears the same size as it would on an unscaled
+	 * screen, but no further than the target.
 	 */
-	if (wtarg > image.getWidth() && htarg > image.getHeight()) {
-	    wtarg = image.getWidth();
-	    htarg = image.getHeight();
+	int width = image.getWidth();
+	int height = image.getHeight();
+	if (wtarg > width && htarg > height) {
+	    double up = Math.min(dscale, Math.min((double) wtarg / width,
+						  (double) htarg / height));
+	    wtarg = Math.max(width, (int) Math.round(width * up));
+	    htarg = Math.max(height, (int) Math.round(height * up));
 	}
+	return resizedImage(image, wtarg, htarg);
+    }
+
+    /**
+     * Rescale the image to the given size.
+     *
+     * @param image the input Image
+     * @param wtarg the desired width
+     * @param htarg the desired height
+     *
+     * @return the resized Image
+     */
+    public static BufferedImage resizedImage(final BufferedImage image,
+					     final int wtarg,
+					     final int htarg) {
 	// new image of the desired size
 	BufferedImage nimage = new BufferedImage(wtarg, htarg,
-		image.getType() == 0 ? BufferedImage.TYPE_INT_ARGB
-						: image.getType());
+						 BufferedImage.TYPE_INT_ARGB);
 	Graphics2D g2 = nimage.createGraphics();
 	g2.drawImage(image, 0, 0, wtarg, htarg, null);
 	g2.dispose();
 	return nimage;
     }
 
+    /**
+     * Rescale the image, if necessary, to fit within the given size.
+     *
+     * @param image the input Image
+     * @param maxSize if positive, the maximum width and height
+     *
+     * @return the resized Image
+     */
+    public static BufferedImage scaledImage(final BufferedImage image,
+					    final int maxSize) {
+	int w = image.getWidth();
+	int h = image.getHeight();
+	if (maxSize > 0 && (w > maxSize || h > maxSize)) {
+	    double scale = Math.min((double) maxSize / w,
+				    (double) maxSize / h);
+	    w = Math.max(1, (int) (w * scale));
+	    h = Math.max(1, (int) (h * scale));
+	}
+	return resizedImage(image, w, h);
+    }
+
+    /**
+     * Read an image file, and rescale it to fit on the screen.
+     *
+     * @param file the image File to read
+     *
+     * @return the resized Image
+     *
+     * @throws IOException if the file cannot be read or is not an image
+     */
+    public static BufferedImage readImage(final File file) throws IOException {
+	PuzzleEvents.ImageLoad event = new PuzzleEvents.ImageLoad();
+	event.begin();
+	long start = System.nanoTime();
+	BufferedImage image = ImageIO.read(file);
+	if (image == null) {
+	    throw new IOException("Unrecognized image format");
+	}
+	long decoded = System.nanoTime();
+	BufferedImage nimage = resizedImage(image);
+	if (event.shouldCommit()) {
+	    event.file = file.getPath();
+	    event.decode = decoded - start;
+	    event.resize = System.nanoTime() - decoded;
+	    event.width = nimage.getWidth();
+	    event.height = nimage.getHeight();
+	    event.commit();
+	}
+	return nimage;
+    }
+
+    /**
+     * Returns a hash of the pixels in the given image, so that we can tell
+     * whether an image is the same as one we've seen before.
+     *
+     * @param image the image to hash
+     *
+     * @return a SHA-256 hash of the image's pixels
+     */
+    public static byte[] imageHash(final BufferedImage image) {
+	MessageDigest md;
+	try {
+	    md = MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    // every Java implementation is required to support SHA-256
+	    throw new IllegalStateException(e);
+	}
+	int width = image.getWidth();
+	int[] row = new int[width];
+	byte[] bytes = new byte[4 * width];
+	for (int y = 0; y < image.getHeight(); y++) {
+	    image.getRGB(0, y, width, 1, row, 0, width);
+	    for (int x = 0; x < width; x++) {
+		bytes[4 * x] = (byte) (row[x] >> 24);
+		bytes[4 * x + 1] = (byte) (row[x] >> 16);
+		bytes[4 * x + 2] = (byte) (row[x] >> 8);
+		bytes[4 * x + 3] = (byte) row[x];
+	    }
+	    md.update(bytes);
+	}
+	return md.digest();
+    }
+
     /**
      * Returns a random image file from the given folder, including any
      * subfolders. The algorithm picks a file randomly from the folder. If
@@ -177,6 +308,8 @@ public final class JigUtil {
     public static String helpMsg() {
 	return "<html>Drag pieces with the mouse to fit them together.  If"
 	    + " they do, they'll join and move as a unit from then on."
+	    + " Turn the mouse wheel to zoom in and out, and drag the"
+	    + " background to move around the puzzle."
 	    + "<p> Keyboard commands: <br>"
 	    + "<table>"
 	    + tableLine(JigsawPuzzle.ROTATE_LEFT,
@@ -186,6 +319,9 @@ public final class JigUtil {
 	    + tableLine(JigsawPuzzle.SHUFFLE_KEY,
 			"shuffle all pieces (good for finding pieces "
 			+ "accidentally moved off the board)")
+	    + tableLine(JigsawPuzzle.SORT_KEY,
+			"sort pieces into trays: joined pieces, edge "
+			+ "pieces, then the rest by color")
 	    + tableLine(JigsawPuzzle.PUSH_KEY,
 			"push the top piece to the back (handy if it's "
 			+ "hiding other pieces)")
@@ -197,8 +333,18 @@ public final class JigUtil {
 			"toggle clear mode; mouse now drags over spaces to "
 			+ "be cleared of pieces; cleared pieces are placed "
 			+ "randomly elsewhere")
+	    + tableLine(JigsawPuzzle.SELECT,
+			"toggle select mode; mouse now drags over pieces to "
+			+ "select them, then drags, rotates, or pushes them "
+			+ "all together")
 	    + tableLine(JigsawPuzzle.HIDE,
 			"toggle hidden mode to pause or unpause the puzzle")
+	    + tableLine(JigsawPuzzle.HINT,
+			"show a piece that fits the current piece")
+	    + tableLine(JigsawPuzzle.ZOOM_IN, "zoom in")
+	    + tableLine(JigsawPuzzle.ZOOM_OUT, "zoom out")
+	    + tableLine(JigsawPuzzle.FRAME_STATS,
+			"show or hide frame rate and input latency")
 	    + "</table></html>";
     }
 }
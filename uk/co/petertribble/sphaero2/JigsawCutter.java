@@ -1,6 +1,17 @@
 package uk.co.petertribble.sphaero2;
 
+import java.awt.EventQueue;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.SplittableRandom;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.JProgressBar;
 
 /**
@@ -35,21 +46,48 @@ public abstract class JigsawCutter {
      */
     public int prefPieces = DEFAULT_PIECES;
 
+    /**
+     * The cache of cut pieces shared by all cutters, if any.
+     */
+    private static CutCache cache;
+
+    /**
+     * The seed for every layout, or null to use a new seed each time.
+     */
+    private Long seed;
+
+    /**
+     * Whether pieces are trimmed to the pixels they cover.
+     */
+    private boolean trim = true;
+
     /**
      * A bar to show progress to the user.
      */
     private JProgressBar jp;
 
     /**
-     * How far the progress bar has got.
+     * How far the progress bar has got. Pieces may be cut in parallel, so
+     * progress can be updated from several threads at once.
      */
-    private int iprogress;
+    private final AtomicInteger iprogress = new AtomicInteger();
+
+    /**
+     * Whether an update of the progress bar is waiting to be run on the
+     * event thread.
+     */
+    private final AtomicBoolean progressPosted = new AtomicBoolean();
 
     /**
      * The maximum value progress can reach.
      */
     private int progressmax;
 
+    /**
+     * Whether cutting has been abandoned.
+     */
+    private volatile boolean cancelled;
+
     @Override
     public final String toString() {
 	return getName();
@@ -73,6 +111,75 @@ public abstract class JigsawCutter {
      */
     public abstract String getDescription();
 
+    /**
+     * Returns how many pixels the pieces' bounding rectangles cover in all,
+     * as a multiple of the pixels in the image. Pieces whose knobs reach
+     * into their neighbors' rectangles cover the image more than once, and
+     * hold that much more data. This is used to estimate how much memory
+     * a puzzle will need before it's cut.
+     *
+     * @return the overlap of the pieces' bounding rectangles
+     */
+    public double getOverlap() {
+	return 1.0;
+    }
+
+    /**
+     * Creates a new, unconfigured cutter of the same style as this one.
+     *
+     * @return a new cutter of the same style as this one
+     */
+    protected abstract JigsawCutter newCutter();
+
+    /**
+     * Returns a new cutter of the same style as this one, asking for the
+     * same number of pieces and using the same seed, but without a
+     * progress bar. This allows an
+     * image to be cut in the background without disturbing any cut that
+     * this cutter is performing.
+     *
+     * @return a copy of this cutter
+     */
+    public final JigsawCutter copy() {
+	JigsawCutter ncutter = newCutter();
+	ncutter.prefPieces = prefPieces;
+	ncutter.seed = seed;
+	ncutter.trim = trim;
+	return ncutter;
+    }
+
+    /**
+     * Returns a new instance of each of the available cutters.
+     *
+     * @return an array of all the available cutters
+     */
+    public static JigsawCutter[] getCutters() {
+	return new JigsawCutter[] {
+	    new Classic4Cutter(),
+	    new ClassicCutter(),
+	    new SquareCutter(),
+	    new RectCutter(),
+	    new QuadCutter(),
+	};
+    }
+
+    /**
+     * Returns a new instance of the cutter with the given name.
+     *
+     * @param name the name of the cutter, as returned by getName()
+     *
+     * @return a new JigsawCutter, or null if there is no cutter with the
+     * given name
+     */
+    public static JigsawCutter forName(final String name) {
+	for (JigsawCutter cutter : getCutters()) {
+	    if (cutter.getName().equalsIgnoreCase(name)) {
+		return cutter;
+	    }
+	}
+	return null;
+    }
+
     /**
      * Cuts the given Image into Pieces, and returns them.  This is a
      * potentially time-consuming operation, and should not be run in the
@@ -82,7 +189,283 @@ public abstract class JigsawCutter {
      *
      * @return the array of cut Pieces
      */
-    public abstract Piece[] cut(BufferedImage image);
+    public Piece[] cut(final BufferedImage image) {
+	JigUtil.ensureLoaded(image);
+	return cut(image, layout(image.getWidth(), image.getHeight()));
+    }
+
+    /**
+     * Makes all the random decisions about how an image of the given size
+     * is to be cut, but doesn't cut it. This is quick, as no image data is
+     * involved. If this cutter has been given a seed, that is used;
+     * otherwise a new seed is chosen.
+     *
+     * @param width the width of the image to be cut
+     * @param height the height of the image to be cut
+     *
+     * @return the CutLayout describing the pieces
+     */
+    public CutLayout layout(final int width, final int height) {
+	return layout(width, height,
+		      seed == null ? ThreadLocalRandom.current().nextLong()
+		      : seed.longValue());
+    }
+
+    /**
+     * Makes all the random decisions about how an image of the given size
+     * is to be cut, using the given seed. The same seed always gives the
+     * same layout, which records the seed.
+     *
+     * <p>Each kind of decision should draw on its own stream, split from
+     * a SplittableRandom created with the seed, so that changing how one
+     * kind of decision is made doesn't change the others.
+     *
+     * @param width the width of the image to be cut
+     * @param height the height of the image to be cut
+     * @param nseed the seed for all the random decisions
+     *
+     * @return the CutLayout describing the pieces
+     */
+    public abstract CutLayout layout(int width, int height, long nseed);
+
+    /**
+     * Cuts the given Image into Pieces according to the given layout, and
+     * returns them. The same image and layout will always give the same
+     * pieces. This is a potentially time-consuming operation, and should
+     * not be run in the AWT thread.
+     *
+     * <p>If there is a cache, this cutter is worth caching, and this image
+     * has been cut with this layout before, the pieces are taken from the
+     * cache instead of being cut afresh.
+     *
+     * <p>Pieces are only cached if they're trimmed.
+     *
+     * <p>Either way, the pieces are then classified for sorting into
+     * trays, while they still have all their neighbors.
+     *
+     * @param image the image to be cut
+     * @param layout the layout previously created by this style of cutter
+     * for an image of this size
+     *
+     * @return the array of cut Pieces
+     */
+    public Piece[] cut(final BufferedImage image, final CutLayout layout) {
+	CutCache ncache = cache;
+	Piece[] pieces;
+	if (ncache == null || !isCacheable() || !trim) {
+	    pieces = cutPieces(image, layout);
+	} else {
+	    String key = CutCache.key(image, this, layout);
+	    pieces = ncache.get(key, image, this, layout);
+	    if (pieces == null) {
+		pieces = cutPieces(image, layout);
+		ncache.put(key, pieces);
+	    }
+	}
+	TraySorter.classify(pieces);
+	return pieces;
+    }
+
+    /**
+     * Cuts the given Image into Pieces according to the given layout, and
+     * returns them, without using the cache.
+     *
+     * @param image the image to be cut
+     * @param layout the layout previously created by this style of cutter
+     * for an image of this size
+     *
+     * @return the array of cut Pieces
+     */
+    protected abstract Piece[] cutPieces(BufferedImage image,
+					 CutLayout layout);
+
+    /**
+     * Returns whether pieces cut by this cutter are worth caching. Only
+     * cutters that take much longer to cut an image than it takes to hash
+     * it and read back the cached pieces should be cached.
+     *
+     * @return true if this cutter's pieces should be cached
+     */
+    protected boolean isCacheable() {
+	return false;
+    }
+
+    /**
+     * Returns whether the pieces this cutter makes share the pixels of the
+     * picture rather than copying them. Such pieces hold only the data of
+     * their current rotation, which is used to estimate how much memory a
+     * puzzle will need.
+     *
+     * @return true if this cutter's pieces share the picture's pixels
+     */
+    protected boolean sharesPicture() {
+	return false;
+    }
+
+    /**
+     * Returns the ARGB pixels of the whole of the given image, row by row,
+     * for rectangular pieces to share. If the image already holds its
+     * pixels that way, they're shared with it rather than copied, so the
+     * image must not be drawn on afterwards.
+     *
+     * <p>Once its pixel array has been handed out, Java2D can no longer
+     * keep a copy of the image in video memory, so drawing it, as the
+     * puzzle does to fade in the finished picture, is done in software.
+     * That's a few draws at the end of a puzzle, which is a small price
+     * for not holding the picture's pixels twice.
+     *
+     * @param image the image to be cut
+     *
+     * @return the pixels of the image
+     */
+    protected static int[] getPictureData(final BufferedImage image) {
+	int width = image.getWidth();
+	int height = image.getHeight();
+	if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+	    WritableRaster raster = image.getRaster();
+	    SampleModel sm = raster.getSampleModel();
+	    if (raster.getSampleModelTranslateX() == 0
+		    && raster.getSampleModelTranslateY() == 0
+		    && raster.getDataBuffer().getOffset() == 0
+		    && sm instanceof SinglePixelPackedSampleModel
+		    && ((SinglePixelPackedSampleModel) sm).getScanlineStride()
+			== width) {
+		return ((DataBufferInt) raster.getDataBuffer()).getData();
+	    }
+	}
+	return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+    /**
+     * Sets the cache used by all cutters to avoid cutting the same image
+     * the same way more than once.
+     *
+     * @param ncache the CutCache to use, or null to always cut afresh
+     */
+    public static void setCache(final CutCache ncache) {
+	cache = ncache;
+    }
+
+    /**
+     * Returns the cache used by all cutters.
+     *
+     * @return the CutCache in use, or null if there is none
+     */
+    public static CutCache getCache() {
+	return cache;
+    }
+
+    /**
+     * Choose a random initial rotation for each of the given number of
+     * pieces.
+     *
+     * @param npieces the number of pieces
+     * @param random the source of random numbers to use
+     *
+     * @return an array of rotations, each 0, 90, 180, or 270
+     */
+    protected static int[] randomRotations(final int npieces,
+					   final SplittableRandom random) {
+	int[] rotations = new int[npieces];
+	for (int i = 0; i < npieces; i++) {
+	    rotations[i] = random.nextInt(4) * 90;
+	}
+	return rotations;
+    }
+
+    /**
+     * Sets the seed to be used for every layout, so that the same image
+     * is always cut the same way.
+     *
+     * @param nseed the seed to use, or null to choose a new seed for
+     * every layout
+     */
+    public void setSeed(final Long nseed) {
+	seed = nseed;
+    }
+
+    /**
+     * Sets whether pieces are trimmed to the pixels they cover. Trimmed
+     * pieces are bounded by their outlines rather than by the control
+     * points of their curves, and then cropped to their opaque pixels, so
+     * they hold less data. They look exactly the same either way.
+     *
+     * @param ntrim false to leave pieces untrimmed, as they used to be
+     */
+    public void setTrim(final boolean ntrim) {
+	trim = ntrim;
+    }
+
+    /**
+     * Returns the rectangle of the picture that a piece with the given
+     * outline covers, clipped to the picture. Trimmed, this is just the
+     * pixels inside the outline. Untrimmed, it's also the control points
+     * of the curves of any knobs, which stick out well beyond the knobs.
+     *
+     * @param outline the outline of the piece
+     * @param twidth the width of the picture
+     * @param theight the height of the picture
+     *
+     * @return the rectangle of the picture the piece covers
+     */
+    final Rectangle getPieceBounds(final Outline outline,
+				   final int twidth, final int theight) {
+	Rectangle box = trim ? outline.getBounds()
+	    : outline.getControlBounds();
+	return box.intersection(new Rectangle(0, 0, twidth, theight));
+    }
+
+    /**
+     * Creates a new Piece from data that has been masked to its outline.
+     * If trimming, the data is first cropped to its opaque pixels.
+     *
+     * @param data the masked image data
+     * @param xpos X position of the data in the picture
+     * @param ypos Y position of the data in the picture
+     * @param width the width of the data
+     * @param height the height of the data
+     * @param twidth the width of the picture
+     * @param theight the height of the picture
+     * @param rotation the initial rotation of the Piece
+     *
+     * @return the new Piece
+     */
+    protected final Piece newPiece(final int[] data,
+				   final int xpos, final int ypos,
+				   final int width, final int height,
+				   final int twidth, final int theight,
+				   final int rotation) {
+	int x1 = width;
+	int y1 = height;
+	int x2 = -1;
+	int y2 = -1;
+	if (trim) {
+	    for (int j = 0; j < height; j++) {
+		int row = j * width;
+		for (int i = 0; i < width; i++) {
+		    if ((data[row + i] >>> 24) != 0) {
+			x1 = Math.min(x1, i);
+			x2 = Math.max(x2, i);
+			y1 = Math.min(y1, j);
+			y2 = j;
+		    }
+		}
+	    }
+	}
+	if (x2 < 0 || x2 - x1 + 1 == width && y2 - y1 + 1 == height) {
+	    return new Piece(data, xpos, ypos, width, height,
+			     twidth, theight, rotation);
+	}
+	int cwidth = x2 - x1 + 1;
+	int cheight = y2 - y1 + 1;
+	int[] cdata = new int[cwidth * cheight];
+	for (int j = 0; j < cheight; j++) {
+	    System.arraycopy(data, (y1 + j) * width + x1,
+			     cdata, j * cwidth, cwidth);
+	}
+	return new Piece(cdata, xpos + x1, ypos + y1, cwidth, cheight,
+			 twidth, theight, rotation);
+    }
 
     /**
      * Sets the preferred number of pieces to create.  The actual number
@@ -112,7 +495,7 @@ public abstract class JigsawCutter {
 	jp = njp;
 	if (progressmax > 0) {
 	    jp.setMaximum(progressmax);
-	    jp.setValue(iprogress);
+	    jp.setValue(iprogress.get());
 	}
     }
 
@@ -124,25 +507,50 @@ public abstract class JigsawCutter {
      */
     public final void startProgress(final int nprogressmax) {
 	progressmax = nprogressmax;
-	iprogress = 0;
+	iprogress.set(0);
 	if (jp != null) {
 	    jp.setMaximum(progressmax);
-	    jp.setValue(iprogress);
+	    jp.setValue(0);
 	}
     }
 
     /**
-     * Update progress of this cutting operation.
+     * Abandon cutting. Any cut in progress, and any later cut, throws a
+     * CancellationException the next time it updates its progress. This
+     * may be called from any thread.
+     */
+    public final void cancel() {
+	cancelled = true;
+    }
+
+    /**
+     * Update progress of this cutting operation. This may be called from
+     * any thread. The progress bar is updated on the event thread, at
+     * most once per event however many pieces have been cut since, and
+     * never moves backwards.
+     *
+     * @throws CancellationException if cutting has been abandoned
      */
     public final void updateProgress() {
-	iprogress++;
-	if (jp != null) {
-	    jp.setValue(iprogress);
+	if (cancelled) {
+	    throw new CancellationException();
+	}
+	iprogress.incrementAndGet();
+	final JProgressBar bar = jp;
+	if (bar != null && !progressPosted.getAndSet(true)) {
+	    EventQueue.invokeLater(new Runnable() {
+		@Override
+		public void run() {
+		    progressPosted.set(false);
+		    bar.setValue(Math.max(bar.getValue(), iprogress.get()));
+		}
+	    });
 	}
     }
 
     /**
-     * Allocates neighbours and builds the final array.
+     * Allocates neighbours and builds the final array. Each Piece is told
+     * its index in the final array.
      *
      * @param pieces the Pieces array
      * @param rows the number of rows
@@ -167,6 +575,7 @@ public abstract class JigsawCutter {
 		if (j < rows - 1) {
 		    pieces[i][j].addNeighbor(pieces[i][j + 1]);
 		}
+		pieces[i][j].setIndex(j * columns + i);
 		ret[j * columns + i] = pieces[i][j];
 	    }
 	}
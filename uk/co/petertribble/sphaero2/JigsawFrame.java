@@ -11,7 +11,9 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import javax.imageio.ImageIO;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -34,6 +36,7 @@ import javax.swing.JSpinner;
 import javax.swing.JTextField;
 import javax.swing.SpinnerNumberModel;
 import javax.swing.border.Border;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 /**
  * JFrame that runs a JigsawPuzzle. This is the front end for
@@ -60,16 +63,12 @@ import javax.swing.border.Border;
  * I've never seen any missing pieces or image data as a result of this,
  * however.
  *
- * <p>The most serious bug is an OutOfMemoryError while the puzzle is
- * being solved. This occurs particularly on large images and large
- * numbers of pieces (200+), and even then only if picture is solved by
- * forming one large set of fitted pieces, and adding pieces singly to
- * that. If it's solved instead by forming medium-sized sections first,
- * and then fitting those sections together at the end, no problems arise.
- *
- * <p>This program uses a fair bit of memory. I use a max heap size of
- * 256Mb for large (1024x768 pixels) images, 200 pieces, and occasionally
- * will still get an OutOfMemoryError as above.
+ * <p>This program uses a fair bit of memory, most of it while large
+ * groups of fitted pieces are joined. Before a puzzle is cut, a
+ * MemoryGovernor estimates how much it will need at worst; if that won't
+ * fit in the heap, the pieces are held compactly, and if that still won't
+ * fit the picture is made smaller, rather than running out of memory part
+ * way through. A larger heap, set with java -Xmx, allows larger puzzles.
  */
 public final class JigsawFrame extends JFrame implements ActionListener {
 
@@ -88,13 +87,19 @@ public final class JigsawFrame extends JFrame implements ActionListener {
     /**
      * A list of all available cutters.
      */
-    private static final JigsawCutter[] CUTTERS = {
-	new Classic4Cutter(),
-	new ClassicCutter(),
-	new SquareCutter(),
-	new RectCutter(),
-	new QuadCutter(),
-    };
+    private static final JigsawCutter[] CUTTERS = JigsawCutter.getCutters();
+
+    /**
+     * Whether to prepare the next puzzle in the background when puzzles
+     * are being selected from a folder.
+     */
+    private static boolean prefetch;
+
+    /**
+     * Live statistics about the current puzzle, shared by each puzzle in
+     * turn and registered with JMX.
+     */
+    private static final PuzzleStats STATS = new PuzzleStats();
 
     /**
      * The menu bar at the top of the game.
@@ -108,6 +113,18 @@ public final class JigsawFrame extends JFrame implements ActionListener {
      * A JMenuItem to start a new puzzle.
      */
     private JMenuItem newItem;
+    /**
+     * A JMenuItem to resume a saved puzzle.
+     */
+    private JMenuItem openItem;
+    /**
+     * A JMenuItem to save the current puzzle.
+     */
+    private JMenuItem saveItem;
+    /**
+     * A JMenuItem to recover the last puzzle, if it wasn't finished.
+     */
+    private JMenuItem recoverItem;
     /**
      * A JMenuItem to exit the game.
      */
@@ -163,6 +180,31 @@ public final class JigsawFrame extends JFrame implements ActionListener {
     private int defaultPieces = JigsawCutter.DEFAULT_PIECES;
     private transient JigsawCutter defaultCutter;
 
+    /**
+     * The puzzle currently being solved, if any.
+     */
+    private transient JigsawPuzzle puzzle;
+    /**
+     * The timer label for the current puzzle.
+     */
+    private TimeLabel tlabel;
+    /**
+     * The image file the current puzzle was made from, if known.
+     */
+    private File imageFile;
+    /**
+     * The folder the current image was selected from, if any.
+     */
+    private File imageFolder;
+    /**
+     * The next puzzle from imageFolder, being prepared in the background.
+     */
+    private transient ImagePrefetcher prefetcher;
+    /**
+     * The journal recording changes to the current puzzle, if any.
+     */
+    private transient MoveJournal journal;
+
     /**
      * Prompt for an image to solve, with the default number of pieces
      * and piece style.
@@ -224,11 +266,32 @@ public final class JigsawFrame extends JFrame implements ActionListener {
      */
     public JigsawFrame(final BufferedImage nimage, final int pieces,
 		       final JigsawCutter cutter) {
+	this(nimage, pieces, cutter, null, null);
+    }
+
+    /**
+     * Creates and displays a simple JFrame containing a jigsaw puzzle, using
+     * an image that was read from the given file, and that may have been
+     * selected from the given folder.
+     *
+     * @param nimage the BufferedImage to use as the picture
+     * @param pieces the number of pieces to create
+     * @param cutter the JigsawCutter to be used to cut the image into pieces
+     * @param file the image file the picture was read from, or null if not
+     * known, in which case the puzzle can't be saved
+     * @param folder the folder the image was selected from, or null if the
+     * image was chosen directly
+     */
+    public JigsawFrame(final BufferedImage nimage, final int pieces,
+		       final JigsawCutter cutter, final File file,
+		       final File folder) {
 	super("Jigsaw Puzzle");
 	defaultPieces = pieces;
 	defaultCutter = cutter;
+	imageFile = file;
+	imageFolder = folder;
 	initFrameWork();
-	init(nimage, cutter);
+	init(nimage, cutter, null, null);
     }
 
     private void initFrameWork() {
@@ -241,6 +304,21 @@ public final class JigsawFrame extends JFrame implements ActionListener {
 	newItem.addActionListener(this);
 	jmf.add(newItem);
 
+	openItem = new JMenuItem("Open Puzzle...", KeyEvent.VK_O);
+	openItem.addActionListener(this);
+	jmf.add(openItem);
+
+	saveItem = new JMenuItem("Save Puzzle...", KeyEvent.VK_S);
+	saveItem.addActionListener(this);
+	saveItem.setEnabled(false);
+	jmf.add(saveItem);
+
+	recoverItem = new JMenuItem("Recover Puzzle", KeyEvent.VK_R);
+	recoverItem.addActionListener(this);
+	recoverItem.setEnabled(MoveJournal.canRecover(
+					MoveJournal.defaultDirectory()));
+	jmf.add(recoverItem);
+
 	jmf.addSeparator();
 
 	exitItem = new JMenuItem("Exit", KeyEvent.VK_X);
@@ -271,37 +349,258 @@ public final class JigsawFrame extends JFrame implements ActionListener {
 	jmh.add(pictureItem);
     }
 
-    private void init(final BufferedImage nimage, final JigsawCutter cutter) {
+    /*
+     * If pieces is non-null, they have already been cut from the image
+     * according to the given layout.
+     */
+    private void init(final BufferedImage nimage, final JigsawCutter cutter,
+		      final CutLayout nlayout, final Piece[] npieces) {
+	MemoryGovernor.Plan plan = planMemory(nimage, cutter, npieces);
+	BufferedImage pimage = nimage;
+	CutLayout layout = nlayout;
+	Piece[] pieces = npieces;
+	if (plan.getWidth() != nimage.getWidth()
+		|| plan.getHeight() != nimage.getHeight()) {
+	    pimage = JigUtil.resizedImage(nimage, plan.getWidth(),
+					  plan.getHeight());
+	    layout = null;
+	    pieces = null;
+	}
+	warnMemory(plan, nimage);
+	createPuzzle(pimage, cutter);
+	puzzle.setCompact(plan.isCompact());
+
+	if (pieces == null) {
+	    // This doesn't quite work; I would prefer a modal dialog, but that
+	    // completely blocks the app
+
+	    JProgressBar jp = new JProgressBar();
+	    jp.setBorder(BorderFactory.createEmptyBorder(8, 18, 8, 18));
+	    JDialog dialog = new JDialog(this, "Processing image.");
+	    dialog.setContentPane(jp);
+	    cutter.setJProgressBar(jp);
+	    dialog.pack();
+	    dialog.setLocationRelativeTo(this);
+	    dialog.setVisible(true);
+	    puzzle.reset();
+	    dialog.setVisible(false);
+	} else {
+	    puzzle.reset(layout, pieces);
+	}
+	startPuzzle(0L);
+	startPrefetch(cutter);
+    }
+
+    /*
+     * Work out how big a puzzle will fit in memory. The current puzzle,
+     * the new picture, and any pieces already cut from it are all still
+     * held, but their memory is counted as available, as the estimate
+     * includes them or they're about to be let go of. A prefetch that has
+     * been abandoned may still be reading or cutting an image, so what it
+     * is using isn't available.
+     */
+    private MemoryGovernor.Plan planMemory(final BufferedImage nimage,
+					   final JigsawCutter cutter,
+					   final Piece[] pieces) {
+	long held = 4L * nimage.getWidth() * nimage.getHeight();
+	if (pieces != null) {
+	    for (Piece piece : pieces) {
+		held += piece.getPixelBytes();
+	    }
+	}
+	if (puzzle != null) {
+	    held += STATS.getPixelBytes()
+		+ 4L * image.getWidth(null) * image.getHeight(null);
+	}
+	held -= ImagePrefetcher.inFlightBytes();
+	return MemoryGovernor.plan(nimage.getWidth(), nimage.getHeight(),
+			cutter, MemoryGovernor.available(held));
+    }
+
+    /*
+     * Say if the picture had to be made smaller to fit in memory, or if
+     * it may not fit at all. Compact pieces only make zooming out slower,
+     * which is barely worth mentioning.
+     */
+    private void warnMemory(final MemoryGovernor.Plan plan,
+			    final BufferedImage nimage) {
+	if (!plan.fits()) {
+	    JOptionPane.showMessageDialog(this,
+		"There may not be enough memory for this puzzle, even with"
+		+ " the picture reduced\nto " + plan.getWidth() + "x"
+		+ plan.getHeight() + ". Try fewer pieces, or a larger heap"
+		+ " with java -Xmx.",
+		"Not enough memory", JOptionPane.WARNING_MESSAGE);
+	} else if (plan.getWidth() != nimage.getWidth()) {
+	    JOptionPane.showMessageDialog(this,
+		"To fit in memory, the picture has been reduced from "
+		+ nimage.getWidth() + "x" + nimage.getHeight() + "\nto "
+		+ plan.getWidth() + "x" + plan.getHeight() + ".",
+		"Not enough memory", JOptionPane.WARNING_MESSAGE);
+	} else if (plan.isCompact()) {
+	    System.err.println("Low on memory; pieces will be held" // NOPMD
+			       + " compactly, and zooming out will be slower.");
+	}
+    }
+
+    private void createPuzzle(final BufferedImage nimage,
+			      final JigsawCutter cutter) {
 	image = nimage;
 
-	JigsawPuzzle puzzle = new JigsawPuzzle(nimage, cutter);
+	puzzle = new JigsawPuzzle(nimage, cutter);
+	puzzle.setStats(STATS);
 	JPanel ppanel = new JPanel(new BorderLayout());
 	ppanel.add(new JScrollPane(puzzle));
-	TimeLabel tlabel = new TimeLabel();
+	tlabel = new TimeLabel();
 	ppanel.add(tlabel, BorderLayout.SOUTH);
 	setContentPane(ppanel);
 	pack();
 
 	setSize(1024, 740);
 	setVisible(true);
+    }
 
-	// This doesn't quite work; I would prefer a modal dialog, but that
-	// completely blocks the app
-
-	JProgressBar jp = new JProgressBar();
-	jp.setBorder(BorderFactory.createEmptyBorder(8, 18, 8, 18));
-	JDialog dialog = new JDialog(this, "Processing image.");
-	dialog.setContentPane(jp);
-	cutter.setJProgressBar(jp);
-	dialog.pack();
-	dialog.setLocationRelativeTo(this);
-	dialog.setVisible(true);
-	puzzle.reset();
-	dialog.setVisible(false);
+    private void startPuzzle(final long elapsed) {
 	jmb.add(jmh);
+	saveItem.setEnabled(imageFile != null);
+	recoverItem.setEnabled(false);
 	repaint();
-	tlabel.start();
+	tlabel.start(elapsed);
 	puzzle.setTimeLabel(tlabel);
+	startJournal();
+    }
+
+    /*
+     * Record every change to the puzzle, so that it can be recovered if
+     * we die. Without an image file, there's nothing to recover from.
+     */
+    private void startJournal() {
+	closeJournal();
+	if (imageFile != null && !puzzle.isFinished()) {
+	    try {
+		journal = new MoveJournal(MoveJournal.defaultDirectory(),
+					  puzzle, imageFile);
+	    } catch (IOException e) {
+		System.err.println("Unable to journal puzzle: " // NOPMD
+				   + e.getMessage());
+	    }
+	}
+    }
+
+    private void closeJournal() {
+	if (journal != null) {
+	    journal.close();
+	    journal = null;
+	}
+    }
+
+    /**
+     * Recover the last puzzle, from its most recent snapshot and the
+     * changes made since.
+     *
+     * @throws IOException if the puzzle cannot be recovered
+     */
+    private void recoverPuzzle() throws IOException {
+	File dir = MoveJournal.defaultDirectory();
+	PuzzleFile pf = MoveJournal.readSnapshot(dir);
+	cancelPrefetch();
+	imageFile = pf.getImageFile();
+	imageFolder = null;
+	getContentPane().removeAll();
+	createPuzzle(pf.getImage(), pf.getCutter());
+	puzzle.restore(pf.getLayout(), pf.getPieces());
+	try {
+	    MoveJournal.replay(dir, puzzle);
+	} catch (IOException e) {
+	    JOptionPane.showMessageDialog(this,
+			"Some recent changes could not be recovered: "
+			+ e.getMessage(),
+			"Recover incomplete", JOptionPane.WARNING_MESSAGE);
+	}
+	startPuzzle(pf.getElapsed());
+    }
+
+    private void fireRecoverAction() {
+	try {
+	    recoverPuzzle();
+	} catch (IOException e) {
+	    JOptionPane.showMessageDialog(this,
+			"Unable to recover puzzle: " + e.getMessage(),
+			"Recover failed", JOptionPane.ERROR_MESSAGE);
+	}
+    }
+
+    /**
+     * Resume a saved puzzle.
+     *
+     * @param file the saved puzzle File
+     *
+     * @throws IOException if the puzzle cannot be loaded
+     */
+    private void openPuzzle(final File file) throws IOException {
+	PuzzleFile pf = PuzzleFile.load(file);
+	cancelPrefetch();
+	imageFile = pf.getImageFile();
+	imageFolder = null;
+	getContentPane().removeAll();
+	createPuzzle(pf.getImage(), pf.getCutter());
+	puzzle.restore(pf.getLayout(), pf.getPieces());
+	startPuzzle(pf.getElapsed());
+    }
+
+    private void fireOpenAction() {
+	JFileChooser chooser = new JFileChooser();
+	chooser.setFileFilter(new FileNameExtensionFilter("Saved puzzles",
+						PuzzleFile.SUFFIX));
+	if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+	    try {
+		openPuzzle(chooser.getSelectedFile());
+	    } catch (IOException e) {
+		JOptionPane.showMessageDialog(this,
+				"Unable to open puzzle: " + e.getMessage(),
+				"Open failed", JOptionPane.ERROR_MESSAGE);
+	    }
+	}
+    }
+
+    private void fireSaveAction() {
+	if (puzzle == null || !puzzle.isCut() || imageFile == null) {
+	    return;
+	}
+	JFileChooser chooser = new JFileChooser();
+	chooser.setFileFilter(new FileNameExtensionFilter("Saved puzzles",
+						PuzzleFile.SUFFIX));
+	if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+	    File file = chooser.getSelectedFile();
+	    if (!PuzzleFile.isPuzzleFile(file)) {
+		file = new File(file.getPath() + "." + PuzzleFile.SUFFIX);
+	    }
+	    try {
+		PuzzleFile.save(file, puzzle, imageFile, tlabel.getElapsed());
+	    } catch (IOException e) {
+		JOptionPane.showMessageDialog(this,
+				"Unable to save puzzle: " + e.getMessage(),
+				"Save failed", JOptionPane.ERROR_MESSAGE);
+	    }
+	}
+    }
+
+    /*
+     * While this puzzle is being solved, get the next one from the same
+     * folder ready.
+     */
+    private void startPrefetch(final JigsawCutter cutter) {
+	if (prefetch && imageFolder != null) {
+	    prefetcher = new ImagePrefetcher(imageFolder, cutter);
+	    prefetcher.start();
+	}
+    }
+
+    private void cancelPrefetch() {
+	if (prefetcher != null) {
+	    prefetcher.cancel();
+	    prefetcher = null;
+	}
     }
 
     private void initPrompt() {
@@ -381,6 +680,20 @@ public final class JigsawFrame extends JFrame implements ActionListener {
 	setVisible(true);
     }
 
+    /*
+     * Make the statistics about the current puzzle visible to JMX clients
+     * such as JConsole.
+     */
+    private static void registerStats() {
+	try {
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(STATS,
+				new ObjectName(PuzzleStats.OBJECT_NAME));
+	} catch (JMException e) {
+	    System.err.println("Unable to register statistics: " // NOPMD
+			       + e);
+	}
+    }
+
     private static void fatalError(final String s) {
 	System.err.println(s); // NOPMD
 	System.exit(1);
@@ -395,9 +708,26 @@ public final class JigsawFrame extends JFrame implements ActionListener {
      * <p>The -c flag expects a cutter name, to select the style of pieces.
      * Valid cutters are: Classic-4, Classic, Squares, Rectangles, Quads
      *
+     * <p>If the file is a saved puzzle, it is resumed.
+     *
+     * <p>The -prefetch flag prepares the next puzzle in the background
+     * while the current one is being solved, if images are being selected
+     * at random from a folder.
+     *
+     * <p>The -seed flag expects a number, which is used to make all the
+     * random choices when cutting and shuffling a puzzle, so that the same
+     * image is always cut into the same pieces.
+     *
+     * <p>The pieces cut from an image are cached, so that cutting the same
+     * image the same way again is quicker. The -nocache flag turns this
+     * off.
+     *
      * @param args command line arguments
      */
     public static void main(final String[] args) {
+	registerStats();
+	JigsawCutter.setCache(new CutCache(CutCache.defaultDirectory(),
+					   CutCache.DEFAULT_MAX_BYTES));
 	if (args.length == 0) {
 	    new JigsawFrame();
 	} else {
@@ -423,6 +753,25 @@ public final class JigsawFrame extends JFrame implements ActionListener {
 		    } else {
 			fatalError("Expecting an argument to -p!");
 		    }
+		} else if ("-prefetch".equals(args[arg])) {
+		    prefetch = true;
+		} else if ("-nocache".equals(args[arg])) {
+		    JigsawCutter.setCache(null);
+		} else if ("-seed".equals(args[arg])) {
+		    arg++;
+		    if (arg < args.length) {
+			Long seed = null;
+			try {
+			    seed = Long.valueOf(args[arg]);
+			} catch (NumberFormatException ex) {
+			    fatalError("Invalid seed!");
+			}
+			for (JigsawCutter cutter : CUTTERS) {
+			    cutter.setSeed(seed);
+			}
+		    } else {
+			fatalError("Expecting an argument to -seed!");
+		    }
 		} else if ("-c".equals(args[arg])) {
 		    arg++;
 		    if (arg < args.length) {
@@ -452,7 +801,8 @@ public final class JigsawFrame extends JFrame implements ActionListener {
 		    } else {
 			fatalError("Invalid file, doesn't exist!");
 		    }
-		    if (base.isFile() && !JigUtil.isImage(base)) {
+		    if (base.isFile() && !JigUtil.isImage(base)
+			    && !PuzzleFile.isPuzzleFile(base)) {
 			fatalError("Invalid file, not an image!");
 		    }
 		}
@@ -466,6 +816,13 @@ public final class JigsawFrame extends JFrame implements ActionListener {
 	     */
 	    if (base == null) {
 		new JigsawFrame(prefPieces, prefCutter);
+	    } else if (PuzzleFile.isPuzzleFile(base)) {
+		JigsawFrame frame = new JigsawFrame(prefPieces, prefCutter);
+		try {
+		    frame.openPuzzle(base);
+		} catch (IOException e) {
+		    fatalError("Unable to open puzzle: " + e.getMessage());
+		}
 	    } else {
 
 		File file = null;
@@ -477,13 +834,14 @@ public final class JigsawFrame extends JFrame implements ActionListener {
 
 		BufferedImage image = null;
 		try {
-		    image = JigUtil.resizedImage(ImageIO.read(file));
+		    image = JigUtil.readImage(file);
 		} catch (IOException e) {
 		    fatalError("Error reading image file!");
 		}
 
 		prefCutter.setPreferredPieceCount(prefPieces);
-		new JigsawFrame(image, prefPieces, prefCutter);
+		new JigsawFrame(image, prefPieces, prefCutter, file,
+				base.isDirectory() ? base : null);
 	    }
 	}
     }
@@ -503,7 +861,13 @@ public final class JigsawFrame extends JFrame implements ActionListener {
     }
 
     private void showPrompt() {
+	closeJournal();
+	recoverItem.setEnabled(MoveJournal.canRecover(
+					MoveJournal.defaultDirectory()));
 	getContentPane().removeAll();
+	puzzle = null;
+	tlabel = null;
+	saveItem.setEnabled(false);
 	jmb.remove(jmh);
 	jmb.revalidate();
 	miniImage = null;
@@ -544,7 +908,35 @@ public final class JigsawFrame extends JFrame implements ActionListener {
 			"Nonexistent file", JOptionPane.ERROR_MESSAGE);
 	    return;
 	}
-	if (file.isDirectory()) {
+
+	// Get the cutter and set its piece count
+	defaultCutter = (JigsawCutter) cutterCBox.getSelectedItem();
+	defaultPieces = ((Number) pieceSpinner.getValue()).intValue();
+	defaultCutter.setPreferredPieceCount(defaultPieces);
+
+	/*
+	 * If the next puzzle from this folder has been prepared in the
+	 * background, use as much of it as is ready. Anything else the
+	 * player chooses means it's no longer wanted.
+	 */
+	File prepared = null;
+	BufferedImage nimage = null;
+	CutLayout layout = null;
+	Piece[] pieces = null;
+	if (prefetcher != null && file.isDirectory()
+		&& prefetcher.matches(file, defaultCutter)) {
+	    prefetcher.stop();
+	    prepared = prefetcher.getFile();
+	    nimage = prefetcher.getImage();
+	    layout = prefetcher.getLayout();
+	    pieces = prefetcher.getPieces();
+	}
+	cancelPrefetch();
+	if (prepared != null) {
+	    imageFolder = file;
+	    file = prepared;
+	} else if (file.isDirectory()) {
+	    imageFolder = file;
 	    try {
 		file = JigUtil.getRandomImageFile(file);
 	    } catch (FileNotFoundException ex) {
@@ -553,23 +945,24 @@ public final class JigsawFrame extends JFrame implements ActionListener {
 				"Empty folder", JOptionPane.ERROR_MESSAGE);
 		return;
 	    }
-	} else if (!JigUtil.isImage(file)) {
-	    JOptionPane.showMessageDialog(this, "This is not an image file.",
+	} else if (JigUtil.isImage(file)) {
+	    imageFolder = null;
+	} else {
+	    JOptionPane.showMessageDialog(this,
+				"This is not an image file.",
 				"Invalid Image", JOptionPane.ERROR_MESSAGE);
 	    return;
 	}
 
-	// Get the cutter and set its piece count
-	defaultCutter = (JigsawCutter) cutterCBox.getSelectedItem();
-	defaultPieces = ((Number) pieceSpinner.getValue()).intValue();
-	defaultCutter.setPreferredPieceCount(defaultPieces);
-
 	try {
-	    BufferedImage nimage = ImageIO.read(file);
+	    if (nimage == null) {
+		nimage = JigUtil.readImage(file);
+	    }
+	    imageFile = file;
 	    // FIXME this doesn't actually show the window properly until
 	    // after the pieces have been cut???
 	    // So the progress bar doesn't work either
-	    init(JigUtil.resizedImage(nimage), defaultCutter);
+	    init(nimage, defaultCutter, layout, pieces);
 	} catch (IOException e) {
 	    JOptionPane.showMessageDialog(this, "Image file cannot be read.",
 				"Invalid Image", JOptionPane.ERROR_MESSAGE);
@@ -605,6 +998,12 @@ public final class JigsawFrame extends JFrame implements ActionListener {
 	    System.exit(0);
 	} else if (e.getSource() == newItem) {
 	    showPrompt();
+	} else if (e.getSource() == openItem) {
+	    fireOpenAction();
+	} else if (e.getSource() == saveItem) {
+	    fireSaveAction();
+	} else if (e.getSource() == recoverItem) {
+	    fireRecoverAction();
 	} else if (e.getSource() == helpItem) {
 	    JOptionPane.showMessageDialog(this, JigUtil.helpMsg(),
 			"Sphaero2 help", JOptionPane.PLAIN_MESSAGE);
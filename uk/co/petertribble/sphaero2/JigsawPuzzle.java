@@ -1,12 +1,13 @@
 package uk.co.petertribble.sphaero2;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Cursor;
 import java.awt.Dimension;
 import java.awt.Graphics;
-import java.awt.Image;
+import java.awt.Graphics2D;
+import java.awt.Point;
 import java.awt.Rectangle;
-import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyAdapter;
@@ -14,15 +15,18 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
 import java.awt.image.BufferedImage;
-import java.awt.image.MemoryImageSource;
-import java.awt.image.PixelGrabber;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.Set;
+import java.util.SplittableRandom;
 import javax.swing.JPanel;
+import javax.swing.JViewport;
 import javax.swing.Timer;
 
 // ### I think I need a quicker way to detect which piece is clicked on.
@@ -67,11 +71,40 @@ public final class JigsawPuzzle extends JPanel {
      * out of the selected area.
      */
     public static final char CLEAR = 'C';
+    /**
+     * The character, M, used to toggle select mode, in which the mouse
+     * drags out a rectangle to select the pieces inside it, and the
+     * selected pieces are moved, rotated and pushed together.
+     */
+    public static final char SELECT = 'M';
     // hide for pause
     /**
      * The character, H, used to hide pieces, to pause the puzzle.
      */
     public static final char HIDE = 'H';
+    /**
+     * The character, T, used to show a hint: a piece that fits the
+     * current piece.
+     */
+    public static final char HINT = 'T';
+    /**
+     * The character, +, used to zoom in.
+     */
+    public static final char ZOOM_IN = '+';
+    /**
+     * The character, -, used to zoom out.
+     */
+    public static final char ZOOM_OUT = '-';
+    /**
+     * The character, F, used to show or hide frame statistics: frames
+     * per second, input latency, and missed frames.
+     */
+    public static final char FRAME_STATS = 'F';
+    /**
+     * The character, O, used to sort the pieces into trays: joined pieces,
+     * edge pieces, then the rest by color.
+     */
+    public static final char SORT_KEY = 'O';
 
     private static final long serialVersionUID = 1L;
 
@@ -96,6 +129,7 @@ public final class JigsawPuzzle extends JPanel {
 
     private static final Color CLEAR_COLOR_W = new Color(255, 255, 255, 48);
     private static final Color CLEAR_COLOR_B = new Color(0, 0, 0, 48);
+    private static final Color SELECT_COLOR = new Color(0, 192, 255);
 
     private static final Cursor
 	NORMAL_CURSOR = new Cursor(Cursor.DEFAULT_CURSOR);
@@ -104,10 +138,40 @@ public final class JigsawPuzzle extends JPanel {
 
     private static final Rectangle EMPTYRECT = new Rectangle(0, 0, 0, 0);
 
-    transient Image finishedImage;
+    /**
+     * How long a hint is shown for, and how often it is redrawn while
+     * shown, in milliseconds.
+     */
+    private static final int HINT_MILLIS = 2000;
+    private static final int HINT_FRAME_MILLIS = 50;
+    private static final Color HINT_COLOR = new Color(255, 255, 0);
+
+    /**
+     * How far the puzzle can be zoomed out and in, as powers of two.
+     * Zooming out is limited by the smallest copies pieces keep of their
+     * images.
+     */
+    private static final int MIN_ZOOM = -Piece.MAX_LEVEL;
+    private static final int MAX_ZOOM = 2;
+
+    /**
+     * When the puzzle is finished, the original image is faded in over
+     * the last piece in this many steps, this many milliseconds apart.
+     * The composites for each step are made once, so that fading needs
+     * no new images or pixels. If the pieces share the picture's pixels,
+     * the picture can't be accelerated and each step is drawn in
+     * software, which is still cheaper than keeping a copy to fade from.
+     */
+    private static final int FADE_STEPS = 15;
+    private static final int FADE_MILLIS = 200;
+    private static final AlphaComposite[] FADES = fadeComposites();
 
     private final transient BufferedImage image;
     private final transient JigsawCutter cutter;
+    /**
+     * How the pieces were laid out when they were cut.
+     */
+    private transient CutLayout layout;
     /**
      * The preferred size of the game.
      */
@@ -124,10 +188,62 @@ public final class JigsawPuzzle extends JPanel {
      * Track if the game is in clear mode.
      */
     private boolean clearMode;
+    /**
+     * Track if the game is in select mode.
+     */
+    private boolean selectMode;
+    /**
+     * Track if the selected pieces are being dragged.
+     */
+    private boolean movingSelection;
+    /**
+     * The selected pieces, in z-order.
+     */
+    private final transient List<Piece> selection = new ArrayList<>();
+    /**
+     * The rectangle around the selected pieces.
+     */
+    private final Rectangle selectBounds = new Rectangle();
+    /**
+     * The x coordinate the selected pieces were last dragged to.
+     */
+    private int selectX;
+    /**
+     * The y coordinate the selected pieces were last dragged to.
+     */
+    private int selectY;
     /**
      * Track if the puzzle is paused.
      */
     private boolean paused;
+    /**
+     * Track if the mouse is dragging the view rather than a piece.
+     */
+    private boolean panning;
+    /**
+     * The point the view was grabbed at when panning.
+     */
+    private int panX;
+    /**
+     * The point the view was grabbed at when panning.
+     */
+    private int panY;
+    /**
+     * How far the puzzle is zoomed, as a power of two; negative is zoomed
+     * out.
+     */
+    private int zoom;
+    /**
+     * How many device pixels there are to each pixel the panel is laid
+     * out in. The puzzle is cut in device pixels, so that pieces can be
+     * drawn without being scaled.
+     */
+    private final double deviceScale;
+    /**
+     * The scale from puzzle coordinates to panel coordinates, two to the
+     * power of zoom, divided by the device scale.
+     */
+    private double scale;
     /**
      * Translation from a piece's upper-left corner to the point you clicked
      * on.
@@ -174,6 +290,59 @@ public final class JigsawPuzzle extends JPanel {
      */
     private TimeLabel tlabel;
 
+    /**
+     * Where the pieces are placed when shuffled, derived from the seed
+     * the puzzle was cut with.
+     */
+    private transient SplittableRandom random = new SplittableRandom();
+
+    /**
+     * If not null, told about every change to the puzzle.
+     */
+    private transient PuzzleRecorder recorder;
+
+    /**
+     * A hash of the image, only calculated if needed.
+     */
+    private byte[] imageHash;
+
+    /**
+     * Where the pieces are, for finding hints.
+     */
+    private final transient HintIndex hints = new HintIndex();
+
+    /**
+     * Paces repainting to the display, and keeps frame statistics.
+     */
+    private final transient FrameScheduler frames;
+
+    /**
+     * Live statistics, which may be shared with later puzzles.
+     */
+    private transient PuzzleStats stats = new PuzzleStats();
+
+    /**
+     * Whether the pieces are held compactly, to save memory.
+     */
+    private boolean compact;
+
+    /**
+     * The pieces being shown as a hint, and the timer animating them.
+     */
+    private transient Piece[] hintPieces;
+    private transient Timer hintTimer;
+
+    /**
+     * When the hint started, in milliseconds since the epoch.
+     */
+    private long hintStart;
+
+    /**
+     * How far the finished image has faded in, and the timer fading it.
+     */
+    private int fadeStep;
+    private transient Timer fadeTimer;
+
     /**
      * Creates a new JigsawPuzzle.
      *
@@ -182,9 +351,12 @@ public final class JigsawPuzzle extends JPanel {
      */
     public JigsawPuzzle(final BufferedImage nimage,
 			final JigsawCutter ncutter) {
-	super(false);
+	super(true);
 	image = nimage;
 	cutter = ncutter;
+	deviceScale = JigUtil.deviceScale();
+	scale = 1.0 / deviceScale;
+	frames = new FrameScheduler(this);
 
 	computePreferredSize();
 	setOpaque(true);
@@ -213,6 +385,12 @@ public final class JigsawPuzzle extends JPanel {
 		mouseDragged0(e);
 	    }
 	});
+	addMouseWheelListener(new MouseWheelListener() {
+	    @Override
+	    public void mouseWheelMoved(final MouseWheelEvent e) {
+		mouseWheelMoved0(e);
+	    }
+	});
 	addKeyListener(new KeyAdapter() {
 	    @Override
 	    public void keyTyped(final KeyEvent e) {
@@ -234,18 +412,136 @@ public final class JigsawPuzzle extends JPanel {
      * not be done in the AWT thread.
      */
     public void reset() {
+	JigUtil.ensureLoaded(image);
+	long start = System.nanoTime();
+	CutLayout nlayout = cutter.layout(image.getWidth(), image.getHeight());
+	Piece[] pieces = cutter.cut(image, nlayout);
+	long elapsed = System.nanoTime() - start;
+	reset(nlayout, pieces);
+	stats.cut(elapsed);
+    }
+
+    /**
+     * Tells this puzzle to use the given pieces, which must already have
+     * been cut from this puzzle's image, and randomize their positions.
+     *
+     * @param nlayout the layout the pieces were cut with
+     * @param pieces the Pieces to use for this puzzle
+     */
+    public void reset(final CutLayout nlayout, final Piece[] pieces) {
 	zorder = null;
-	Piece[] pieces = cutter.cut(image);
+	layout = nlayout;
+	random = placementRandom(nlayout);
 	shuffle(pieces);
+	compactPieces();
+	stats.reset(zorder);
+	stats.cut(-1L);
+    }
+
+    /**
+     * Tells this puzzle to use the given pieces, which must already have
+     * been cut from this puzzle's image, without moving them. This is used
+     * to resume a saved puzzle.
+     *
+     * @param nlayout the layout the pieces were cut with
+     * @param pieces the Pieces and joined Pieces to use for this puzzle, at
+     * their saved positions, in z-order with the topmost last
+     */
+    public void restore(final CutLayout nlayout, final List<Piece> pieces) {
+	layout = nlayout;
+	random = placementRandom(nlayout);
+	zorder = new ArrayList<>(pieces);
+	selection.clear();
+	focusPiece = null;
+	resetHints();
+	compactPieces();
+	stats.reset(zorder);
+	stats.cut(-1L);
+	finished = false;
+	stopFade();
+	fadeStep = 0;
+	if (zorder.size() == 1) {
+	    finish();
+	}
+	repaint();
+    }
+
+    /**
+     * Returns a hash of the image this puzzle was cut from.
+     *
+     * @return a hash of the image's pixels
+     *
+     * @see JigUtil#imageHash
+     */
+    byte[] getImageHash() {
+	if (imageHash == null) {
+	    imageHash = JigUtil.imageHash(image);
+	}
+	return imageHash.clone();
+    }
+
+    /**
+     * Returns the time spent solving this puzzle so far.
+     *
+     * @return the elapsed solution time in milliseconds, or zero if there
+     * is no timer label
+     */
+    long getElapsed() {
+	return tlabel == null ? 0L : tlabel.getElapsed();
+    }
+
+    /**
+     * Returns the image this puzzle was cut from.
+     *
+     * @return the puzzle's image
+     */
+    BufferedImage getImage() {
+	return image;
+    }
+
+    /**
+     * Returns the cutter used to cut this puzzle.
+     *
+     * @return the puzzle's JigsawCutter
+     */
+    JigsawCutter getCutter() {
+	return cutter;
+    }
+
+    /**
+     * Returns the layout the pieces in this puzzle were cut with.
+     *
+     * @return the puzzle's CutLayout
+     */
+    CutLayout getCutLayout() {
+	return layout;
+    }
+
+    /**
+     * Returns the current pieces, including joined pieces, in z-order with
+     * the topmost last.
+     *
+     * @return an unmodifiable List of the puzzle's current Pieces
+     */
+    List<Piece> getZOrder() {
+	return Collections.unmodifiableList(zorder);
     }
 
     /**
      * Push the top piece (at the front) to the bottom (the back).
      */
     private void push() {
+	if (selectMode && !selection.isEmpty()) {
+	    pushSelection();
+	    return;
+	}
 	Piece p = zorder.remove(zorder.size() - 1);
 	zorder.add(0, p);
+	hints.lower(p);
 	repaint();
+	if (recorder != null) {
+	    recorder.pushed();
+	}
     }
 
     // Component methods ----------------------------------------------------
@@ -262,7 +558,7 @@ public final class JigsawPuzzle extends JPanel {
 
     @Override
     public Dimension getPreferredSize() {
-	return prefSize;
+	return new Dimension(toView(prefSize.width), toView(prefSize.height));
     }
 
     /**
@@ -274,8 +570,80 @@ public final class JigsawPuzzle extends JPanel {
 	return zorder != null;
     }
 
+    /**
+     * Returns this puzzle's live statistics.
+     *
+     * @return the PuzzleStats this puzzle keeps up to date
+     */
+    public PuzzleStats getStats() {
+	return stats;
+    }
+
+    /**
+     * Keep this puzzle's statistics in the given PuzzleStats, which is
+     * reset to count this puzzle, so that one set of statistics can be
+     * registered and shared by a succession of puzzles.
+     *
+     * @param nstats the PuzzleStats to use
+     */
+    public void setStats(final PuzzleStats nstats) {
+	stats = nstats;
+	if (zorder != null) {
+	    stats.reset(zorder);
+	    stats.cut(-1L);
+	}
+    }
+
+    /**
+     * Returns whether this puzzle's pieces are held compactly.
+     *
+     * @return true if the pieces are compact
+     */
+    public boolean isCompact() {
+	return compact;
+    }
+
+    /**
+     * Sets whether this puzzle's pieces are held compactly. Compact pieces
+     * hold about half the memory, but are slower to draw, particularly
+     * when zoomed out. Pieces joined later are made the same way.
+     *
+     * @param flag true to make the pieces compact
+     */
+    public void setCompact(final boolean flag) {
+	compact = flag;
+	if (zorder != null) {
+	    compactPieces();
+	    repaint();
+	}
+    }
+
+    private void compactPieces() {
+	for (Piece piece : zorder) {
+	    piece.setCompact(compact);
+	}
+    }
+
+    /**
+     * Returns whether this puzzle has been solved.
+     *
+     * @return true if all the Pieces have been joined
+     */
+    public boolean isFinished() {
+	return finished;
+    }
+
     @Override
     protected void paintComponent(final Graphics g) {
+	paintPuzzle(g);
+	frames.paintOverlay(g);
+	frames.painted();
+    }
+
+    private void paintPuzzle(final Graphics g) {
+	PuzzleEvents.Paint event = new PuzzleEvents.Paint();
+	event.begin();
+	long start = System.nanoTime();
 	super.paintComponent(g);
 
 	if (zorder == null) {
@@ -286,32 +654,293 @@ public final class JigsawPuzzle extends JPanel {
 	    return;
 	}
 
+	Rectangle clip = g.getClipBounds();
+	if (clip == null) {
+	    clip = new Rectangle(getWidth(), getHeight());
+	}
+	int mx = toModel(clip.x);
+	int my = toModel(clip.y);
+	Rectangle mclip = new Rectangle(mx, my,
+					toModel(clip.x + clip.width) - mx + 1,
+					toModel(clip.y + clip.height) - my + 1);
+	// Undo the screen's scaling, so that drawing is in device pixels,
+	// which puzzle coordinates are when not zoomed.
+	Graphics2D gd = (Graphics2D) g.create();
+	gd.scale(1.0 / deviceScale, 1.0 / deviceScale);
+	Graphics2D g2 = (Graphics2D) gd.create();
+	g2.scale(Math.scalb(1.0, zoom), Math.scalb(1.0, zoom));
+
+	// Zoomed out, draw the pieces' scaled down images unscaled rather
+	// than having every piece scaled every time.
 	for (Piece piece : zorder) {
-	    piece.draw(g);
+	    if (mclip.intersects(piece.getPuzzleX(), piece.getPuzzleY(),
+				 piece.getCurrentWidth(),
+				 piece.getCurrentHeight())) {
+		event.drawn++;
+		if (zoom < 0) {
+		    piece.draw(gd, -zoom);
+		} else {
+		    piece.draw(g2);
+		}
+	    }
 	}
 
-	if (clearMode && mouseDown) {
+	if ((clearMode || selectMode && !movingSelection) && mouseDown) {
 	    int cx = Math.min(clearX0, clearX1);
 	    int cy = Math.min(clearY0, clearY1);
 	    int cw = Math.abs(clearX0 - clearX1);
 	    int ch = Math.abs(clearY0 - clearY1);
-	    g.setColor(clearColor);
-	    g.fillRect(cx, cy, cw, ch);
+	    g2.setColor(clearColor);
+	    g2.fillRect(cx, cy, cw, ch);
+	}
+
+	if (!selection.isEmpty()) {
+	    paintSelection(g2, mclip);
+	}
+
+	if (hintPieces != null && !finished) {
+	    paintHint(g2);
 	}
 
-	if (finished && finishedImage != null) {
+	if (finished && fadeStep > 0) {
 	    Piece lastPiece = zorder.get(0);
-	    int x = lastPiece.getPuzzleX();
-	    int y = lastPiece.getPuzzleY();
-	    g.drawImage(finishedImage, x, y, null);
+	    g2.setComposite(FADES[fadeStep]);
+	    g2.drawImage(image,
+			 lastPiece.getPuzzleX() - lastPiece.getImageX(),
+			 lastPiece.getPuzzleY() - lastPiece.getImageY(), null);
 	}
+	g2.dispose();
+	gd.dispose();
+	stats.painted(System.nanoTime() - start);
+	event.clipArea = (long) clip.width * clip.height;
+	event.zoom = zoom;
+	event.commit();
     }
 
     private void setClearMode(final boolean flag) {
 	clearMode = flag;
+	if (flag) {
+	    selectMode = false;
+	    clearSelection();
+	}
 	setCursor(clearMode ? CLEAR_CURSOR : NORMAL_CURSOR);
     }
 
+    private void setSelectMode(final boolean flag) {
+	selectMode = flag;
+	if (flag) {
+	    clearMode = false;
+	} else {
+	    clearSelection();
+	}
+	setCursor(selectMode ? CLEAR_CURSOR : NORMAL_CURSOR);
+    }
+
+    // Zooming --------------------------------------------------------------
+
+    /*
+     * The puzzle's pieces are always placed in puzzle coordinates, which
+     * are the same as the panel's when not zoomed on an ordinary screen.
+     * Mouse positions and areas to repaint are converted between the two.
+     */
+
+    private int toModel(final int v) {
+	return (int) Math.floor(v / scale);
+    }
+
+    private int toView(final int v) {
+	return (int) Math.floor(v * scale);
+    }
+
+    private void repaintModel(final int x, final int y,
+			      final int w, final int h) {
+	frames.repaint(toView(x), toView(y), toView(x + w) - toView(x) + 1,
+		       toView(y + h) - toView(y) + 1);
+    }
+
+    /*
+     * The size of the visible board, in puzzle coordinates.
+     */
+    private int boardWidth() {
+	return toModel(getWidth());
+    }
+
+    private int boardHeight() {
+	return toModel(getHeight());
+    }
+
+    /**
+     * Returns how far the puzzle is zoomed.
+     *
+     * @return the zoom, as a power of two; negative is zoomed out
+     */
+    int getZoom() {
+	return zoom;
+    }
+
+    /**
+     * Zoom the puzzle, keeping the given point in the same place in the
+     * view if the puzzle is in a scroll pane.
+     *
+     * @param nzoom the new zoom, as a power of two; negative is zoomed
+     * out
+     * @param x the x coordinate to zoom about, in the panel
+     * @param y the y coordinate to zoom about, in the panel
+     */
+    void setZoom(final int nzoom, final int x, final int y) {
+	int z = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, nzoom));
+	if (z == zoom) {
+	    return;
+	}
+	double oldScale = scale;
+	zoom = z;
+	scale = Math.scalb(1.0, zoom) / deviceScale;
+	Dimension d = getPreferredSize();
+	if (getParent() instanceof JViewport) {
+	    JViewport viewport = (JViewport) getParent();
+	    Point p = viewport.getViewPosition();
+	    double factor = scale / oldScale;
+	    setSize(d);
+	    viewport.setViewPosition(new Point(
+		(int) Math.max(0, (x * factor) - (x - p.x)),
+		(int) Math.max(0, (y * factor) - (y - p.y))));
+	} else {
+	    setSize(d);
+	}
+	revalidate();
+	repaint();
+    }
+
+    void mouseWheelMoved0(final MouseWheelEvent e) {
+	setZoom(zoom - e.getWheelRotation(), e.getX(), e.getY());
+    }
+
+    private void zoomAboutCenter(final int nzoom) {
+	Rectangle r = getVisibleRect();
+	setZoom(nzoom, r.x + r.width / 2, r.y + r.height / 2);
+    }
+
+    /*
+     * Drag the view around, keeping the point that was grabbed under the
+     * mouse.
+     */
+    private void startPan(final MouseEvent e) {
+	panning = getParent() instanceof JViewport;
+	panX = e.getX();
+	panY = e.getY();
+    }
+
+    private void dragPan(final MouseEvent e) {
+	JViewport viewport = (JViewport) getParent();
+	Point p = viewport.getViewPosition();
+	Dimension extent = viewport.getExtentSize();
+	int x = p.x + panX - e.getX();
+	int y = p.y + panY - e.getY();
+	x = Math.max(0, Math.min(getWidth() - extent.width, x));
+	y = Math.max(0, Math.min(getHeight() - extent.height, y));
+	viewport.setViewPosition(new Point(x, y));
+    }
+
+    // Hints -----------------------------------------------------------------
+
+    private void resetHints() {
+	hints.reset(prefSize.width, prefSize.height, zorder);
+    }
+
+    /**
+     * Find a piece that fits the current piece, preferring pieces that can
+     * be seen.
+     *
+     * @return a Piece that fits the current piece, or null if there is no
+     * current piece
+     */
+    Piece findHint() {
+	if (focusPiece == null) {
+	    return null;
+	}
+	Rectangle r = getVisibleRect();
+	int x = toModel(r.x);
+	int y = toModel(r.y);
+	return hints.hint(focusPiece, new Rectangle(x, y,
+				toModel(r.x + r.width) - x,
+				toModel(r.y + r.height) - y));
+    }
+
+    /*
+     * Outline the current piece and one that fits it for a while, pulsing
+     * so that they stand out.
+     */
+    private void showHint() {
+	Piece hint = findHint();
+	if (hint == null) {
+	    return;
+	}
+	clearHint();
+	hintPieces = new Piece[] {focusPiece, hint};
+	hintStart = System.currentTimeMillis();
+	hintTimer = new Timer(HINT_FRAME_MILLIS, new ActionListener() {
+	    @Override
+	    public void actionPerformed(final ActionEvent e) {
+		repaintHint();
+		if (System.currentTimeMillis() - hintStart > HINT_MILLIS) {
+		    clearHint();
+		}
+	    }
+	});
+	hintTimer.start();
+	repaintHint();
+    }
+
+    private void clearHint() {
+	if (hintTimer != null) {
+	    hintTimer.stop();
+	    hintTimer = null;
+	}
+	if (hintPieces != null) {
+	    repaintHint();
+	    hintPieces = null;
+	}
+    }
+
+    private void repaintHint() {
+	if (hintPieces == null) {
+	    return;
+	}
+	for (Piece piece : hintPieces) {
+	    repaintModel(piece.getPuzzleX() - 3, piece.getPuzzleY() - 3,
+		piece.getCurrentWidth() + 6, piece.getCurrentHeight() + 6);
+	}
+    }
+
+    private void paintHint(final Graphics g) {
+	long t = (System.currentTimeMillis() - hintStart) % 500;
+	int alpha = (int) (t < 250 ? 64 + t * 191 / 250
+			   : 255 - (t - 250) * 191 / 250);
+	g.setColor(new Color(HINT_COLOR.getRed(), HINT_COLOR.getGreen(),
+			     HINT_COLOR.getBlue(), alpha));
+	for (Piece piece : hintPieces) {
+	    for (int i = 1; i <= 3; i++) {
+		g.drawRect(piece.getPuzzleX() - i, piece.getPuzzleY() - i,
+			   piece.getCurrentWidth() - 1 + 2 * i,
+			   piece.getCurrentHeight() - 1 + 2 * i);
+	    }
+	}
+    }
+
+    /*
+     * While the statistics are shown, the view mustn't be scrolled by
+     * copying what's already on the screen, or the overlay would be copied
+     * along with it.
+     */
+    private void toggleFrameStats() {
+	boolean flag = !frames.isOverlay();
+	if (getParent() instanceof JViewport) {
+	    ((JViewport) getParent()).setScrollMode(flag
+		? JViewport.SIMPLE_SCROLL_MODE : JViewport.BLIT_SCROLL_MODE);
+	}
+	frames.setOverlay(flag);
+    }
+
     private void toggleHidden() {
 	paused = !paused;
 	repaint();
@@ -334,6 +963,137 @@ public final class JigsawPuzzle extends JPanel {
 	tlabel = nlabel;
     }
 
+    /**
+     * Connect a recorder to this puzzle. If there's a valid recorder it
+     * will be told about every change made to the puzzle from now on.
+     *
+     * @param nrecorder a PuzzleRecorder to be told about changes
+     */
+    public void setRecorder(final PuzzleRecorder nrecorder) {
+	recorder = nrecorder;
+    }
+
+    // Replaying recorded changes -------------------------------------------
+
+    /*
+     * These make the same changes to the puzzle as the player would, but
+     * without telling the recorder, so that a recorded puzzle can be
+     * brought back to the state it was in.
+     */
+
+    private Piece findPiece(final int key) {
+	for (Piece piece : zorder) {
+	    if (piece.getKey() == key) {
+		return piece;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Move a piece to the top of the z-order and the given position.
+     *
+     * @param key the key of the Piece to move
+     * @param x the new x position
+     * @param y the new y position
+     *
+     * @return false if there is no such piece
+     */
+    boolean replayMove(final int key, final int x, final int y) {
+	Piece piece = findPiece(key);
+	if (piece == null) {
+	    return false;
+	}
+	zorder.remove(piece);
+	zorder.add(piece);
+	piece.moveTo(x, y);
+	hints.raise(piece);
+	repaint();
+	return true;
+    }
+
+    /**
+     * Rotate a piece, moving it to the given position.
+     *
+     * @param key the key of the Piece to rotate
+     * @param rotation the new rotation
+     * @param x the new x position
+     * @param y the new y position
+     *
+     * @return false if there is no such piece
+     */
+    boolean replayRotate(final int key, final int rotation,
+			 final int x, final int y) {
+	Piece piece = findPiece(key);
+	if (piece == null) {
+	    return false;
+	}
+	piece.setRotation(rotation);
+	piece.moveTo(x, y);
+	hints.moved(piece);
+	repaint();
+	return true;
+    }
+
+    /**
+     * Join a piece to any of its neighbors that are close enough, which
+     * may finish the puzzle.
+     *
+     * @param key the key of the Piece to join
+     *
+     * @return false if there is no such piece
+     */
+    boolean replayJoin(final int key) {
+	Piece piece = findPiece(key);
+	if (piece == null) {
+	    return false;
+	}
+	if (joinPiece(piece) != null && zorder.size() == 1) {
+	    finish();
+	}
+	return true;
+    }
+
+    /**
+     * Push the top piece to the back.
+     */
+    void replayPush() {
+	Piece p = zorder.remove(zorder.size() - 1);
+	zorder.add(0, p);
+	hints.lower(p);
+	repaint();
+    }
+
+    /**
+     * Move the given pieces to the given positions.
+     *
+     * @param keys the keys of the Pieces to move
+     * @param xs the new x positions
+     * @param ys the new y positions
+     * @param reorder if true, the given pieces are all the pieces in the
+     * puzzle, and the z-order is changed to match
+     *
+     * @return false if any piece doesn't exist
+     */
+    boolean replayPositions(final int[] keys, final int[] xs, final int[] ys,
+			    final boolean reorder) {
+	List<Piece> nzorder = new ArrayList<>(keys.length);
+	for (int i = 0; i < keys.length; i++) {
+	    Piece piece = findPiece(keys[i]);
+	    if (piece == null) {
+		return false;
+	    }
+	    piece.moveTo(xs[i], ys[i]);
+	    nzorder.add(piece);
+	}
+	if (reorder && nzorder.size() == zorder.size()) {
+	    zorder = nzorder;
+	}
+	resetHints();
+	repaint();
+	return true;
+    }
+
     // Private methods ------------------------------------------------------
 
     /**
@@ -360,6 +1120,9 @@ public final class JigsawPuzzle extends JPanel {
 	    return;
 	}
 	finished = true;
+	if (recorder != null) {
+	    recorder.finished();
+	}
 	Piece lastPiece = zorder.get(0);
 
 	// Auto-rotate the puzzle to its correct position.
@@ -370,59 +1133,55 @@ public final class JigsawPuzzle extends JPanel {
 	    tlabel.finished();
 	}
 
-	// Center the last piece in the middle of the panel.
+	// Center the picture in the middle of the panel. Pieces are cropped
+	// to their opaque pixels, so the last piece may not cover all of the
+	// picture, and is placed where it belongs within it.
 	int prevX = lastPiece.getPuzzleX();
 	int prevY = lastPiece.getPuzzleY();
-	final int width = lastPiece.getImageWidth();
-	final int height = lastPiece.getImageHeight();
-	int curW = getWidth();
-	int curH = getHeight();
+	final int width = image.getWidth();
+	final int height = image.getHeight();
+	int curW = boardWidth();
+	int curH = boardHeight();
 	final int centerX = (curW - width) / 2;
 	final int centerY = (curH - height) / 2;
-	lastPiece.moveTo(centerX, centerY);
-	repaint(0, prevX, prevY, width, height);
-	repaint(0, centerX, centerY, width, height);
+	lastPiece.moveTo(centerX + lastPiece.getImageX(),
+			 centerY + lastPiece.getImageY());
+	repaintModel(prevX, prevY, lastPiece.getCurrentWidth(),
+		     lastPiece.getCurrentHeight());
+	repaintModel(centerX, centerY, width, height);
 
 	// Draw the original image on top of the last piece in increasing
 	// opaqueness.  This should make the pieces appear to fade into the
 	// original image.
-	final int[] data = new int[width * height];
-	try {
-	    new PixelGrabber(image, 0, 0, width, height, data, 0, width)
-		.grabPixels();
-	} catch (InterruptedException ex) { }
-	for (int i = 0; i < data.length; i++) {
-	    data[i] = data[i] & 0x00FFFFFF;
-	}
-
-	ActionListener fader = new ActionListener() {
-	    int trans;
+	stopFade();
+	fadeStep = 0;
+	fadeTimer = new Timer(FADE_MILLIS, new ActionListener() {
 	    @Override
 	    public void actionPerformed(final ActionEvent evt) {
-		for (int i = 0; i < data.length; i++) {
-		    data[i] = (data[i] & 0x00FFFFFF) | (trans << 24);
-		}
-		if (finishedImage != null) {
-		    finishedImage.flush();
-		}
-		finishedImage = Toolkit.getDefaultToolkit().createImage(
-			new MemoryImageSource(width, height, data, 0, width));
-		repaint(0, centerX, centerY, width, height);
-		if (trans < 0xFF) {
-		    trans += 0x11;
-		    if (trans >= 0xFF) {
-			trans = 0xFF;
-		    }
-		    Timer timer = new Timer(200, this);
-		    timer.setRepeats(false);
-		    timer.start();
+		fadeStep++;
+		if (fadeStep >= FADE_STEPS) {
+		    stopFade();
 		}
+		repaintModel(centerX, centerY, width, height);
 	    }
-	};
+	});
+	fadeTimer.start();
+    }
 
-	Timer timer = new Timer(200, fader);
-	timer.setRepeats(false);
-	timer.start();
+    private static AlphaComposite[] fadeComposites() {
+	AlphaComposite[] fades = new AlphaComposite[FADE_STEPS + 1];
+	for (int i = 0; i <= FADE_STEPS; i++) {
+	    fades[i] = AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
+						  (float) i / FADE_STEPS);
+	}
+	return fades;
+    }
+
+    private void stopFade() {
+	if (fadeTimer != null) {
+	    fadeTimer.stop();
+	    fadeTimer = null;
+	}
     }
 
     // Mouse event handling -------------------------------------------------
@@ -434,8 +1193,13 @@ public final class JigsawPuzzle extends JPanel {
 	mouseDown = true;
 	if (clearMode) {
 	    startClearRect(e);
+	} else if (selectMode) {
+	    startSelect(e);
 	} else {
 	    grabPiece(e);
+	    if (focusPiece == null) {
+		startPan(e);
+	    }
 	}
     }
 
@@ -445,6 +1209,10 @@ public final class JigsawPuzzle extends JPanel {
 	}
 	if (clearMode) {
 	    dragClearRect(e);
+	} else if (selectMode) {
+	    dragSelect(e);
+	} else if (panning) {
+	    dragPan(e);
 	} else {
 	    dragPiece(e);
 	}
@@ -457,31 +1225,43 @@ public final class JigsawPuzzle extends JPanel {
 	mouseDown = false;
 	if (clearMode) {
 	    finishClearRect(e);
+	} else if (selectMode) {
+	    finishSelect(e);
+	} else if (panning) {
+	    panning = false;
 	} else {
 	    releasePiece();
 	}
     }
 
     private void grabPiece(final MouseEvent e) {
-	int x = e.getX();
-	int y = e.getY();
+	int x = toModel(e.getX());
+	int y = toModel(e.getY());
 
+	PuzzleEvents.HitTest event = new PuzzleEvents.HitTest();
+	event.begin();
+	long start = System.nanoTime();
 	focusPiece = null;
 	ListIterator<Piece> iter = zorder.listIterator(zorder.size());
 	while (focusPiece == null && iter.hasPrevious()) {
 	    Piece piece = iter.previous();
+	    event.tested++;
 	    if (piece.contains(x, y)) {
 		focusPiece = piece;
 		iter.remove();
 	    }
 	}
+	stats.hitTest(System.nanoTime() - start);
+	event.hit = focusPiece != null;
+	event.commit();
 	if (focusPiece != null) {
 	    zorder.add(focusPiece);
+	    hints.raise(focusPiece);
 	    transX = x - focusPiece.getPuzzleX();
 	    transY = y - focusPiece.getPuzzleY();
 	    // The focusPiece might have moved up in Z-order. At worst, we have
 	    // to repaint its bounding rectangle.
-	    repaint(0, focusPiece.getPuzzleX(), focusPiece.getPuzzleY(),
+	    repaintModel(focusPiece.getPuzzleX(), focusPiece.getPuzzleY(),
 		focusPiece.getCurrentWidth(), focusPiece.getCurrentHeight());
 	}
     }
@@ -494,10 +1274,15 @@ public final class JigsawPuzzle extends JPanel {
 	int prevY = focusPiece.getPuzzleY();
 	int prevW = focusPiece.getCurrentWidth();
 	int prevH = focusPiece.getCurrentHeight();
-	focusPiece.moveTo(e.getX() - transX, e.getY() - transY);
+	focusPiece.moveTo(toModel(e.getX()) - transX,
+			  toModel(e.getY()) - transY);
+	hints.moved(focusPiece);
+	if (recorder != null) {
+	    recorder.dragged(focusPiece);
+	}
 	// Repaint the focusPiece' previous and current bounding rects.
-	repaint(0, prevX, prevY, prevW, prevH);
-	repaint(0, focusPiece.getPuzzleX(), focusPiece.getPuzzleY(),
+	repaintModel(prevX, prevY, prevW, prevH);
+	repaintModel(focusPiece.getPuzzleX(), focusPiece.getPuzzleY(),
 		focusPiece.getCurrentWidth(), focusPiece.getCurrentHeight());
     }
 
@@ -505,90 +1290,100 @@ public final class JigsawPuzzle extends JPanel {
 	if (focusPiece == null) {
 	    return;
 	}
-	Piece[] result = focusPiece.join();
-	if (result != null) {
-	    Piece newPiece = result[0];
-	    for (int i = 1; i < result.length; i++) {
-		zorder.remove(result[i]);
-	    }
-	    zorder.add(newPiece);
-	    focusPiece = newPiece;
-	    // Joined pieces may be of any size and number. Mouse release isn't
-	    // a terribly frequent event, so just repaint the whole thing.  If
-	    // it's really necessary later, the thing to do would be to repaint
-	    // the bounding rect for every piece in the result array above.
+	// Zoomed out, or on a scaled screen, a piece can't be placed as
+	// precisely, so allow as much leeway as there would be on an
+	// ordinary screen unzoomed.
+	int tolerance = (int) (Piece.NEARBY / scale);
+	if (tolerance > Piece.NEARBY && focusPiece.snap(tolerance)) {
+	    hints.moved(focusPiece);
 	    repaint();
+	}
+	if (recorder != null) {
+	    recorder.moved(focusPiece);
+	}
+	Piece oldPiece = focusPiece;
+	Piece newPiece = joinPiece(focusPiece);
+	if (newPiece != null) {
+	    focusPiece = newPiece;
+	    if (recorder != null) {
+		recorder.joined(oldPiece);
+	    }
 	    if (zorder.size() == 1) {
 		finish();
 	    }
 	}
     }
 
+    /*
+     * Join the given piece to any neighbors that are close enough, and
+     * return the joined piece, or null if there was nothing to join to.
+     */
+    private Piece joinPiece(final Piece piece) {
+	PuzzleEvents.Join event = new PuzzleEvents.Join();
+	event.start(piece);
+	Piece[] result = piece.join();
+	if (result == null) {
+	    return null;
+	}
+	Piece newPiece = result[0];
+	event.done(newPiece);
+	stats.joined(result.length - 2);
+	for (int i = 1; i < result.length; i++) {
+	    zorder.remove(result[i]);
+	    hints.removed(result[i]);
+	    if (!selection.isEmpty()) {
+		selection.remove(result[i]);
+	    }
+	}
+	zorder.add(newPiece);
+	hints.raise(newPiece);
+	clearHint();
+	// Joined pieces may be of any size and number. Mouse release isn't
+	// a terribly frequent event, so just repaint the whole thing.  If
+	// it's really necessary later, the thing to do would be to repaint
+	// the bounding rect for every piece in the result array above.
+	repaint();
+	return newPiece;
+    }
+
     private void startClearRect(final MouseEvent e) {
-	clearX0 = e.getX();
-	clearY0 = e.getY();
+	clearX0 = toModel(e.getX());
+	clearY0 = toModel(e.getY());
     }
 
     private void dragClearRect(final MouseEvent e) {
 	int prevX1 = clearX1;
 	int prevY1 = clearY1;
-	clearX1 = e.getX();
-	clearY1 = e.getY();
+	clearX1 = toModel(e.getX());
+	clearY1 = toModel(e.getY());
 	int x = Math.min(clearX0, prevX1);
 	int y = Math.min(clearY0, prevY1);
 	int w = Math.abs(clearX0 - prevX1);
 	int h = Math.abs(clearY0 - prevY1);
-	repaint(0, x, y, w, h);
+	repaintModel(x, y, w, h);
 	x = Math.min(clearX0, clearX1);
 	y = Math.min(clearY0, clearY1);
 	w = Math.abs(clearX0 - clearX1);
 	h = Math.abs(clearY0 - clearY1);
-	repaint(0, x, y, w, h);
+	repaintModel(x, y, w, h);
     }
 
     private void finishClearRect(final MouseEvent e) {
-	clearX1 = e.getX();
-	clearY1 = e.getY();
+	clearX1 = toModel(e.getX());
+	clearY1 = toModel(e.getY());
 	int cx0 = Math.max(0, Math.min(clearX0, clearX1));
 	int cy0 = Math.max(0, Math.min(clearY0, clearY1));
-	int cx1 = Math.min(getWidth(), Math.max(clearX0, clearX1));
-	int cy1 = Math.min(getHeight(), Math.max(clearY0, clearY1));
-	for (Piece piece : zorder) {
-	    if (intersects(piece, cx0, cy0, cx1, cy1)) {
-		shuffle(piece, cx0, cy0, cx1, cy1);
-	    }
+	int cx1 = Math.min(boardWidth(), Math.max(clearX0, clearX1));
+	int cy1 = Math.min(boardHeight(), Math.max(clearY0, clearY1));
+	List<Piece> moved = hints.find(
+		new Rectangle(cx0, cy0, cx1 - cx0, cy1 - cy0), false);
+	for (Piece piece : moved) {
+	    shuffle(piece, cx0, cy0, cx1, cy1);
 	}
 	repaint();
-    }
-
-    // (x1,y1) guaranteed to be SE of (x0,y0)
-    /**
-     * Return whether the piece intersects with the rectangle defined by the
-     * given points.  ### Not perfect; returns true for some pieces that it
-     * shouldn't.  Ideally, it should grab the part of the Piece in the
-     * rectangle, and search it for non-transparent pixels.  Costly, so be
-     * careful.
-     *
-     * @param piece the Piece to be checked
-     * @param x0 location of the left of the rectangle
-     * @param y0 location of the bottom of the rectangle
-     * @param x1 location of the right of the rectangle
-     * @param y1 location of the top of the rectangle
-     *
-     * @return true if the Piece intersects with the given rectangle
-     */
-    private boolean intersects(final Piece piece,
-			       final int x0, final int y0,
-			       final int x1, final int y1) {
-	int px = piece.getPuzzleX();
-	int py = piece.getPuzzleY();
-	int pw = piece.getCurrentWidth();
-	int ph = piece.getCurrentHeight();
-	int w = x1 - x0;
-	int h = y1 - y0;
-	Rectangle r = new Rectangle(x0, y0, w, h);
-	Rectangle rp = new Rectangle(px, py, pw, ph);
-	return r.intersects(rp);
+	if (recorder != null && !moved.isEmpty()) {
+	    recorder.scattered(moved);
+	}
     }
 
     /**
@@ -596,39 +1391,70 @@ public final class JigsawPuzzle extends JPanel {
      * randomize rotation.
      */
     private void shuffle() {
+	clearSelection();
 	Piece[] pieces = new Piece[zorder.size()];
 	zorder.toArray(pieces);
 	shuffle(pieces);
 	repaint();
+	if (recorder != null) {
+	    recorder.shuffled(zorder);
+	}
+    }
+
+    /**
+     * Sort the pieces into trays, moving them all at once.
+     */
+    private void sortIntoTrays() {
+	clearSelection();
+	TraySorter.sort(zorder, Math.max(boardWidth(), prefSize.width),
+			Math.max(boardHeight(), prefSize.height), random);
+	resetHints();
+	clearHint();
+	repaint();
+	if (recorder != null) {
+	    recorder.scattered(zorder);
+	}
+    }
+
+    /*
+     * The cutter splits its streams of random numbers off a
+     * SplittableRandom made from the seed, so placing the pieces uses a
+     * stream of its own made from a different seed, and is unaffected by
+     * however many random numbers the cutter used.
+     */
+    private static SplittableRandom placementRandom(final CutLayout nlayout) {
+	return new SplittableRandom(~nlayout.getSeed());
     }
 
-    // Copy pieces into zorder, and randomize their positions.
+    // Copy pieces into zorder, and scatter them so they don't overlap.
+    // Until the puzzle has been laid out, the board is its preferred size.
     private void shuffle(final Piece[] pieces) {
 	// Arrays.asList() doesn't work, so be explicit
+	selection.clear();
 	zorder = new ArrayList<>();
-	int height = getHeight();
-	int width = getWidth();
+	int height = Math.max(boardHeight(), prefSize.height);
+	int width = Math.max(boardWidth(), prefSize.width);
 
-	ThreadLocalRandom trandom = ThreadLocalRandom.current();
+	ScatterLayout.scatter(pieces, width, height, random);
 	for (Piece piece : pieces) {
-	    piece.setPuzzlePosition(
-		trandom.nextInt(width - piece.getCurrentWidth()),
-		trandom.nextInt(height - piece.getCurrentHeight()));
 	    zorder.add(piece);
 	}
-	Collections.shuffle(zorder);
+	// Collections.shuffle() needs a Random, so shuffle by hand
+	for (int i = zorder.size() - 1; i > 0; i--) {
+	    Collections.swap(zorder, i, random.nextInt(i + 1));
+	}
+	resetHints();
 
 	finished = false;
-	if (finishedImage != null) {
-	    finishedImage.flush();
-	    finishedImage = null;
-	}
+	stopFade();
+	fadeStep = 0;
     }
 
     private void shuffle(final Piece piece, final Rectangle rect) {
-	int dx = ThreadLocalRandom.current().nextInt(rect.width);
-	int dy = ThreadLocalRandom.current().nextInt(rect.height);
+	int dx = random.nextInt(rect.width);
+	int dy = random.nextInt(rect.height);
 	piece.moveTo(rect.x + dx, rect.y + dy);
+	hints.moved(piece);
     }
 
     // (x1,y1) guaranteed to be SE of (x0,y0)
@@ -647,8 +1473,8 @@ public final class JigsawPuzzle extends JPanel {
 			 final int x1, final int y1) {
 	// Make the rectangle denoting where the Piece could be placed in the
 	// whole panel.  Top point will be (0,0).
-	int w = getWidth() - piece.getCurrentWidth();
-	int h = getHeight() - piece.getCurrentHeight();
+	int w = boardWidth() - piece.getCurrentWidth();
+	int h = boardHeight() - piece.getCurrentHeight();
 	// If w or h is negative, the piece is too big to be shuffled, so quit.
 	if (w < 0 || h < 0) {
 	    return;
@@ -681,7 +1507,7 @@ public final class JigsawPuzzle extends JPanel {
 	int earea = east.width * east.height;
 	int totalArea = narea + sarea + warea + earea;
 
-	int rand = ThreadLocalRandom.current().nextInt(totalArea);
+	int rand = random.nextInt(totalArea);
 
 	rand -= narea;
 	if (rand < 0) {
@@ -701,6 +1527,190 @@ public final class JigsawPuzzle extends JPanel {
 	shuffle(piece, east);
     }
 
+    // Selecting ------------------------------------------------------------
+
+    /*
+     * In select mode, pressing the mouse on a selected piece starts
+     * dragging the selection; anywhere else, it starts a new selection.
+     */
+    private void startSelect(final MouseEvent e) {
+	int x = toModel(e.getX());
+	int y = toModel(e.getY());
+	boundSelection();
+	movingSelection = false;
+	for (int i = selection.size() - 1; i >= 0; i--) {
+	    if (selection.get(i).contains(x, y)) {
+		movingSelection = true;
+		break;
+	    }
+	}
+	if (movingSelection) {
+	    selectX = x;
+	    selectY = y;
+	} else {
+	    clearSelection();
+	    startClearRect(e);
+	    clearX1 = clearX0;
+	    clearY1 = clearY0;
+	}
+    }
+
+    private void dragSelect(final MouseEvent e) {
+	if (!movingSelection) {
+	    dragClearRect(e);
+	    return;
+	}
+	int x = toModel(e.getX());
+	int y = toModel(e.getY());
+	if (x != selectX || y != selectY) {
+	    moveSelection(x - selectX, y - selectY);
+	    selectX = x;
+	    selectY = y;
+	}
+    }
+
+    /*
+     * Select the pieces and groups entirely inside the rectangle, which
+     * are found from the index rather than by looking at every piece.
+     */
+    private void finishSelect(final MouseEvent e) {
+	if (movingSelection) {
+	    movingSelection = false;
+	    if (recorder != null) {
+		recorder.scattered(selection);
+	    }
+	    return;
+	}
+	clearX1 = toModel(e.getX());
+	clearY1 = toModel(e.getY());
+	Rectangle area = new Rectangle(Math.min(clearX0, clearX1),
+				       Math.min(clearY0, clearY1),
+				       Math.abs(clearX0 - clearX1),
+				       Math.abs(clearY0 - clearY1));
+	repaintModel(area.x, area.y, area.width, area.height);
+	selection.addAll(hints.find(area, true));
+	boundSelection();
+	repaintSelection();
+    }
+
+    /*
+     * Move every selected piece by the same amount. However many pieces
+     * are selected, only the one rectangle covering where they were and
+     * where they are now is repainted, and the frame scheduler merges
+     * that with any others asked for before the next frame.
+     */
+    private void moveSelection(final int dx, final int dy) {
+	Rectangle dirty = new Rectangle(selectBounds);
+	for (Piece piece : selection) {
+	    piece.moveTo(piece.getPuzzleX() + dx, piece.getPuzzleY() + dy);
+	    hints.moved(piece);
+	}
+	selectBounds.translate(dx, dy);
+	dirty.add(selectBounds);
+	repaintModel(dirty.x, dirty.y, dirty.width + 1, dirty.height + 1);
+    }
+
+    /*
+     * Rotate every selected piece, and turn the selection as a whole about
+     * its center, so that pieces that fitted together still do. Positions
+     * are worked out doubled, so that centers needn't be rounded.
+     */
+    private void rotateSelection(final int amount) {
+	boundSelection();
+	Rectangle dirty = new Rectangle(selectBounds);
+	int cx2 = 2 * selectBounds.x + selectBounds.width;
+	int cy2 = 2 * selectBounds.y + selectBounds.height;
+	for (Piece piece : selection) {
+	    int dx = 2 * piece.getPuzzleX() + piece.getCurrentWidth() - cx2;
+	    int dy = 2 * piece.getPuzzleY() + piece.getCurrentHeight() - cy2;
+	    piece.setRotation((piece.getRotation() + amount) % 360);
+	    // A quarter turn to the right takes (dx, dy) to (-dy, dx).
+	    int px2 = amount == 90 ? cx2 - dy : cx2 + dy;
+	    int py2 = amount == 90 ? cy2 + dx : cy2 - dx;
+	    piece.moveTo(Math.floorDiv(px2 - piece.getCurrentWidth(), 2),
+			 Math.floorDiv(py2 - piece.getCurrentHeight(), 2));
+	    hints.moved(piece);
+	    if (recorder != null) {
+		recorder.rotated(piece);
+	    }
+	}
+	boundSelection();
+	dirty.add(selectBounds);
+	repaintModel(dirty.x, dirty.y, dirty.width + 1, dirty.height + 1);
+    }
+
+    /*
+     * Push the selected pieces to the back, keeping their order.
+     */
+    private void pushSelection() {
+	Set<Piece> selected =
+	    Collections.newSetFromMap(new IdentityHashMap<Piece, Boolean>());
+	selected.addAll(selection);
+	List<Piece> rest = new ArrayList<>(zorder.size());
+	for (Piece piece : zorder) {
+	    if (!selected.contains(piece)) {
+		rest.add(piece);
+	    }
+	}
+	zorder.clear();
+	zorder.addAll(selection);
+	zorder.addAll(rest);
+	for (int i = selection.size() - 1; i >= 0; i--) {
+	    hints.lower(selection.get(i));
+	}
+	repaintSelection();
+	if (recorder != null) {
+	    recorder.shuffled(zorder);
+	}
+    }
+
+    private void clearSelection() {
+	if (!selection.isEmpty()) {
+	    repaintSelection();
+	    selection.clear();
+	}
+    }
+
+    /*
+     * Work out the rectangle around the selected pieces afresh, in case
+     * they've been moved by someone else.
+     */
+    private void boundSelection() {
+	int x0 = Integer.MAX_VALUE;
+	int y0 = Integer.MAX_VALUE;
+	int x1 = Integer.MIN_VALUE;
+	int y1 = Integer.MIN_VALUE;
+	for (Piece piece : selection) {
+	    x0 = Math.min(x0, piece.getPuzzleX());
+	    y0 = Math.min(y0, piece.getPuzzleY());
+	    x1 = Math.max(x1, piece.getPuzzleX() + piece.getCurrentWidth());
+	    y1 = Math.max(y1, piece.getPuzzleY() + piece.getCurrentHeight());
+	}
+	if (selection.isEmpty()) {
+	    selectBounds.setBounds(0, 0, 0, 0);
+	} else {
+	    selectBounds.setBounds(x0, y0, x1 - x0, y1 - y0);
+	}
+    }
+
+    private void repaintSelection() {
+	repaintModel(selectBounds.x, selectBounds.y,
+		     selectBounds.width + 1, selectBounds.height + 1);
+    }
+
+    private void paintSelection(final Graphics2D g2, final Rectangle mclip) {
+	g2.setColor(SELECT_COLOR);
+	for (Piece piece : selection) {
+	    int x = piece.getPuzzleX();
+	    int y = piece.getPuzzleY();
+	    int w = piece.getCurrentWidth();
+	    int h = piece.getCurrentHeight();
+	    if (mclip.intersects(x, y, w + 1, h + 1)) {
+		g2.drawRect(x, y, w, h);
+	    }
+	}
+    }
+
     // Keyboard event handling ----------------------------------------------
 
     void keyTyped0(final KeyEvent e) {
@@ -719,12 +1729,24 @@ public final class JigsawPuzzle extends JPanel {
 	    rotatePiece(90);
 	} else if (ch == SHUFFLE_KEY) {
 	    shuffle();
+	} else if (ch == SORT_KEY) {
+	    sortIntoTrays();
 	} else if (ch == PUSH_KEY) {
 	    push();
 	} else if (ch == CLEAR) {
 	    toggleClearMode();
+	} else if (ch == SELECT) {
+	    toggleSelectMode();
 	} else if (ch == HIDE) {
 	    toggleHidden();
+	} else if (ch == HINT) {
+	    showHint();
+	} else if (ch == ZOOM_IN) {
+	    zoomAboutCenter(zoom + 1);
+	} else if (ch == ZOOM_OUT) {
+	    zoomAboutCenter(zoom - 1);
+	} else if (ch == FRAME_STATS) {
+	    toggleFrameStats();
 	}
     }
 
@@ -744,6 +1766,10 @@ public final class JigsawPuzzle extends JPanel {
     }
 
     private void rotatePiece(final int amount) {
+	if (selectMode && !selection.isEmpty()) {
+	    rotateSelection(amount);
+	    return;
+	}
 	if (focusPiece == null) {
 	    return;
 	}
@@ -762,8 +1788,12 @@ public final class JigsawPuzzle extends JPanel {
 	int currX = prevX + (prevW - currW) / 2;
 	int currY = prevY + (prevH - currH) / 2;
 	focusPiece.moveTo(currX, currY);
-	repaint(0, prevX, prevY, prevW, prevH);
-	repaint(0, currX, currY, currW, currH);
+	hints.moved(focusPiece);
+	repaintModel(prevX, prevY, prevW, prevH);
+	repaintModel(currX, currY, currW, currH);
+	if (recorder != null) {
+	    recorder.rotated(focusPiece);
+	}
     }
 
     private void prevBackground() {
@@ -793,6 +1823,13 @@ public final class JigsawPuzzle extends JPanel {
 	}
     }
 
+    private void toggleSelectMode() {
+	// can't toggle select mode while dragging
+	if (!mouseDown) {
+	    setSelectMode(!selectMode);
+	}
+    }
+
     private void setClearColor() {
 	clearColor = isBright(BGCOLORS[bgColor]) ? CLEAR_COLOR_B
 	    : CLEAR_COLOR_W;
@@ -3,7 +3,12 @@ package uk.co.petertribble.sphaero2;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
-import java.util.concurrent.ThreadLocalRandom;
+import java.awt.geom.PathIterator;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 
 // ### Trouble with this scheme: roundoff error, apparently.  Transformed
 //   paths aren't guaranteed to end up exactly at the endpoints.
@@ -76,12 +81,21 @@ public final class Knob {
     private static final float XDBVARY = 1 / 4f;
     private static final float XDFVARY = 1 / 4f;
 
+    // How far the flattened outline may stray from the curve, in pixels.
+    private static final double FLATNESS = 0.25;
+
     private final int x1;
     private final int y1;
     private final int x2;
     private final int y2;
-    private GeneralPath cpath;
-    private GeneralPath cpathReverse;
+    // The control data, after it has been jittered.
+    private final float[][] ctl;
+    // The curve flattened into straight lines, as x and y coordinates in
+    // turn, each way round.
+    private float[] polyline;
+    private float[] polylineReverse;
+    // The bounds of the curve and its control points.
+    private Rectangle bounds;
 
     /**
      * Creates a new Knob, anchored on the given coordinates.
@@ -92,53 +106,120 @@ public final class Knob {
      * @param yy2 y coordinate of the finish endpoint
      */
     public Knob(final int xx1, final int yy1, final int xx2, final int yy2) {
+	this(xx1, yy1, xx2, yy2, new SplittableRandom());
+    }
+
+    /**
+     * Creates a new Knob, anchored on the given coordinates, with its shape
+     * varied using the given source of random numbers.
+     *
+     * @param xx1 x coordinate of the start endpoint
+     * @param yy1 y coordinate of the start endpoint
+     * @param xx2 x coordinate of the finish endpoint
+     * @param yy2 y coordinate of the finish endpoint
+     * @param random the source of random numbers used to vary the shape
+     */
+    public Knob(final int xx1, final int yy1, final int xx2, final int yy2,
+		final SplittableRandom random) {
+	this(xx1, yy1, xx2, yy2, jitteredControl(random));
+    }
+
+    /**
+     * Creates a new Knob, anchored on the given coordinates, with the shape
+     * given by previously jittered control data.
+     *
+     * @param xx1 x coordinate of the start endpoint
+     * @param yy1 y coordinate of the start endpoint
+     * @param xx2 x coordinate of the finish endpoint
+     * @param yy2 y coordinate of the finish endpoint
+     * @param data the control data, which is used directly and should not
+     * be modified afterward
+     */
+    private Knob(final int xx1, final int yy1, final int xx2, final int yy2,
+		 final float[][] data) {
 	x1 = xx1;
 	y1 = yy1;
 	x2 = xx2;
 	y2 = yy2;
+	ctl = data;
 	initPath();
     }
 
-    private void initPath() {
+    private static float[][] jitteredControl(final SplittableRandom random) {
 	float[][] data = new float[CTL.length][];
 	for (int i = 0; i < data.length; i++) {
 	    data[i] = CTL[i].clone();
 	}
+	jitter(data, XVARY, YVARY, XDBVARY, XDFVARY, random);
+	return data;
+    }
 
-	jitter(data, XVARY, YVARY, XDBVARY, XDFVARY);
+    /*
+     * The curve is only needed as a path while it's flattened, so it
+     * isn't kept.
+     */
+    private void initPath() {
+	float[][] data = ctl;
 
-	cpath = new GeneralPath(GeneralPath.WIND_NON_ZERO, data.length * 3 - 2);
-	cpathReverse
-          = new GeneralPath(GeneralPath.WIND_NON_ZERO, data.length * 3 - 2);
+	GeneralPath cpath = new GeneralPath(GeneralPath.WIND_NON_ZERO,
+					    data.length * 3 - 2);
 	cpath.moveTo(data[0][X], data[0][Y]);
-	cpathReverse.moveTo(data[data.length - 1][X], data[data.length - 1][Y]);
 	for (int i = 0; i < data.length - 1; i++) {
-	    curveTo(cpath, data, i, true);
-	    curveTo(cpathReverse, data, data.length - 1 - i, false);
+	    curveTo(cpath, data, i);
 	}
 
 	// Transform to coincide with line segment (x1,y1)-(x2,y2)
-	AffineTransform affine
-	    = new AffineTransform(x2 - x1, y2 - y1, y1 - y2, x2 - x1, x1, y1);
-	cpath.transform(affine);
-	cpathReverse.transform(affine);
+	cpath.transform(new AffineTransform(x2 - x1, y2 - y1, y1 - y2,
+					    x2 - x1, x1, y1));
+	bounds = cpath.getBounds();
+	initPolyline(cpath);
+    }
+
+    /*
+     * Flatten the curve once, for every piece cut with this Knob. The
+     * reverse is the same points backwards, rather than the reverse curve
+     * flattened separately, so that the pieces on either side meet
+     * exactly. The ends are put back on the endpoints, which the
+     * transform doesn't quite hit.
+     */
+    private void initPolyline(final GeneralPath cpath) {
+	float[] line = new float[64];
+	int n = 0;
+	float[] coords = new float[6];
+	for (PathIterator pi = cpath.getPathIterator(null, FLATNESS);
+		 !pi.isDone(); pi.next()) {
+	    if (pi.currentSegment(coords) != PathIterator.SEG_CLOSE) {
+		if (n == line.length) {
+		    line = Arrays.copyOf(line, 2 * n);
+		}
+		line[n] = coords[0];
+		line[n + 1] = coords[1];
+		n += 2;
+	    }
+	}
+	line = Arrays.copyOf(line, n);
+	line[0] = x1;
+	line[1] = y1;
+	line[n - 2] = x2;
+	line[n - 1] = y2;
+	polyline = line;
+	polylineReverse = new float[n];
+	for (int i = 0; i < n; i += 2) {
+	    polylineReverse[i] = line[n - 2 - i];
+	    polylineReverse[i + 1] = line[n - 1 - i];
+	}
     }
 
-    private void curveTo(final GeneralPath path, final float[][] data,
-			  final int idx, final boolean forward) {
-	int delta = forward ? 1 : -1;
+    private static void curveTo(final GeneralPath path, final float[][] data,
+				final int idx) {
 	float cx1 = data[idx][X];
 	float cy1 = data[idx][Y];
 	float m1 = data[idx][SLOPE];
-	float d1f = data[idx][forward ? XDF : XDB];
-	float cx2 = data[idx + delta][X];
-	float cy2 = data[idx + delta][Y];
-	float m2 = data[idx + delta][SLOPE];
-	float d2b = data[idx + delta][forward ? XDB : XDF];
-	if (!forward) {
-	    d1f *= -1.0f;
-	    d2b *= -1.0f;
-	}
+	float d1f = data[idx][XDF];
+	float cx2 = data[idx + 1][X];
+	float cy2 = data[idx + 1][Y];
+	float m2 = data[idx + 1][SLOPE];
+	float d2b = data[idx + 1][XDB];
 	float nx1 = cx1 + d1f;
 	float ny1 = cy1 + d1f * m1;
 	float nx2 = cx2 - d2b;
@@ -147,22 +228,25 @@ public final class Knob {
     }
 
     /**
-     * Returns a copy of the path used to create this Knob, starting with
-     * the given endpoint.
+     * Returns this Knob's curve flattened into straight lines, starting
+     * with the given endpoint, as the x and y coordinates of each point in
+     * turn. The curve is only flattened once, and the same points are
+     * used both ways round, so the array is shared and must not be
+     * modified.
      *
      * @param x the x coordinate of the endpoint
      * @param y the y coordinate of the endpoint
      *
-     * @return a copy of the Path bounding this Knob
+     * @return the points along this Knob
      *
      * @throws IllegalArgumentException if (x,y) is not an endpoint of this
      * Knob
      */
-    public GeneralPath getCurvePath(final int x, final int y) {
+    public float[] getPolyline(final int x, final int y) {
 	if ((x == x1) && (y == y1)) {
-	    return (GeneralPath) cpath.clone();
+	    return polyline; // NOPMD
 	} else if ((x == x2) && (y == y2)) {
-	    return (GeneralPath) cpathReverse.clone();
+	    return polylineReverse; // NOPMD
 	} else {
 	    throw new IllegalArgumentException(
 				"Not an endpoint: (" + x + "," + y + ")");
@@ -170,30 +254,83 @@ public final class Knob {
     }
 
     /**
-     * Returns a rectangle bounding this Knob.
+     * Returns a rectangle bounding this Knob, including the control points
+     * of its curves.
      *
      * @return the Rectangle bounding this Knob
      */
     public Rectangle getBounds() {
-	return cpath.getBounds();
+	return new Rectangle(bounds);
     }
 
-    private void jitter(final float[][] pts, final float xvar, final float yvar,
-			 final float bvar, final float fvar) {
-	ThreadLocalRandom trandom = ThreadLocalRandom.current();
+    private static void jitter(final float[][] pts,
+			       final float xvar, final float yvar,
+			       final float bvar, final float fvar,
+			       final SplittableRandom random) {
 	for (int i = 0; i < pts.length; i++) {
 	    float b = pts[i][XDB];
 	    float f = pts[i][XDF];
 	    // x,y each varies by + or - itsvar
 	    // first and last x do not vary
 	    if ((i > 0) && (i < pts.length - 1)) {
-		pts[i][X] += trandom.nextFloat() * xvar * 2 - xvar;
+		pts[i][X] += nextFloat(random) * xvar * 2 - xvar;
 	    }
-	    pts[i][Y] += trandom.nextFloat() * yvar * 2 - yvar;
+	    pts[i][Y] += nextFloat(random) * yvar * 2 - yvar;
 	    // b,f each varies by + or - it*itsvar
-	    pts[i][XDB] += trandom.nextFloat() * b * bvar * 2 - b * bvar;
-	    pts[i][XDF] += trandom.nextFloat() * f * fvar * 2 - f * fvar;
+	    pts[i][XDB] += nextFloat(random) * b * bvar * 2 - b * bvar;
+	    pts[i][XDF] += nextFloat(random) * f * fvar * 2 - f * fvar;
+	}
+    }
+
+    /*
+     * SplittableRandom has no nextFloat(), so take the top 24 bits of an
+     * int in the same way Random does.
+     */
+    private static float nextFloat(final SplittableRandom random) {
+	return (random.nextInt() >>> 8) * 0x1.0p-24f;
+    }
+
+    /**
+     * Writes this Knob's endpoints and shape, so that it can be recreated
+     * exactly by {@link #read}.
+     *
+     * @param out the DataOutput to write to
+     *
+     * @throws IOException if the Knob cannot be written
+     */
+    public void write(final DataOutput out) throws IOException {
+	out.writeInt(x1);
+	out.writeInt(y1);
+	out.writeInt(x2);
+	out.writeInt(y2);
+	for (float[] point : ctl) {
+	    for (float f : point) {
+		out.writeFloat(f);
+	    }
+	}
+    }
+
+    /**
+     * Reads a Knob previously written by {@link #write}.
+     *
+     * @param in the DataInput to read from
+     *
+     * @return the recreated Knob
+     *
+     * @throws IOException if the Knob cannot be read
+     */
+    public static Knob read(final DataInput in) throws IOException {
+	int xx1 = in.readInt();
+	int yy1 = in.readInt();
+	int xx2 = in.readInt();
+	int yy2 = in.readInt();
+	float[][] data = new float[CTL.length][CTL[0].length];
+	for (float[] point : data) {
+	    for (int i = 0; i < point.length; i++) {
+		point[i] = in.readFloat();
+	    }
 	}
+	return new Knob(xx1, yy1, xx2, yy2, data);
     }
 
     @Override
@@ -0,0 +1,181 @@
+package uk.co.petertribble.sphaero2;
+
+import java.io.PrintStream;
+
+/**
+ * A histogram of latencies, in nanoseconds. Latencies are counted in
+ * buckets whose width grows with the latency, eight buckets to each power
+ * of two, so that percentiles are accurate to within about 12% over the
+ * whole range while the histogram stays small and recording is cheap.
+ */
+public final class LatencyHistogram {
+
+    /*
+     * Latencies below 16ns have a bucket each; above that, each power of
+     * two is split into SUB_BUCKETS buckets.
+     */
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    static final int BUCKETS = LINEAR + (63 - SUB_BITS) * SUB_BUCKETS;
+
+    private final String name;
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long total;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * Create a new, empty, LatencyHistogram.
+     *
+     * @param nname the name of what is being measured, used in reports
+     */
+    public LatencyHistogram(final String nname) {
+	name = nname;
+    }
+
+    /*
+     * The bucket a latency is counted in. Also used by PuzzleStats, which
+     * keeps its own counts.
+     */
+    static int bucket(final long nanos) {
+	if (nanos < LINEAR) {
+	    return (int) nanos;
+	}
+	int msb = 63 - Long.numberOfLeadingZeros(nanos);
+	int sub = (int) (nanos >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+	return LINEAR + (msb - SUB_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    /*
+     * The largest latency that would be counted in the given bucket.
+     */
+    static long upperBound(final int bucket) {
+	if (bucket < LINEAR) {
+	    return bucket;
+	}
+	int msb = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+	long sub = (bucket - LINEAR) % SUB_BUCKETS;
+	long width = 1L << (msb - SUB_BITS);
+	return (SUB_BUCKETS + sub) * width + width - 1;
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos the latency, in nanoseconds
+     */
+    public synchronized void record(final long nanos) {
+	long n = Math.max(0L, nanos);
+	counts[bucket(n)]++;
+	count++;
+	total += n;
+	min = Math.min(min, n);
+	max = Math.max(max, n);
+    }
+
+    /**
+     * Returns the number of latencies recorded.
+     *
+     * @return the number of latencies recorded
+     */
+    public synchronized long getCount() {
+	return count;
+    }
+
+    /**
+     * Returns the mean of the latencies recorded.
+     *
+     * @return the mean latency in nanoseconds, or zero if nothing has been
+     * recorded
+     */
+    public synchronized long getMean() {
+	return count == 0 ? 0L : total / count;
+    }
+
+    /**
+     * Returns the largest latency recorded.
+     *
+     * @return the largest latency in nanoseconds
+     */
+    public synchronized long getMax() {
+	return max;
+    }
+
+    /**
+     * Returns the given percentile of the latencies recorded. The result
+     * is the upper bound of the bucket the percentile falls in, so is
+     * never less than the true value.
+     *
+     * @param percentile the percentile, between 0 and 100
+     *
+     * @return the latency in nanoseconds, or zero if nothing has been
+     * recorded
+     */
+    public synchronized long getPercentile(final double percentile) {
+	if (count == 0) {
+	    return 0L;
+	}
+	long target = (long) Math.ceil(count * percentile / 100.0);
+	target = Math.max(1L, Math.min(count, target));
+	long seen = 0L;
+	for (int i = 0; i < BUCKETS; i++) {
+	    seen += counts[i];
+	    if (seen >= target) {
+		return Math.min(max, Math.max(min, upperBound(i)));
+	    }
+	}
+	return max;
+    }
+
+    /**
+     * Print a summary of the latencies recorded, followed by a bar chart
+     * with one bar for each power of two milliseconds.
+     *
+     * @param out the stream to print to
+     */
+    public synchronized void print(final PrintStream out) {
+	out.println(name + ": " + count + " recorded");
+	if (count == 0) {
+	    return;
+	}
+	out.println("  min " + millis(min)
+		+ "  p50 " + millis(getPercentile(50))
+		+ "  p90 " + millis(getPercentile(90))
+		+ "  p99 " + millis(getPercentile(99))
+		+ "  max " + millis(max) + "  mean " + millis(getMean()));
+
+	// Fold the buckets into powers of two milliseconds.
+	long[] bars = new long[64];
+	int first = bars.length;
+	int last = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    if (counts[i] != 0) {
+		long ms = upperBound(i) / 1000000L;
+		int bar = ms == 0 ? 0 : 64 - Long.numberOfLeadingZeros(ms);
+		bars[bar] += counts[i];
+		first = Math.min(first, bar);
+		last = Math.max(last, bar);
+	    }
+	}
+	long most = 0L;
+	for (long bar : bars) {
+	    most = Math.max(most, bar);
+	}
+	for (int bar = first; bar <= last; bar++) {
+	    String label = bar == 0 ? "< 1ms"
+		: "< " + (1L << bar) + "ms";
+	    StringBuilder sb = new StringBuilder();
+	    sb.append(String.format("  %10s %8d ", label, bars[bar]));
+	    for (long i = 0; i < (bars[bar] * 50 + most - 1) / most; i++) {
+		sb.append('#');
+	    }
+	    out.println(sb);
+	}
+    }
+
+    private static String millis(final long nanos) {
+	return String.format("%.3fms", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,198 @@
+package uk.co.petertribble.sphaero2;
+
+/**
+ * Estimates how much memory a puzzle will need before it's cut, and
+ * decides how big a picture, and which way of holding the pieces, will fit
+ * in the heap. Running out of memory half way through solving a puzzle
+ * loses the player's work, so it's better to start with a smaller or
+ * slower puzzle, and say so.
+ *
+ * <p>The estimate counts the picture itself, then for each piece its
+ * original and current data, its image, and its scaled-down images,
+ * allowing for the pieces' rectangles overlapping. Joined pieces keep the
+ * data of the pieces they're made of, and add their own, so the worst
+ * case is the whole picture held by a joined piece, and held again by
+ * the next joined piece while it's being made.
+ */
+final class MemoryGovernor {
+
+    /*
+     * Plan to use only this fraction of the free heap, leaving the rest
+     * for the garbage collector, Swing, and everything else.
+     */
+    private static final double HEADROOM = 0.75;
+
+    /*
+     * Bytes per pixel: a piece's original and current data; the copy of
+     * its image that's drawn to the screen; and its scaled-down images,
+     * which add a quarter, a sixteenth, and so on. A joined piece, or one
+     * that shares the picture's pixels, has no original data of its own.
+     */
+    private static final double DATA_BYTES = 8.0;
+    private static final double SHARED_DATA_BYTES = 4.0;
+    private static final double JOINED_DATA_BYTES = 4.0;
+    private static final double IMAGE_BYTES = 4.0;
+    private static final double LEVEL_BYTES = 4.0 / 3.0;
+
+    /*
+     * How many joined pieces as big as the picture may be held at once.
+     */
+    private static final int JOINED = 2;
+
+    /*
+     * Everything else a piece holds, such as its neighbors.
+     */
+    private static final long PIECE_BYTES = 1024L;
+
+    /*
+     * Pictures aren't reduced any smaller than this on their shorter side.
+     */
+    private static final int MIN_SIDE = 128;
+
+    private MemoryGovernor() {
+    }
+
+    /**
+     * Estimates the most memory a puzzle will need while it's solved.
+     *
+     * @param width the width of the picture
+     * @param height the height of the picture
+     * @param cutter the JigsawCutter that will cut it
+     * @param compact whether the pieces will be held compactly
+     *
+     * @return the estimated number of bytes
+     */
+    static long estimate(final int width, final int height,
+			 final JigsawCutter cutter, final boolean compact) {
+	return (long) (perPixel(cutter, compact) * width * height)
+	    + fixedBytes(cutter);
+    }
+
+    /*
+     * Bytes needed for each pixel of the picture.
+     */
+    private static double perPixel(final JigsawCutter cutter,
+				   final boolean compact) {
+	double images = compact ? 0.0 : IMAGE_BYTES + LEVEL_BYTES;
+	double data = cutter.sharesPicture() ? SHARED_DATA_BYTES : DATA_BYTES;
+	return 4.0 + cutter.getOverlap() * (data + images)
+	    + JOINED * (JOINED_DATA_BYTES + images);
+    }
+
+    /*
+     * Bytes needed however big the picture is.
+     */
+    private static long fixedBytes(final JigsawCutter cutter) {
+	return cutter.prefPieces * PIECE_BYTES;
+    }
+
+    /**
+     * Returns how many bytes of the heap are free, or will be once the
+     * given number of bytes that are still held have been let go of. The
+     * garbage collector is run first, so that garbage isn't counted as
+     * being used.
+     *
+     * @param reclaimable bytes still in use that won't be needed
+     *
+     * @return the number of bytes available
+     */
+    static long available(final long reclaimable) {
+	Runtime rt = Runtime.getRuntime();
+	System.gc();
+	long used = rt.totalMemory() - rt.freeMemory();
+	return rt.maxMemory() - used + reclaimable;
+    }
+
+    /**
+     * Decides how big a picture to cut, and whether its pieces should be
+     * held compactly, to fit in the given number of bytes. A picture at
+     * full size is preferred, with compact pieces if need be, then the
+     * largest smaller picture that fits with compact pieces.
+     *
+     * @param width the width of the picture
+     * @param height the height of the picture
+     * @param cutter the JigsawCutter that will cut it
+     * @param available the number of bytes available
+     *
+     * @return a Plan for the puzzle
+     */
+    static Plan plan(final int width, final int height,
+		     final JigsawCutter cutter, final long available) {
+	long budget = (long) (available * HEADROOM);
+	if (estimate(width, height, cutter, false) <= budget) {
+	    return new Plan(width, height, false, true);
+	}
+	if (estimate(width, height, cutter, true) <= budget) {
+	    return new Plan(width, height, true, true);
+	}
+	double pixels = (budget - fixedBytes(cutter))
+	    / perPixel(cutter, true);
+	double scale = pixels > 0.0
+	    ? Math.sqrt(pixels / ((double) width * height)) : 0.0;
+	boolean fits = true;
+	int shorter = Math.min(width, height);
+	if (shorter * scale < MIN_SIDE) {
+	    scale = Math.min(1.0, (double) MIN_SIDE / shorter);
+	    fits = false;
+	}
+	return new Plan(Math.max(1, (int) (width * scale)),
+			Math.max(1, (int) (height * scale)), true, fits);
+    }
+
+    /**
+     * How big a picture to cut, and how to hold its pieces.
+     */
+    static final class Plan {
+
+	private final int width;
+	private final int height;
+	private final boolean compact;
+	private final boolean fits;
+
+	private Plan(final int nwidth, final int nheight,
+		     final boolean ncompact, final boolean nfits) {
+	    width = nwidth;
+	    height = nheight;
+	    compact = ncompact;
+	    fits = nfits;
+	}
+
+	/**
+	 * Returns the width the picture should be cut at.
+	 *
+	 * @return the width of the picture
+	 */
+	int getWidth() {
+	    return width;
+	}
+
+	/**
+	 * Returns the height the picture should be cut at.
+	 *
+	 * @return the height of the picture
+	 */
+	int getHeight() {
+	    return height;
+	}
+
+	/**
+	 * Returns whether the pieces should be held compactly.
+	 *
+	 * @return true if the pieces should be compact
+	 */
+	boolean isCompact() {
+	    return compact;
+	}
+
+	/**
+	 * Returns whether the puzzle is expected to fit in memory. If not,
+	 * the picture has been reduced as far as it reasonably can be, and
+	 * the puzzle may still run out of memory.
+	 *
+	 * @return true if the puzzle should fit
+	 */
+	boolean fits() {
+	    return fits;
+	}
+    }
+}
@@ -0,0 +1,604 @@
+package uk.co.petertribble.sphaero2;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Records every change made to a puzzle, so that if the program dies the
+ * puzzle can be recovered as it was. There is a single recovery slot, so
+ * starting a new journal replaces whatever could previously have been
+ * recovered.
+ *
+ * <p>The journal consists of two files. The snapshot is a saved puzzle,
+ * as written by PuzzleFile. The log is appended to as the puzzle is
+ * solved, and holds a small binary record for each change made since
+ * the snapshot. Records are collected on the AWT thread and written out
+ * in batches by a background thread, which flushes each batch to disk.
+ * Each batch is checksummed, so that a batch only partly written when
+ * the program died is ignored.
+ *
+ * <p>Every so often a new snapshot is taken and the log is truncated, so
+ * that it doesn't grow without limit. Both files carry a generation
+ * number, and the log is only replayed if its generation matches that
+ * of the snapshot, so a crash part way through replacing the snapshot
+ * never causes records to be applied to the wrong snapshot.
+ */
+public final class MoveJournal implements PuzzleRecorder, Runnable {
+
+    private static final int SNAP_MAGIC = 0x53504853; // "SPHS"
+    private static final int LOG_MAGIC = 0x5350484a; // "SPHJ"
+
+    private static final String SNAP_NAME = "recover.snap";
+    private static final String LOG_NAME = "recover.jnl";
+
+    /**
+     * How long, in milliseconds, records are collected before being
+     * written out as a batch.
+     */
+    private static final long BATCH_MILLIS = 100L;
+
+    /**
+     * Take a new snapshot after this many records.
+     */
+    private static final int SNAPSHOT_RECORDS = 1000;
+
+    /**
+     * The biggest batch we're prepared to believe when reading the log.
+     */
+    private static final int MAX_BATCH = 1 << 24;
+
+    /*
+     * The types of record. CoopChannel uses the same records, and adds
+     * its own types after these.
+     */
+    static final byte MOVE = 1;
+    static final byte ROTATE = 2;
+    static final byte JOIN = 3;
+    static final byte PUSH = 4;
+    static final byte SHUFFLE = 5;
+    static final byte SCATTER = 6;
+
+    private final File snapFile;
+    private final File logFile;
+    private final JigsawPuzzle puzzle;
+    private final File imageFile;
+    private final Thread thread;
+
+    /*
+     * Records collected on the AWT thread but not yet written, and a
+     * snapshot not yet written, both guarded by the lock.
+     */
+    private final Object lock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private DataOutputStream pendingOut = new DataOutputStream(pending);
+    private byte[] pendingSnapshot;
+    private long generation;
+    private boolean closed;
+    private boolean discard;
+
+    /*
+     * Only used on the AWT thread.
+     */
+    private int records;
+
+    /*
+     * Only used by the writer thread.
+     */
+    private FileChannel log;
+
+    /**
+     * Start journalling the given puzzle. An initial snapshot is written
+     * straight away, replacing anything that could previously have been
+     * recovered from the given folder.
+     *
+     * @param dir the folder to keep the journal in
+     * @param npuzzle the JigsawPuzzle to record
+     * @param nimageFile the image file the puzzle was made from
+     *
+     * @throws IOException if the journal cannot be created
+     */
+    public MoveJournal(final File dir, final JigsawPuzzle npuzzle,
+		       final File nimageFile) throws IOException {
+	snapFile = new File(dir, SNAP_NAME);
+	logFile = new File(dir, LOG_NAME);
+	puzzle = npuzzle;
+	imageFile = nimageFile;
+	if (!dir.isDirectory() && !dir.mkdirs()) {
+	    throw new IOException("Unable to create " + dir);
+	}
+	generation = System.currentTimeMillis();
+	writeSnapshot(snapshot(), generation);
+	thread = new Thread(this, "sphaero2-journal");
+	thread.setDaemon(true);
+	thread.start();
+	puzzle.setRecorder(this);
+    }
+
+    /**
+     * Returns the folder journals are kept in by default.
+     *
+     * @return the default journal folder
+     */
+    public static File defaultDirectory() {
+	return new File(System.getProperty("user.home"), ".sphaero2");
+    }
+
+    /**
+     * Returns whether there is a puzzle that can be recovered from the
+     * given folder.
+     *
+     * @param dir the folder journals are kept in
+     *
+     * @return true if there is a snapshot to recover
+     */
+    public static boolean canRecover(final File dir) {
+	return new File(dir, SNAP_NAME).isFile();
+    }
+
+    /**
+     * Reads the snapshot of the puzzle being recovered from the given
+     * folder. The changes recorded since the snapshot are applied with
+     * {@link #replay} once the puzzle has been restored.
+     *
+     * @param dir the folder journals are kept in
+     *
+     * @return the snapshot as a PuzzleFile
+     *
+     * @throws IOException if the snapshot cannot be read
+     */
+    public static PuzzleFile readSnapshot(final File dir) throws IOException {
+	File file = new File(dir, SNAP_NAME);
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(file)))) {
+	    if (in.readInt() != SNAP_MAGIC) {
+		throw new IOException("Not a puzzle snapshot");
+	    }
+	    in.readLong();
+	    return PuzzleFile.read(in);
+	}
+    }
+
+    /**
+     * Apply the changes recorded in the given folder's log to a puzzle
+     * that has been restored from its snapshot. Replay stops at the first
+     * batch that wasn't completely written.
+     *
+     * @param dir the folder journals are kept in
+     * @param npuzzle the JigsawPuzzle restored from the snapshot
+     *
+     * @return the number of changes that were applied
+     *
+     * @throws IOException if the journal cannot be read
+     */
+    public static int replay(final File dir, final JigsawPuzzle npuzzle)
+	    throws IOException {
+	long snapgen;
+	try (DataInputStream in = new DataInputStream(
+			new FileInputStream(new File(dir, SNAP_NAME)))) {
+	    if (in.readInt() != SNAP_MAGIC) {
+		throw new IOException("Not a puzzle snapshot");
+	    }
+	    snapgen = in.readLong();
+	}
+	File file = new File(dir, LOG_NAME);
+	if (!file.isFile()) {
+	    return 0;
+	}
+	int count = 0;
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(file)))) {
+	    if (in.readInt() != LOG_MAGIC || in.readLong() != snapgen) {
+		return 0;
+	    }
+	    CRC32 crc = new CRC32();
+	    while (true) {
+		int len = in.readInt();
+		int sum = in.readInt();
+		if (len < 0 || len > MAX_BATCH) {
+		    break;
+		}
+		byte[] batch = new byte[len];
+		in.readFully(batch);
+		crc.reset();
+		crc.update(batch);
+		if ((int) crc.getValue() != sum) {
+		    break;
+		}
+		count += apply(npuzzle, batch);
+	    }
+	} catch (EOFException e) {
+	    // the last batch wasn't finished, which is expected after a crash
+	}
+	return count;
+    }
+
+    /*
+     * Apply the records in a batch, returning how many were applied.
+     */
+    private static int apply(final JigsawPuzzle npuzzle, final byte[] batch)
+	    throws IOException {
+	DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(batch));
+	int count = 0;
+	while (in.available() > 0) {
+	    if (!apply(npuzzle, in.readByte(), in, batch.length)) {
+		throw new IOException("Journal does not match puzzle");
+	    }
+	    count++;
+	}
+	return count;
+    }
+
+    /**
+     * Read one record and apply it to a puzzle.
+     *
+     * @param npuzzle the JigsawPuzzle to apply the record to
+     * @param op the type of record, which has already been read
+     * @param in the stream to read the rest of the record from
+     * @param limit the most pieces a record can sensibly refer to
+     *
+     * @return false if the record refers to a piece that doesn't exist
+     *
+     * @throws IOException if the record cannot be read, or is not a
+     * record written by this class
+     */
+    static boolean apply(final JigsawPuzzle npuzzle, final byte op,
+			 final DataInputStream in, final int limit)
+	    throws IOException {
+	if (op == MOVE) {
+	    int key = in.readInt();
+	    int x = in.readInt();
+	    return npuzzle.replayMove(key, x, in.readInt());
+	} else if (op == ROTATE) {
+	    int key = in.readInt();
+	    int quarters = in.readUnsignedByte();
+	    if (quarters > 3) {
+		throw new IOException("Corrupt journal");
+	    }
+	    int rotation = quarters * 90;
+	    int x = in.readInt();
+	    return npuzzle.replayRotate(key, rotation, x, in.readInt());
+	} else if (op == JOIN) {
+	    return npuzzle.replayJoin(in.readInt());
+	} else if (op == PUSH) {
+	    npuzzle.replayPush();
+	    return true;
+	} else if (op == SHUFFLE || op == SCATTER) {
+	    int n = in.readInt();
+	    if (n < 0 || n > limit) {
+		throw new IOException("Corrupt journal");
+	    }
+	    int[] keys = new int[n];
+	    int[] xs = new int[n];
+	    int[] ys = new int[n];
+	    for (int i = 0; i < n; i++) {
+		keys[i] = in.readInt();
+		xs[i] = in.readInt();
+		ys[i] = in.readInt();
+	    }
+	    return npuzzle.replayPositions(keys, xs, ys, op == SHUFFLE);
+	}
+	throw new IOException("Corrupt journal");
+    }
+
+    /**
+     * Write a record that a piece was moved.
+     *
+     * @param out the stream to write the record to
+     * @param piece the Piece that was moved
+     *
+     * @throws IOException if the record cannot be written
+     */
+    static void writeMoved(final DataOutputStream out, final Piece piece)
+	    throws IOException {
+	out.writeByte(MOVE);
+	out.writeInt(piece.getKey());
+	out.writeInt(piece.getPuzzleX());
+	out.writeInt(piece.getPuzzleY());
+    }
+
+    /**
+     * Write a record that a piece was rotated.
+     *
+     * @param out the stream to write the record to
+     * @param piece the Piece that was rotated
+     *
+     * @throws IOException if the record cannot be written
+     */
+    static void writeRotated(final DataOutputStream out, final Piece piece)
+	    throws IOException {
+	out.writeByte(ROTATE);
+	out.writeInt(piece.getKey());
+	out.writeByte(piece.getRotation() / 90);
+	out.writeInt(piece.getPuzzleX());
+	out.writeInt(piece.getPuzzleY());
+    }
+
+    /**
+     * Write a record that a piece was joined to its neighbors.
+     *
+     * @param out the stream to write the record to
+     * @param piece the Piece that was dropped, as it was before the join
+     *
+     * @throws IOException if the record cannot be written
+     */
+    static void writeJoined(final DataOutputStream out, final Piece piece)
+	    throws IOException {
+	out.writeByte(JOIN);
+	out.writeInt(piece.getKey());
+    }
+
+    /**
+     * Write a record that the top piece was pushed to the back.
+     *
+     * @param out the stream to write the record to
+     *
+     * @throws IOException if the record cannot be written
+     */
+    static void writePushed(final DataOutputStream out) throws IOException {
+	out.writeByte(PUSH);
+    }
+
+    /**
+     * Write a record that pieces were shuffled or scattered.
+     *
+     * @param out the stream to write the record to
+     * @param shuffled true if all the pieces were shuffled, false if only
+     * some were scattered
+     * @param pieces the Pieces that were moved
+     *
+     * @throws IOException if the record cannot be written
+     */
+    static void writePositions(final DataOutputStream out,
+			       final boolean shuffled,
+			       final List<Piece> pieces) throws IOException {
+	out.writeByte(shuffled ? SHUFFLE : SCATTER);
+	out.writeInt(pieces.size());
+	for (Piece piece : pieces) {
+	    out.writeInt(piece.getKey());
+	    out.writeInt(piece.getPuzzleX());
+	    out.writeInt(piece.getPuzzleY());
+	}
+    }
+
+    /**
+     * Stop journalling. Anything already recorded is written out first,
+     * and the puzzle can still be recovered afterwards.
+     */
+    public void close() {
+	puzzle.setRecorder(null);
+	synchronized (lock) {
+	    closed = true;
+	    lock.notifyAll();
+	}
+	try {
+	    thread.join();
+	} catch (InterruptedException e) { }
+    }
+
+    /*
+     * Serialize the puzzle as a snapshot. Called on the AWT thread, so
+     * that the puzzle doesn't change while it's being written.
+     */
+    private byte[] snapshot() throws IOException {
+	ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	PuzzleFile.write(bos, puzzle, imageFile, puzzle.getElapsed());
+	return bos.toByteArray();
+    }
+
+    // PuzzleRecorder -------------------------------------------------------
+
+    @Override
+    public void moved(final Piece piece) {
+	synchronized (lock) {
+	    try {
+		writeMoved(pendingOut, piece);
+	    } catch (IOException e) { }
+	}
+	recorded();
+    }
+
+    @Override
+    public void rotated(final Piece piece) {
+	synchronized (lock) {
+	    try {
+		writeRotated(pendingOut, piece);
+	    } catch (IOException e) { }
+	}
+	recorded();
+    }
+
+    @Override
+    public void joined(final Piece piece) {
+	synchronized (lock) {
+	    try {
+		writeJoined(pendingOut, piece);
+	    } catch (IOException e) { }
+	}
+	recorded();
+    }
+
+    @Override
+    public void pushed() {
+	synchronized (lock) {
+	    try {
+		writePushed(pendingOut);
+	    } catch (IOException e) { }
+	}
+	recorded();
+    }
+
+    @Override
+    public void shuffled(final List<Piece> pieces) {
+	positions(true, pieces);
+    }
+
+    @Override
+    public void scattered(final List<Piece> pieces) {
+	positions(false, pieces);
+    }
+
+    private void positions(final boolean shuffled, final List<Piece> pieces) {
+	synchronized (lock) {
+	    try {
+		writePositions(pendingOut, shuffled, pieces);
+	    } catch (IOException e) { }
+	}
+	recorded();
+    }
+
+    /**
+     * The puzzle has been finished, so there's nothing left to recover.
+     */
+    @Override
+    public void finished() {
+	puzzle.setRecorder(null);
+	synchronized (lock) {
+	    closed = true;
+	    discard = true;
+	    lock.notifyAll();
+	}
+    }
+
+    /*
+     * Once enough records have built up, replace them all with a new
+     * snapshot. Any records not yet written are part of the snapshot, so
+     * can be thrown away.
+     */
+    private void recorded() {
+	records++;
+	if (records < SNAPSHOT_RECORDS) {
+	    return;
+	}
+	records = 0;
+	byte[] snap;
+	try {
+	    snap = snapshot();
+	} catch (IOException e) {
+	    return;
+	}
+	synchronized (lock) {
+	    pending.reset();
+	    pendingSnapshot = snap;
+	    lock.notifyAll();
+	}
+    }
+
+    // The writer thread ----------------------------------------------------
+
+    @Override
+    public void run() {
+	try {
+	    openLog(generation);
+	    boolean done = false;
+	    while (!done) {
+		byte[] batch;
+		byte[] snap;
+		synchronized (lock) {
+		    if (!closed && pendingSnapshot == null) {
+			try {
+			    lock.wait(BATCH_MILLIS);
+			} catch (InterruptedException e) { }
+		    }
+		    done = closed;
+		    if (discard) {
+			break;
+		    }
+		    snap = pendingSnapshot;
+		    pendingSnapshot = null;
+		    batch = pending.toByteArray();
+		    pending.reset();
+		    if (snap != null) {
+			generation++;
+		    }
+		}
+		if (snap != null) {
+		    writeSnapshot(snap, generation);
+		    log.close();
+		    openLog(generation);
+		}
+		if (batch.length > 0) {
+		    writeBatch(batch);
+		}
+	    }
+	} catch (IOException e) {
+	    System.err.println("Puzzle journal failed: " + e); // NOPMD
+	    puzzle.setRecorder(null);
+	} finally {
+	    if (log != null) {
+		try {
+		    log.close();
+		} catch (IOException e) { }
+	    }
+	}
+	synchronized (lock) {
+	    if (discard) {
+		logFile.delete();
+		snapFile.delete();
+	    }
+	}
+    }
+
+    /*
+     * Write the snapshot to a temporary file, make sure it's on disk, and
+     * only then replace the old snapshot with it.
+     */
+    private void writeSnapshot(final byte[] snap, final long gen)
+	    throws IOException {
+	File tmpfile = new File(snapFile.getPath() + ".tmp");
+	try (FileOutputStream fos = new FileOutputStream(tmpfile)) {
+	    DataOutputStream out = new DataOutputStream(fos);
+	    out.writeInt(SNAP_MAGIC);
+	    out.writeLong(gen);
+	    out.write(snap);
+	    out.flush();
+	    fos.getChannel().force(true);
+	}
+	Files.move(tmpfile.toPath(), snapFile.toPath(),
+		   StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Start a new, empty log for the given generation of snapshot.
+     */
+    private void openLog(final long gen) throws IOException {
+	log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+			       StandardOpenOption.WRITE,
+			       StandardOpenOption.TRUNCATE_EXISTING);
+	ByteBuffer header = ByteBuffer.allocate(12);
+	header.putInt(LOG_MAGIC).putLong(gen).flip();
+	writeFully(header);
+	log.force(false);
+    }
+
+    private void writeBatch(final byte[] batch) throws IOException {
+	CRC32 crc = new CRC32();
+	crc.update(batch);
+	ByteBuffer buf = ByteBuffer.allocate(8 + batch.length);
+	buf.putInt(batch.length).putInt((int) crc.getValue()).put(batch).flip();
+	writeFully(buf);
+	log.force(false);
+    }
+
+    private void writeFully(final ByteBuffer buf) throws IOException {
+	while (buf.hasRemaining()) {
+	    log.write(buf);
+	}
+    }
+}
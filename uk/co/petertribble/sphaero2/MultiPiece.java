@@ -1,5 +1,6 @@
 package uk.co.petertribble.sphaero2;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -20,6 +21,9 @@ public final class MultiPiece extends Piece {
     // need to be repainted, and so the original image data is still needed.
     private final Set<Piece> subs;
 
+    // The smallest index of the subpieces.
+    private final int key;
+
     // Constructor and fields -----------------------------------------------
 
     /**
@@ -43,6 +47,11 @@ public final class MultiPiece extends Piece {
 	super(null, imageX, imageY, imageWidth, imageHeight,
 		totalWidth, totalHeight);
 	subs = nsubs;
+	int minKey = Integer.MAX_VALUE;
+	for (Piece piece : subs) {
+	    minKey = Math.min(minKey, piece.getIndex());
+	}
+	key = minKey;
 	forceSetRotation(rotation);
     }
 
@@ -61,6 +70,30 @@ public final class MultiPiece extends Piece {
 	super.setRotation(rot);
     }
 
+    @Override
+    public int getKey() {
+	return key;
+    }
+
+    /**
+     * Returns the atomic pieces making up this MultiPiece.
+     *
+     * @return an unmodifiable Set of the atomic subpieces
+     */
+    Set<Piece> getSubs() {
+	return Collections.unmodifiableSet(subs);
+    }
+
+    /**
+     * Let go of this MultiPiece's images and data. The joined Piece it
+     * has become part of keeps its subpieces, but not this.
+     */
+    @Override
+    protected void release() {
+	super.release();
+	countPixels(-4L * curData.length);
+    }
+
     @Override
     public String toString() {
 	return "Multi" + super.toString() + "[pieces=" + subs.size() + "]";
@@ -0,0 +1,173 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * The outline of a piece as a polygon, built from straight edges and the
+ * flattened outlines of knobs, and used to mask the piece's pixels.
+ *
+ * <p>A pixel is inside the outline if its top left corner is, using the
+ * same rule as {@link java.awt.geom.Path2D#contains(double, double)}: each
+ * edge counts from its top down to, but not including, its bottom, and
+ * the pixel is inside if the edges crossing its row to its right don't
+ * wind to zero. Neighboring pieces share the points of the knob between
+ * them, so each pixel along the knob belongs to exactly one of them.
+ *
+ * <p>The pixels are masked a row at a time: the crossings of the row are
+ * found and sorted, and then only the spans between them that are outside
+ * are cleared, so the edges are looked at once per row rather than once
+ * per pixel. An outline is only read while masking, so pieces can be
+ * masked in parallel.
+ */
+final class Outline {
+
+    private float[] points = new float[64];
+    private int npoints;
+
+    // The bounds of the points, and of the knobs' control points.
+    private float minX = Float.POSITIVE_INFINITY;
+    private float minY = Float.POSITIVE_INFINITY;
+    private float maxX = Float.NEGATIVE_INFINITY;
+    private float maxY = Float.NEGATIVE_INFINITY;
+    private Rectangle control;
+
+    /**
+     * Add a point to the outline, joined by a straight line to the last
+     * point. The first point starts the outline, and the last is joined
+     * back to it.
+     *
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     */
+    void lineTo(final float x, final float y) {
+	if (2 * npoints == points.length) {
+	    points = Arrays.copyOf(points, 2 * points.length);
+	}
+	points[2 * npoints] = x;
+	points[2 * npoints + 1] = y;
+	npoints++;
+	minX = Math.min(minX, x);
+	minY = Math.min(minY, y);
+	maxX = Math.max(maxX, x);
+	maxY = Math.max(maxY, y);
+    }
+
+    /**
+     * Add one side of a piece to the outline, which is assumed to have got
+     * as far as the given start corner.
+     *
+     * @param knob the Knob on the side, or null for a straight side
+     * @param from the corner the side starts at
+     * @param to the corner the side ends at
+     */
+    void side(final Knob knob, final Point from, final Point to) {
+	if (knob == null) {
+	    lineTo(to.x, to.y);
+	    return;
+	}
+	float[] line = knob.getPolyline(from.x, from.y);
+	// The first point is the start corner, which is already there.
+	for (int i = 2; i < line.length; i += 2) {
+	    lineTo(line[i], line[i + 1]);
+	}
+	control = control == null ? knob.getBounds()
+	    : control.union(knob.getBounds());
+    }
+
+    /**
+     * Returns the smallest rectangle holding every pixel inside the
+     * outline.
+     *
+     * @return the bounds of the outline
+     */
+    Rectangle getBounds() {
+	int x1 = (int) Math.floor(minX);
+	int y1 = (int) Math.floor(minY);
+	return new Rectangle(x1, y1, (int) Math.ceil(maxX) - x1,
+			     (int) Math.ceil(maxY) - y1);
+    }
+
+    /**
+     * Returns the bounds of the outline's points and the control points
+     * of the curves of its knobs, which is how big pieces used to be.
+     *
+     * @return the bounds of the outline and its control points
+     */
+    Rectangle getControlBounds() {
+	return control == null ? getBounds() : getBounds().union(control);
+    }
+
+    /**
+     * Clear every pixel of the given data that is outside the outline.
+     *
+     * @param data the pixels of a rectangle of the picture
+     * @param x the x coordinate of the rectangle
+     * @param y the y coordinate of the rectangle
+     * @param width the width of the rectangle
+     * @param height the height of the rectangle
+     */
+    void mask(final int[] data, final int x, final int y,
+	      final int width, final int height) {
+	double[] crossings = new double[npoints];
+	int[] winds = new int[npoints];
+	for (int j = 0; j < height; j++) {
+	    int count = crossRow(y + j, crossings, winds);
+	    int row = j * width;
+	    int wind = 0;
+	    int start = 0;
+	    // Pixels from start up to the next crossing have the same wind.
+	    for (int k = 0; k <= count; k++) {
+		int end = width;
+		if (k < count) {
+		    end = (int) Math.max(start, Math.min(width,
+				Math.ceil(crossings[k]) - x));
+		}
+		if (wind == 0) {
+		    Arrays.fill(data, row + start, row + end, 0);
+		}
+		if (k < count) {
+		    wind += winds[k];
+		}
+		start = end;
+	    }
+	}
+    }
+
+    /*
+     * Find where the edges cross the given row, and which way, sorted from
+     * left to right, and return how many there are.
+     */
+    private int crossRow(final int py, final double[] crossings,
+			 final int[] winds) {
+	int count = 0;
+	for (int n = 0; n < npoints; n++) {
+	    int m = n + 1 == npoints ? 0 : n + 1;
+	    double x0 = points[2 * n];
+	    double y0 = points[2 * n + 1];
+	    double x1 = points[2 * m];
+	    double y1 = points[2 * m + 1];
+	    int wind;
+	    if (y0 <= py && py < y1) {
+		wind = 1;
+	    } else if (y1 <= py && py < y0) {
+		wind = -1;
+	    } else {
+		continue;
+	    }
+	    double cx = x0 + (py - y0) * (x1 - x0) / (y1 - y0);
+	    // Insertion sort, as there are only a few crossings.
+	    int k = count;
+	    while (k > 0 && crossings[k - 1] > cx) {
+		crossings[k] = crossings[k - 1];
+		winds[k] = winds[k - 1];
+		k--;
+	    }
+	    crossings[k] = cx;
+	    winds[k] = wind;
+	    count++;
+	}
+	return count;
+    }
+}
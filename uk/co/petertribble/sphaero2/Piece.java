@@ -3,9 +3,15 @@ package uk.co.petertribble.sphaero2;
 import java.awt.Graphics;
 import java.awt.Image;
 import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
 import java.awt.image.MemoryImageSource;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 // ### Should Pieces be implemented as BufferedImages backed by Rasters,
 // rather than images backed by MemoryImageSources?
@@ -32,7 +38,13 @@ public class Piece {
      * A Piece must be within this many pixels of "perfect" to be considered
      * close.
      */
-    private static final int NEARBY = 7;
+    static final int NEARBY = 7;
+
+    /**
+     * The most times a piece's image can be halved in size for drawing
+     * when zoomed out.
+     */
+    static final int MAX_LEVEL = 3;
 
     // see the implementation of brighter()
     private static final int FN = 10;
@@ -68,9 +80,14 @@ public class Piece {
     protected int origHeight;
 
     /*
-     * Original image data.
+     * Original image data. If shared, this is a view into the pixels of
+     * the whole picture, and origOffset is where this Piece's rectangle
+     * starts and origStride is the picture's width.
      */
     private int[] origData;
+    private int origOffset;
+    private int origStride;
+    private boolean shared;
 
     // Location in the image.
     private int imageX;
@@ -91,6 +108,31 @@ public class Piece {
     // Image for this Piece. null for a MultiPiece
     private Image image;
 
+    // Copies of the image scaled down by powers of two, indexed by the
+    // power, made when first drawn at that size.
+    private Image[] levels;
+
+    // The bytes of pixels in the image and its scaled copies, counted from
+    // when each is made until it is flushed, and where changes in the
+    // bytes this Piece holds are counted, if anywhere.
+    private long imageBytes;
+    private long levelBytes;
+    private LongAdder pixelCounter;
+
+    // Whether this was an edge piece when cut, and how many of its
+    // pixels are in each color, for sorting into trays.
+    private boolean edge;
+    private int[] colors;
+    private int dominantColor;
+
+    // Whether the image shares the current data rather than copying it,
+    // and no scaled copies are kept.
+    private boolean compact;
+
+    // Index in the array of pieces returned by the cutter. -1 for a
+    // MultiPiece.
+    private int index = -1;
+
     // This is measured in integer degrees. 0 is unrotated.  90 is 90
     // degrees clockwise, etc. Must be 0, 90, 180, or 270.
     private int rotation;
@@ -115,6 +157,7 @@ public class Piece {
 		    final int pwidth, final int pheight) {
 	neighbors = new HashSet<>();
 	origData = data; // NOPMD
+	origStride = iwidth;
 	imageX = xpos;
 	imageY = ypos;
 	curWidth = iwidth;
@@ -146,6 +189,37 @@ public class Piece {
 	forceSetRotation(irotation);
     }
 
+    /**
+     * Creates a new rectangular Piece whose original image data is a view
+     * into the pixels of the whole picture, rather than a copy. The pixels
+     * are shared with the other Pieces cut from the picture, and must not
+     * be changed while any of them are in use.
+     *
+     * @param picture the ARGB pixels of the entire picture, row by row
+     * @param xpos X position of image relative to entire puzzle
+     * @param ypos Y position of image relative to entire puzzle
+     * @param iwidth width of original image
+     * @param iheight height of original image
+     * @param pwidth the width of the entire picture
+     * @param pheight the height of the entire picture
+     * @param irotation initial rotation
+     *
+     * @return the new Piece
+     */
+    static Piece fromPicture(final int[] picture,
+			     final int xpos, final int ypos,
+			     final int iwidth, final int iheight,
+			     final int pwidth, final int pheight,
+			     final int irotation) {
+	Piece piece = new Piece(picture, xpos, ypos, iwidth, iheight,
+				pwidth, pheight);
+	piece.origOffset = ypos * pwidth + xpos;
+	piece.origStride = pwidth;
+	piece.shared = true;
+	piece.forceSetRotation(irotation);
+	return piece;
+    }
+
     // Accessors ------------------------------------------------------------
 
     /**
@@ -184,13 +258,64 @@ public class Piece {
      */
     protected void forceSetRotation(final int rot) {
 	rotation = rot;
+	flushLevels();
+	long before = getPixelBytes();
 	recomputeImageData();
+	makeImage();
+	countPixels(getPixelBytes() - before);
+    }
+
+    /*
+     * Make the image from the current data. A compact image is a view of
+     * the data, so holds no pixels of its own, but can't be kept on the
+     * screen by Java2D so draws more slowly.
+     */
+    private void makeImage() {
 	if (image != null) {
 	    image.flush();
 	}
-	image = Toolkit.getDefaultToolkit().createImage(
+	if (compact) {
+	    WritableRaster raster = Raster.createPackedRaster(
+		new DataBufferInt(curData, curData.length),
+		curWidth, curHeight, curWidth,
+		new int[] {0xff0000, 0xff00, 0xff, 0xff000000}, null);
+	    image = new BufferedImage(ColorModel.getRGBdefault(), raster,
+				      false, null);
+	    imageBytes = 0L;
+	} else {
+	    image = Toolkit.getDefaultToolkit().createImage(
 		new MemoryImageSource(
 				curWidth, curHeight, curData, 0, curWidth));
+	    imageBytes = 4L * curWidth * curHeight;
+	}
+    }
+
+    /**
+     * Returns whether this Piece is held compactly, with an image that
+     * shares its data and no scaled copies of the image.
+     *
+     * @return true if this Piece is compact
+     */
+    boolean isCompact() {
+	return compact;
+    }
+
+    /**
+     * Sets whether this Piece is held compactly. A compact Piece holds
+     * about half the bytes of pixels, but is slower to draw, especially
+     * when the puzzle is zoomed out.
+     *
+     * @param flag true to make this Piece compact
+     */
+    void setCompact(final boolean flag) {
+	if (flag == compact) {
+	    return;
+	}
+	compact = flag;
+	flushLevels();
+	long before = getPixelBytes();
+	makeImage();
+	countPixels(getPixelBytes() - before);
     }
 
     /**
@@ -323,6 +448,58 @@ public class Piece {
 	return puzzleY;
     }
 
+    /**
+     * Returns this Piece's index in the array of pieces returned when the
+     * image was cut. A MultiPiece has no index.
+     *
+     * @return this Piece's index, or -1 for a MultiPiece
+     */
+    public int getIndex() {
+	return index;
+    }
+
+    /**
+     * Returns a key identifying this Piece. For an atomic piece it is the
+     * same as its index; a MultiPiece uses the smallest index of the
+     * pieces it contains. A key therefore stays the same for as long as
+     * the piece exists, and doesn't depend on the order pieces were joined.
+     *
+     * @return this Piece's key
+     */
+    public int getKey() {
+	return index;
+    }
+
+    /**
+     * Sets this Piece's index in the array of pieces returned when the
+     * image was cut.
+     *
+     * @param nindex this Piece's index
+     */
+    void setIndex(final int nindex) {
+	index = nindex;
+    }
+
+    /**
+     * Returns this Piece's image data in its original orientation. The
+     * array is not copied, and should not be modified, unless this Piece
+     * shares the pixels of the whole picture, when its rectangle is copied
+     * out of them.
+     *
+     * @return this Piece's original image data
+     */
+    int[] getOriginalData() {
+	if (!shared) {
+	    return origData;
+	}
+	int[] data = new int[origWidth * origHeight];
+	for (int j = 0; j < origHeight; j++) {
+	    System.arraycopy(origData, origOffset + j * origStride,
+			     data, j * origWidth, origWidth);
+	}
+	return data;
+    }
+
     /**
      * Returns this Piece's current image.  This will be the Piece's portion
      * of the original image, rotated by this Piece's current rotation.
@@ -333,6 +510,195 @@ public class Piece {
 	return image;
     }
 
+    /**
+     * Returns this Piece's current image scaled down by the given power of
+     * two, so that drawing it when the puzzle is zoomed out doesn't have
+     * to scale the full image every time. Each pixel is the average of
+     * the block of pixels it replaces, so edges are smoothed rather than
+     * lost. The scaled image is made when first asked for, and kept until
+     * the Piece is rotated or joined. A compact Piece keeps no scaled
+     * images, and returns its full image, which must be scaled to draw.
+     *
+     * @param level how many times the image is halved in size, from 0 to
+     * {@link #MAX_LEVEL}
+     *
+     * @return this Piece's image at the given level
+     */
+    public Image getImage(final int level) {
+	if (level == 0 || compact) {
+	    return image;
+	}
+	if (levels == null) {
+	    levels = new Image[MAX_LEVEL + 1];
+	}
+	if (levels[level] == null) {
+	    int f = 1 << level;
+	    int w = (curWidth + f - 1) >> level;
+	    int h = (curHeight + f - 1) >> level;
+	    levels[level] = Toolkit.getDefaultToolkit().createImage(
+		new MemoryImageSource(w, h, shrink(curData, curWidth,
+						  curHeight, level), 0, w));
+	    levelBytes += 4L * w * h;
+	    countPixels(4L * w * h);
+	}
+	return levels[level];
+    }
+
+    /*
+     * Average each square block of 2^level pixels into one. Pixels outside
+     * the data count as transparent, and the color is weighted by alpha so
+     * that transparent pixels don't darken the edges.
+     */
+    private static int[] shrink(final int[] data, final int width,
+				final int height, final int level) {
+	int f = 1 << level;
+	int w = (width + f - 1) >> level;
+	int h = (height + f - 1) >> level;
+	int[] out = new int[w * h];
+	for (int y = 0; y < h; y++) {
+	    for (int x = 0; x < w; x++) {
+		long a = 0;
+		long r = 0;
+		long g = 0;
+		long b = 0;
+		int ymax = Math.min(height, (y + 1) << level);
+		int xmax = Math.min(width, (x + 1) << level);
+		for (int j = y << level; j < ymax; j++) {
+		    for (int i = x << level; i < xmax; i++) {
+			int pixel = data[j * width + i];
+			int alpha = (pixel >>> 24) & 0xFF;
+			a += alpha;
+			r += alpha * ((pixel >> 16) & 0xFF);
+			g += alpha * ((pixel >> 8) & 0xFF);
+			b += alpha * (pixel & 0xFF);
+		    }
+		}
+		if (a != 0) {
+		    out[y * w + x] = (int) (a >> (2 * level)) << 24
+			| (int) (r / a) << 16 | (int) (g / a) << 8
+			| (int) (b / a);
+		}
+	    }
+	}
+	return out;
+    }
+
+    private void flushLevels() {
+	if (levels != null) {
+	    for (Image level : levels) {
+		if (level != null) {
+		    level.flush();
+		}
+	    }
+	    levels = null;
+	    countPixels(-levelBytes);
+	    levelBytes = 0L;
+	}
+    }
+
+    // Sorting --------------------------------------------------------------
+
+    /**
+     * Note whether this Piece is an edge piece, and count its pixels in
+     * each color. This is done when the Piece is cut, while it still has
+     * all the neighbors it started with.
+     */
+    void classify() {
+	edge = neighbors.size() < 4;
+	colors = TraySorter.histogram(origData, origOffset, origStride,
+				      origWidth, origHeight);
+	dominantColor = TraySorter.dominant(colors);
+    }
+
+    /**
+     * Returns whether this Piece was on the edge of the picture when it
+     * was cut, which is whether it had fewer than four neighbors.
+     *
+     * @return true if this is an edge piece
+     */
+    boolean isEdge() {
+	return edge;
+    }
+
+    /**
+     * Returns how many of this Piece's opaque pixels are in each color.
+     *
+     * @return a histogram of {@link TraySorter#COLORS} colors
+     */
+    int[] getColorHistogram() {
+	if (colors == null) {
+	    classify();
+	}
+	return colors;
+    }
+
+    /**
+     * Returns the color most of this Piece's pixels are in.
+     *
+     * @return the main color, from 0 to {@link TraySorter#COLORS} - 1
+     */
+    int getDominantColor() {
+	if (colors == null) {
+	    classify();
+	}
+	return dominantColor;
+    }
+
+    // Counting pixels ------------------------------------------------------
+
+    /**
+     * Returns how many bytes of pixels this Piece holds: its original and
+     * current data, and its images. The Pieces a MultiPiece is made of
+     * aren't included, nor are the pixels of the picture if this Piece
+     * shares them.
+     *
+     * @return the number of bytes of pixels held
+     */
+    long getPixelBytes() {
+	long n = 0L;
+	if (origData != null && !shared) {
+	    n += origData.length;
+	}
+	if (curData != null) {
+	    n += curData.length;
+	}
+	return 4L * n + imageBytes + levelBytes;
+    }
+
+    /**
+     * Count changes in the bytes of pixels this Piece holds. The bytes it
+     * holds now are counted straight away.
+     *
+     * @param counter where to count bytes of pixels, or null to stop
+     * counting
+     */
+    void setPixelCounter(final LongAdder counter) {
+	pixelCounter = counter;
+	countPixels(getPixelBytes());
+    }
+
+    /**
+     * Count a change in the bytes of pixels this Piece holds.
+     *
+     * @param delta the change in bytes
+     */
+    void countPixels(final long delta) {
+	if (pixelCounter != null && delta != 0L) {
+	    pixelCounter.add(delta);
+	}
+    }
+
+    /**
+     * Let go of this Piece's images, as it has been joined into another
+     * Piece and won't be drawn again.
+     */
+    protected void release() {
+	image.flush();
+	countPixels(-imageBytes);
+	imageBytes = 0L;
+	flushLevels();
+    }
+
     /**
      * Adds a Piece to this Piece's set of neighbors.
      *
@@ -389,6 +755,60 @@ public class Piece {
 	}
     }
 
+    /**
+     * Draws this Piece in the given Graphics object, with the puzzle
+     * scaled down by the given power of two. The Graphics object isn't
+     * scaled; the Piece's image is replaced by one that has already been
+     * scaled down.
+     *
+     * @param g the Graphics object to draw to
+     * @param level how many times the puzzle is halved in size, from 0 to
+     * {@link #MAX_LEVEL}
+     */
+    protected void draw(final Graphics g, final int level) {
+	Image img = getImage(level);
+	if (img == null) {
+	    return;
+	}
+	int x = getPuzzleX() >> level;
+	int y = getPuzzleY() >> level;
+	if (compact && level > 0) {
+	    int f = 1 << level;
+	    g.drawImage(img, x, y, (curWidth + f - 1) >> level,
+			(curHeight + f - 1) >> level, null);
+	} else {
+	    g.drawImage(img, x, y, null);
+	}
+    }
+
+    /**
+     * If this Piece is within the given distance of fitting one of its
+     * neighbors, moves it so that it fits exactly. This lets pieces be
+     * fitted when the puzzle is zoomed out, where a few pixels on the
+     * screen are many pixels in the puzzle.
+     *
+     * @param tolerance how far, in puzzle pixels, this Piece may be from
+     * fitting a neighbor
+     *
+     * @return true if this Piece was moved to fit a neighbor
+     */
+    public boolean snap(final int tolerance) {
+	for (Piece piece : neighbors) {
+	    if (piece.getRotation() != rotation) {
+		continue;
+	    }
+	    int dx = piece.getPuzzleX() + getRotatedX() - piece.getRotatedX()
+		- getPuzzleX();
+	    int dy = piece.getPuzzleY() + getRotatedY() - piece.getRotatedY()
+		- getPuzzleY();
+	    if (Math.abs(dx) <= tolerance && Math.abs(dy) <= tolerance) {
+		moveTo(getPuzzleX() + dx, getPuzzleY() + dy);
+		return true;
+	    }
+	}
+	return false;
+    }
+
     /**
      * Returns whether this Piece currently contains the given point,
      * relative to the puzzle panel's upper-left corner.
@@ -471,14 +891,16 @@ public class Piece {
 	// currently in its list.  These might include other MultiPieces, which
 	// wouldn't be in the new Piece's subpiece list.
 	Piece newPiece = MultiPiece.join(this, close);
+	newPiece.setCompact(compact);
+	newPiece.setPixelCounter(pixelCounter);
 	Piece[] ret = new Piece[close.size() + 2];
 	ret[0] = newPiece;
 	ret[1] = this;
-	this.image.flush();
+	this.release();
 	int i = 2;
 	for (Piece piece : close) {
 	    ret[i] = piece;
-	    piece.image.flush();
+	    piece.release();
 	    i++;
 	}
 	System.gc();
@@ -606,39 +1028,37 @@ public class Piece {
      */
     protected void recomputeImageData() {
 	setRotatedPosition();
+	curData = new int[origWidth * origHeight];
 	if (rotation == 0) {
-	    curData = origData.clone();
+	    for (int j = 0; j < origHeight; j++) {
+		System.arraycopy(origData, origOffset + j * origStride,
+				 curData, j * origWidth, origWidth);
+	    }
 	} else if (rotation == 90) {
-	    curData = new int[origData.length];
 	    for (int i = 0; i < curWidth; i++) {
+		int from = origOffset + (origHeight - i - 1) * origStride;
 		for (int j = 0; j < curHeight; j++) {
-		    curData[j * curWidth + i]
-			= origData[(origHeight - i - 1) * origWidth + j];
+		    curData[j * curWidth + i] = origData[from + j];
 		}
 	    }
 	} else if (rotation == 180) {
-	    curData = new int[origData.length];
-	    /*
-	     * for (int i = 0; i < curWidth; i++)
-	     * for (int j = 0; j < curHeight; j++)
-	     * curData[j*curWidth+i] =
-	     * origData[(origHeight-j-1)*origWidth + (origWidth-i-1)];
-	     */
-	    // it's just a reverse
-	    for (int i = 0; i < origData.length; i++) {
-		curData[i] = origData[origData.length - i - 1];
+	    // it's just a reverse, a row at a time
+	    int last = curData.length - 1;
+	    for (int j = 0; j < origHeight; j++) {
+		int from = origOffset + j * origStride;
+		int to = last - j * origWidth;
+		for (int i = 0; i < origWidth; i++) {
+		    curData[to - i] = origData[from + i];
+		}
 	    }
 	} else if (rotation == 270) {
-	    curData = new int[origData.length];
 	    for (int i = 0; i < curWidth; i++) {
+		int from = origOffset + i * origStride + origWidth - 1;
 		for (int j = 0; j < curHeight; j++) {
-		    curData[j * curWidth + i]
-			= origData[i * origWidth + origWidth - j - 1];
+		    curData[j * curWidth + i] = origData[from - j];
 		}
 	    }
 	}
 	bevel(curData, curWidth, curHeight);
-	image = Toolkit.getDefaultToolkit().createImage(
-	    new MemoryImageSource(curWidth, curHeight, curData, 0, curWidth));
     }
 }
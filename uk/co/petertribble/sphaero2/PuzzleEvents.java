@@ -0,0 +1,222 @@
+package uk.co.petertribble.sphaero2;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder events for the things that take time in a puzzle:
+ * cutting pieces, joining them, finding the piece under the mouse,
+ * painting, and loading images. They can be recorded on a player's
+ * machine by starting with
+ * {@code java -XX:StartFlightRecording:filename=sphaero2.jfr}, and
+ * looked at with {@code jfr print --categories Sphaero2 sphaero2.jfr} or
+ * JDK Mission Control.
+ *
+ * <p>When nothing is recording, an event costs no more than creating it,
+ * and anything extra that an event would need measuring is only measured
+ * if the event is enabled.
+ */
+final class PuzzleEvents {
+
+    private static final String CATEGORY = "Sphaero2";
+
+    /*
+     * Counts the bytes allocated by each thread, if the JVM can.
+     */
+    private static final ThreadMXBean THREADS =
+	ManagementFactory.getThreadMXBean();
+
+    private PuzzleEvents() {
+    }
+
+    /**
+     * Returns how many bytes the current thread has allocated, if the JVM
+     * can say.
+     *
+     * @return the number of bytes allocated, or -1 if unknown
+     */
+    static long allocatedBytes() {
+	if (THREADS instanceof com.sun.management.ThreadMXBean) {
+	    return ((com.sun.management.ThreadMXBean) THREADS)
+		.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	return -1L;
+    }
+
+    /*
+     * How many original pieces a piece is made of.
+     */
+    private static int atoms(final Piece piece) {
+	return piece instanceof MultiPiece
+	    ? ((MultiPiece) piece).getSubs().size() : 1;
+    }
+
+    /**
+     * One piece being cut from the image. The duration covers copying
+     * the piece's pixels and masking off everything outside its outline.
+     */
+    @Name("uk.co.petertribble.sphaero2.CutPiece")
+    @Label("Cut Piece")
+    @Category(CATEGORY)
+    @Description("A piece cut from the image, and masked to its outline")
+    @StackTrace(false)
+    static final class CutPiece extends Event {
+	@Label("Cutter")
+	String cutter;
+
+	@Label("X")
+	int x;
+
+	@Label("Y")
+	int y;
+
+	@Label("Width")
+	int width;
+
+	@Label("Height")
+	int height;
+
+	/**
+	 * Fill in the event from the piece that was cut, and commit it.
+	 *
+	 * @param ncutter the JigsawCutter that cut the piece
+	 * @param piece the Piece that was cut
+	 */
+	void done(final JigsawCutter ncutter, final Piece piece) {
+	    if (shouldCommit()) {
+		cutter = ncutter.getName();
+		x = piece.getImageX();
+		y = piece.getImageY();
+		width = piece.getImageWidth();
+		height = piece.getImageHeight();
+		commit();
+	    }
+	}
+    }
+
+    /**
+     * Pieces being joined. The duration covers building the joined
+     * piece's image from its parts.
+     */
+    @Name("uk.co.petertribble.sphaero2.Join")
+    @Label("Join")
+    @Category(CATEGORY)
+    @Description("A piece joined to the pieces next to it")
+    static final class Join extends Event {
+	@Label("Pieces Before")
+	@Description("Original pieces in the piece that was dropped")
+	int piecesBefore;
+
+	@Label("Pieces After")
+	@Description("Original pieces in the joined piece")
+	int piecesAfter;
+
+	@Label("Allocated")
+	@Description("Bytes allocated while joining, or -1 if unknown")
+	@DataAmount
+	long allocated;
+
+	/*
+	 * The thread's allocation count when the join started.
+	 */
+	private transient long startBytes;
+
+	/**
+	 * Start timing a join.
+	 *
+	 * @param piece the Piece being dropped
+	 */
+	void start(final Piece piece) {
+	    if (isEnabled()) {
+		piecesBefore = atoms(piece);
+		startBytes = allocatedBytes();
+	    }
+	    begin();
+	}
+
+	/**
+	 * Finish timing a join, and commit the event.
+	 *
+	 * @param piece the joined Piece
+	 */
+	void done(final Piece piece) {
+	    end();
+	    if (shouldCommit()) {
+		piecesAfter = atoms(piece);
+		allocated = startBytes < 0L ? -1L
+		    : allocatedBytes() - startBytes;
+		commit();
+	    }
+	}
+    }
+
+    /**
+     * Finding the piece under the mouse.
+     */
+    @Name("uk.co.petertribble.sphaero2.HitTest")
+    @Label("Hit Test")
+    @Category(CATEGORY)
+    @Description("Finding the piece under the mouse")
+    @StackTrace(false)
+    static final class HitTest extends Event {
+	@Label("Pieces Tested")
+	int tested;
+
+	@Label("Hit")
+	boolean hit;
+    }
+
+    /**
+     * The puzzle being painted.
+     */
+    @Name("uk.co.petertribble.sphaero2.Paint")
+    @Label("Paint")
+    @Category(CATEGORY)
+    @Description("The puzzle being painted")
+    @StackTrace(false)
+    static final class Paint extends Event {
+	@Label("Clip Area")
+	@Description("Pixels in the area being painted")
+	long clipArea;
+
+	@Label("Pieces Drawn")
+	int drawn;
+
+	@Label("Zoom")
+	int zoom;
+    }
+
+    /**
+     * An image being read and resized to fit the screen.
+     */
+    @Name("uk.co.petertribble.sphaero2.ImageLoad")
+    @Label("Image Load")
+    @Category(CATEGORY)
+    @Description("An image read and resized to fit the screen")
+    static final class ImageLoad extends Event {
+	@Label("File")
+	String file;
+
+	@Label("Decode Time")
+	@Timespan
+	long decode;
+
+	@Label("Resize Time")
+	@Timespan
+	long resize;
+
+	@Label("Width")
+	int width;
+
+	@Label("Height")
+	int height;
+    }
+}
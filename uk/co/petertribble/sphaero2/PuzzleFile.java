@@ -0,0 +1,353 @@
+package uk.co.petertribble.sphaero2;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * A saved puzzle. The file records where the image came from, and a hash
+ * of the resized image so we can tell if it's changed; the CutLayout,
+ * including the seed it was made from, so that the pieces can be cut
+ * again exactly as they were without making any new random choices; and
+ * for each piece or group of joined pieces, the pieces it contains, its
+ * rotation and its position.
+ *
+ * <p>The file starts with a magic number and a version, followed by the
+ * rest of the data in compressed form.
+ */
+public final class PuzzleFile {
+
+    /**
+     * The suffix used for saved puzzle files.
+     */
+    public static final String SUFFIX = "sph";
+
+    private static final int MAGIC = 0x53504832; // "SPH2"
+    private static final int VERSION = 2;
+
+    private final File imageFile;
+    private final BufferedImage image;
+    private final JigsawCutter cutter;
+    private final CutLayout layout;
+    private final List<Piece> pieces;
+    private final long elapsed;
+
+    private PuzzleFile(final File nimageFile, final BufferedImage nimage,
+		       final JigsawCutter ncutter, final CutLayout nlayout,
+		       final List<Piece> npieces, final long nelapsed) {
+	imageFile = nimageFile;
+	image = nimage;
+	cutter = ncutter;
+	layout = nlayout;
+	pieces = npieces;
+	elapsed = nelapsed;
+    }
+
+    /**
+     * Returns whether the given file looks like a saved puzzle, judging by
+     * its name.
+     *
+     * @param file the File to check
+     *
+     * @return true if the given File is named like a saved puzzle
+     */
+    public static boolean isPuzzleFile(final File file) {
+	return file.getName().toLowerCase().endsWith("." + SUFFIX);
+    }
+
+    /**
+     * Returns the image file the puzzle was made from.
+     *
+     * @return the image File
+     */
+    public File getImageFile() {
+	return imageFile;
+    }
+
+    /**
+     * Returns the resized image, as it was when the puzzle was saved.
+     *
+     * @return the puzzle's image
+     */
+    public BufferedImage getImage() {
+	return image;
+    }
+
+    /**
+     * Returns a cutter of the style the puzzle was cut with.
+     *
+     * @return the puzzle's JigsawCutter
+     */
+    public JigsawCutter getCutter() {
+	return cutter;
+    }
+
+    /**
+     * Returns the layout the puzzle was cut with.
+     *
+     * @return the puzzle's CutLayout
+     */
+    public CutLayout getLayout() {
+	return layout;
+    }
+
+    /**
+     * Returns the pieces and joined pieces, rotated and placed where they
+     * were when the puzzle was saved, in z-order with the topmost last.
+     *
+     * @return the puzzle's Pieces
+     */
+    public List<Piece> getPieces() {
+	return pieces;
+    }
+
+    /**
+     * Returns how long had been spent solving the puzzle when it was saved.
+     *
+     * @return the elapsed solution time in milliseconds
+     */
+    public long getElapsed() {
+	return elapsed;
+    }
+
+    /**
+     * Saves the given puzzle. The file is written in full before it
+     * replaces any existing file of the same name.
+     *
+     * @param file the File to save the puzzle to
+     * @param puzzle the JigsawPuzzle to save
+     * @param nimageFile the image file the puzzle was made from
+     * @param nelapsed the time spent solving the puzzle so far, in
+     * milliseconds
+     *
+     * @throws IOException if the puzzle cannot be saved
+     */
+    public static void save(final File file, final JigsawPuzzle puzzle,
+			    final File nimageFile, final long nelapsed)
+	    throws IOException {
+	File tmpfile = new File(file.getPath() + ".tmp");
+	try (OutputStream os = new FileOutputStream(tmpfile)) {
+	    write(os, puzzle, nimageFile, nelapsed);
+	}
+	Files.move(tmpfile.toPath(), file.toPath(),
+		   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes the given puzzle to a stream.
+     *
+     * @param os the OutputStream to write to
+     * @param puzzle the JigsawPuzzle to save
+     * @param nimageFile the image file the puzzle was made from
+     * @param nelapsed the time spent solving the puzzle so far, in
+     * milliseconds
+     *
+     * @throws IOException if the puzzle cannot be written
+     */
+    public static void write(final OutputStream os, final JigsawPuzzle puzzle,
+			     final File nimageFile, final long nelapsed)
+	    throws IOException {
+	DataOutputStream hout = new DataOutputStream(os);
+	hout.writeInt(MAGIC);
+	hout.writeShort(VERSION);
+	hout.flush();
+	GZIPOutputStream gz = new GZIPOutputStream(os);
+	DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(gz));
+	out.writeUTF(nimageFile.getAbsolutePath());
+	byte[] hash = puzzle.getImageHash();
+	out.writeByte(hash.length);
+	out.write(hash);
+	out.writeUTF(puzzle.getCutter().getName());
+	puzzle.getCutLayout().write(out);
+	out.writeLong(nelapsed);
+	List<Piece> zorder = puzzle.getZOrder();
+	out.writeInt(zorder.size());
+	for (Piece piece : zorder) {
+	    out.writeByte(piece.getRotation() / 90);
+	    out.writeInt(piece.getPuzzleX());
+	    out.writeInt(piece.getPuzzleY());
+	    if (piece instanceof MultiPiece) {
+		Set<Piece> subs = ((MultiPiece) piece).getSubs();
+		out.writeInt(subs.size());
+		for (Piece sub : subs) {
+		    out.writeInt(sub.getIndex());
+		}
+	    } else {
+		out.writeInt(1);
+		out.writeInt(piece.getIndex());
+	    }
+	}
+	out.flush();
+	gz.finish();
+    }
+
+    /**
+     * Loads a saved puzzle. The image is read and resized, and the pieces
+     * recut from the saved layout.
+     *
+     * @param file the File to load the puzzle from
+     *
+     * @return the loaded PuzzleFile
+     *
+     * @throws IOException if the puzzle cannot be loaded, or its image has
+     * changed since it was saved
+     */
+    public static PuzzleFile load(final File file) throws IOException {
+	try (InputStream is = new BufferedInputStream(
+					new FileInputStream(file))) {
+	    return read(is);
+	}
+    }
+
+    /**
+     * Reads a saved puzzle from a stream. The image is read and resized,
+     * and the pieces recut from the saved layout.
+     *
+     * @param is the InputStream to read from
+     *
+     * @return the loaded PuzzleFile
+     *
+     * @throws IOException if the puzzle cannot be read, or its image has
+     * changed since it was saved
+     */
+    public static PuzzleFile read(final InputStream is) throws IOException {
+	return read(is, null);
+    }
+
+    /**
+     * Reads a saved puzzle from a stream, using the given image rather
+     * than reading the image file named in the stream. This is used when
+     * the image has been sent along with the puzzle.
+     *
+     * @param is the InputStream to read from
+     * @param nimage the resized image, or null to read the image file
+     *
+     * @return the loaded PuzzleFile
+     *
+     * @throws IOException if the puzzle cannot be read, or the image is
+     * not the one the puzzle was saved with
+     */
+    static PuzzleFile read(final InputStream is, final BufferedImage nimage)
+	    throws IOException {
+	DataInputStream hin = new DataInputStream(is);
+	if (hin.readInt() != MAGIC) {
+	    throw new IOException("Not a saved puzzle");
+	}
+	int version = hin.readShort();
+	if (version != VERSION) {
+	    throw new IOException("Unsupported saved puzzle version "
+				  + version);
+	}
+	DataInputStream in = new DataInputStream(
+		new BufferedInputStream(new GZIPInputStream(is)));
+	File nimageFile = new File(in.readUTF());
+	byte[] hash = new byte[in.readUnsignedByte()];
+	in.readFully(hash);
+	JigsawCutter ncutter = JigsawCutter.forName(in.readUTF());
+	if (ncutter == null) {
+	    throw new IOException("Unknown piece style");
+	}
+	CutLayout nlayout = CutLayout.read(in);
+	long nelapsed = in.readLong();
+
+	/*
+	 * Read the groups before cutting, so that each piece can be cut at
+	 * its final rotation rather than being rotated again afterwards.
+	 */
+	int npieces = nlayout.getPieceCount();
+	int[] rotations = new int[npieces];
+	boolean[] seen = new boolean[npieces];
+	int ngroups = in.readInt();
+	if (ngroups < 1 || ngroups > npieces) {
+	    throw new IOException("Corrupt saved puzzle");
+	}
+	int[] grotations = new int[ngroups];
+	int[] gx = new int[ngroups];
+	int[] gy = new int[ngroups];
+	int[][] members = new int[ngroups][];
+	for (int g = 0; g < ngroups; g++) {
+	    int quarters = in.readUnsignedByte();
+	    if (quarters > 3) {
+		throw new IOException("Corrupt saved puzzle");
+	    }
+	    grotations[g] = quarters * 90;
+	    gx[g] = in.readInt();
+	    gy[g] = in.readInt();
+	    int n = in.readInt();
+	    if (n < 1 || n > npieces) {
+		throw new IOException("Corrupt saved puzzle");
+	    }
+	    members[g] = new int[n];
+	    for (int i = 0; i < n; i++) {
+		int index = in.readInt();
+		if (index < 0 || index >= npieces || seen[index]) {
+		    throw new IOException("Corrupt saved puzzle");
+		}
+		seen[index] = true;
+		members[g][i] = index;
+		rotations[index] = grotations[g];
+	    }
+	}
+
+	for (boolean b : seen) {
+	    if (!b) {
+		throw new IOException("Corrupt saved puzzle");
+	    }
+	}
+
+	BufferedImage pimage = nimage == null
+	    ? readImage(nimageFile, nlayout) : nimage;
+	if (!MessageDigest.isEqual(hash, JigUtil.imageHash(pimage))) {
+	    throw new IOException("The image has changed since the puzzle"
+				  + " was saved");
+	}
+
+	Piece[] cut = ncutter.cut(pimage, nlayout.withRotations(rotations));
+	List<Piece> npieceList = new ArrayList<>(ngroups);
+	for (int g = 0; g < ngroups; g++) {
+	    Piece main = cut[members[g][0]];
+	    Piece piece = main;
+	    if (members[g].length > 1) {
+		Set<Piece> others = new HashSet<>();
+		for (int i = 1; i < members[g].length; i++) {
+		    others.add(cut[members[g][i]]);
+		}
+		piece = MultiPiece.join(main, others);
+	    }
+	    piece.setPuzzlePosition(gx[g], gy[g]);
+	    npieceList.add(piece);
+	}
+	return new PuzzleFile(nimageFile, pimage, ncutter, nlayout,
+			      npieceList, nelapsed);
+    }
+
+    private static BufferedImage readImage(final File file,
+					   final CutLayout nlayout)
+	    throws IOException {
+	BufferedImage nimage = ImageIO.read(file);
+	if (nimage == null) {
+	    throw new IOException("Unrecognized image format");
+	}
+	return JigUtil.resizedImage(nimage, nlayout.getWidth(),
+				    nlayout.getHeight());
+    }
+}
@@ -0,0 +1,77 @@
+package uk.co.petertribble.sphaero2;
+
+import java.util.List;
+
+/**
+ * Something that wants to know about every change made to a
+ * JigsawPuzzle, for example to record them so they can be replayed
+ * later. All the methods are called on the AWT thread after the change
+ * has been made, and should return quickly.
+ *
+ * <p>Pieces are identified by their key, which is stable for as long as
+ * the piece exists, and is the same every time the same puzzle is cut.
+ *
+ * @see Piece#getKey
+ */
+public interface PuzzleRecorder {
+
+    /**
+     * A piece has been moved to the top of the z-order, and placed at its
+     * current position. While a piece is being dragged this is only called
+     * once, when it's dropped.
+     *
+     * @param piece the Piece that was moved
+     */
+    void moved(Piece piece);
+
+    /**
+     * A piece is being dragged. This is called for every step of the
+     * drag, with the piece at its new position, and {@link #moved} is
+     * still called when it's dropped. Most recorders only care where the
+     * piece ends up, so by default this does nothing.
+     *
+     * @param piece the Piece being dragged
+     */
+    default void dragged(final Piece piece) {
+    }
+
+    /**
+     * A piece has been rotated, which may also have moved it.
+     *
+     * @param piece the Piece that was rotated
+     */
+    void rotated(Piece piece);
+
+    /**
+     * A piece has been joined with one or more of its neighbors.
+     *
+     * @param piece the Piece that was dropped, as it was before the join
+     */
+    void joined(Piece piece);
+
+    /**
+     * The top piece has been pushed to the back.
+     */
+    void pushed();
+
+    /**
+     * All the pieces have been moved, and their z-order changed.
+     *
+     * @param pieces all the Pieces, in their new z-order with the topmost
+     * last
+     */
+    void shuffled(List<Piece> pieces);
+
+    /**
+     * Some pieces have been moved out of the way, without changing their
+     * z-order.
+     *
+     * @param pieces the Pieces that were moved
+     */
+    void scattered(List<Piece> pieces);
+
+    /**
+     * The puzzle has been finished.
+     */
+    void finished();
+}
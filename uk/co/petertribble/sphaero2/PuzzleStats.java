@@ -0,0 +1,228 @@
+package uk.co.petertribble.sphaero2;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live statistics about a puzzle, kept up to date as the puzzle is
+ * played rather than worked out when asked for, so that they can be read
+ * at any time over JMX without walking the pieces. Everything the puzzle
+ * updates as it goes is a LongAdder or an atomic array, so updating costs
+ * little and reading needs no locks.
+ *
+ * <p>The bytes of pixels held are counted by the pieces themselves, which
+ * report each change as they make or let go of their data and images.
+ * Hit-test and paint times are counted in the same buckets as a
+ * LatencyHistogram, so their percentiles are as accurate.
+ *
+ * <p>One PuzzleStats can be shared by a succession of puzzles, being
+ * reset as each is started.
+ */
+public final class PuzzleStats implements PuzzleStatsMBean {
+
+    /**
+     * The name the statistics are registered under.
+     */
+    public static final String OBJECT_NAME =
+	"uk.co.petertribble.sphaero2:type=PuzzleStats";
+
+    /*
+     * Joins are counted per second over the last minute, in a ring of
+     * counts each stamped with the second it's counting.
+     */
+    private static final int SECONDS = 60;
+
+    private volatile int pieces;
+    private volatile long cutNanos = -1L;
+    private final LongAdder groups = new LongAdder();
+    private final LongAdder pixelBytes = new LongAdder();
+    private final LongAdder joins = new LongAdder();
+    private final AtomicLongArray joinCounts = new AtomicLongArray(SECONDS);
+    private final AtomicLongArray joinStamps = new AtomicLongArray(SECONDS);
+    private final AtomicLongArray hitTests =
+	new AtomicLongArray(LatencyHistogram.BUCKETS);
+    private final AtomicLongArray paints =
+	new AtomicLongArray(LatencyHistogram.BUCKETS);
+
+    /**
+     * Start counting for a puzzle with the given pieces. Each piece, and
+     * each piece a joined piece is made of, is told to count its bytes of
+     * pixels here.
+     *
+     * @param zorder the puzzle's pieces and groups of pieces
+     */
+    void reset(final List<Piece> zorder) {
+	pixelBytes.reset();
+	int n = 0;
+	for (Piece piece : zorder) {
+	    piece.setPixelCounter(pixelBytes);
+	    if (piece instanceof MultiPiece) {
+		for (Piece sub : ((MultiPiece) piece).getSubs()) {
+		    sub.setPixelCounter(pixelBytes);
+		    n++;
+		}
+	    } else {
+		n++;
+	    }
+	}
+	pieces = n;
+	groups.reset();
+	groups.add(zorder.size());
+	joins.reset();
+	for (int i = 0; i < SECONDS; i++) {
+	    joinCounts.set(i, 0L);
+	    joinStamps.set(i, 0L);
+	}
+	resetLatencies();
+    }
+
+    /**
+     * Note how long the puzzle took to cut.
+     *
+     * @param nanos the cut time in nanoseconds, or -1 if unknown
+     */
+    void cut(final long nanos) {
+	cutNanos = nanos;
+    }
+
+    /**
+     * Note that pieces have been joined.
+     *
+     * @param removed how many fewer pieces and groups there are now
+     */
+    void joined(final int removed) {
+	groups.add(-removed);
+	joins.increment();
+	long second = System.currentTimeMillis() / 1000L;
+	int i = (int) (second % SECONDS);
+	if (joinStamps.get(i) != second) {
+	    joinStamps.set(i, second);
+	    joinCounts.set(i, 0L);
+	}
+	joinCounts.incrementAndGet(i);
+    }
+
+    /**
+     * Note how long it took to find the piece under the mouse.
+     *
+     * @param nanos the hit-test time in nanoseconds
+     */
+    void hitTest(final long nanos) {
+	hitTests.incrementAndGet(LatencyHistogram.bucket(Math.max(0L, nanos)));
+    }
+
+    /**
+     * Note how long it took to paint the puzzle.
+     *
+     * @param nanos the paint time in nanoseconds
+     */
+    void painted(final long nanos) {
+	paints.incrementAndGet(LatencyHistogram.bucket(Math.max(0L, nanos)));
+    }
+
+    /*
+     * The given percentile of the counts, to the upper bound of its
+     * bucket, in microseconds.
+     */
+    private static long percentile(final AtomicLongArray counts,
+				   final double percentile) {
+	long count = 0L;
+	for (int i = 0; i < counts.length(); i++) {
+	    count += counts.get(i);
+	}
+	if (count == 0L) {
+	    return 0L;
+	}
+	long target = (long) Math.ceil(count * percentile / 100.0);
+	target = Math.max(1L, target);
+	long seen = 0L;
+	for (int i = 0; i < counts.length(); i++) {
+	    seen += counts.get(i);
+	    if (seen >= target) {
+		return LatencyHistogram.upperBound(i) / 1000L;
+	    }
+	}
+	return LatencyHistogram.upperBound(counts.length() - 1) / 1000L;
+    }
+
+    // PuzzleStatsMBean -----------------------------------------------------
+
+    @Override
+    public int getPieces() {
+	return pieces;
+    }
+
+    @Override
+    public long getGroups() {
+	return groups.sum();
+    }
+
+    @Override
+    public long getPixelBytes() {
+	return pixelBytes.sum();
+    }
+
+    @Override
+    public long getJoins() {
+	return joins.sum();
+    }
+
+    @Override
+    public long getJoinsPerMinute() {
+	long second = System.currentTimeMillis() / 1000L;
+	long total = 0L;
+	for (int i = 0; i < SECONDS; i++) {
+	    if (second - joinStamps.get(i) < SECONDS) {
+		total += joinCounts.get(i);
+	    }
+	}
+	return total;
+    }
+
+    @Override
+    public long getHitTestP50Micros() {
+	return percentile(hitTests, 50);
+    }
+
+    @Override
+    public long getHitTestP99Micros() {
+	return percentile(hitTests, 99);
+    }
+
+    @Override
+    public long getPaintP50Micros() {
+	return percentile(paints, 50);
+    }
+
+    @Override
+    public long getPaintP99Micros() {
+	return percentile(paints, 99);
+    }
+
+    @Override
+    public long getCutMillis() {
+	long nanos = cutNanos;
+	return nanos < 0L ? -1L : nanos / 1000000L;
+    }
+
+    @Override
+    public long getCutCacheBytes() {
+	CutCache cache = JigsawCutter.getCache();
+	return cache == null ? 0L : cache.getBytes();
+    }
+
+    @Override
+    public int getCutCacheEntries() {
+	CutCache cache = JigsawCutter.getCache();
+	return cache == null ? 0 : cache.getEntries();
+    }
+
+    @Override
+    public void resetLatencies() {
+	for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+	    hitTests.set(i, 0L);
+	    paints.set(i, 0L);
+	}
+    }
+}
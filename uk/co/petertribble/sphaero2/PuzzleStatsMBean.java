@@ -0,0 +1,104 @@
+package uk.co.petertribble.sphaero2;
+
+/**
+ * Live statistics about the puzzle being solved, for JMX clients such as
+ * JConsole or VisualVM. They are registered under the name
+ * {@value PuzzleStats#OBJECT_NAME}.
+ */
+public interface PuzzleStatsMBean {
+
+    /**
+     * Returns how many pieces the puzzle was cut into.
+     *
+     * @return the number of pieces in the puzzle
+     */
+    int getPieces();
+
+    /**
+     * Returns how many separate pieces or groups of joined pieces there
+     * are, which is one when the puzzle is finished.
+     *
+     * @return the number of pieces and groups
+     */
+    long getGroups();
+
+    /**
+     * Returns how many bytes of pixels the pieces hold, in their original
+     * and current data and their images.
+     *
+     * @return the number of bytes of pixels held by the pieces
+     */
+    long getPixelBytes();
+
+    /**
+     * Returns how many joins have been made in this puzzle.
+     *
+     * @return the number of joins
+     */
+    long getJoins();
+
+    /**
+     * Returns how many joins have been made in the last minute.
+     *
+     * @return the number of joins in the last minute
+     */
+    long getJoinsPerMinute();
+
+    /**
+     * Returns the median time taken to find the piece under the mouse.
+     *
+     * @return the median hit-test time in microseconds
+     */
+    long getHitTestP50Micros();
+
+    /**
+     * Returns the 99th percentile of the time taken to find the piece
+     * under the mouse.
+     *
+     * @return the 99th percentile hit-test time in microseconds
+     */
+    long getHitTestP99Micros();
+
+    /**
+     * Returns the median time taken to paint the puzzle.
+     *
+     * @return the median paint time in microseconds
+     */
+    long getPaintP50Micros();
+
+    /**
+     * Returns the 99th percentile of the time taken to paint the puzzle.
+     *
+     * @return the 99th percentile paint time in microseconds
+     */
+    long getPaintP99Micros();
+
+    /**
+     * Returns how long it took to cut the puzzle, including reading the
+     * pieces from the cache.
+     *
+     * @return the cut time in milliseconds, or -1 if the puzzle was cut
+     * in advance or restored
+     */
+    long getCutMillis();
+
+    /**
+     * Returns how many bytes the cache of cut pieces uses on disk.
+     *
+     * @return the size of the cut cache in bytes, or zero if there is no
+     * cache
+     */
+    long getCutCacheBytes();
+
+    /**
+     * Returns how many cut puzzles are in the cache.
+     *
+     * @return the number of entries in the cut cache
+     */
+    int getCutCacheEntries();
+
+    /**
+     * Forget the hit-test and paint times recorded so far.
+     */
+    void resetLatencies();
+}
@@ -1,8 +1,11 @@
 package uk.co.petertribble.sphaero2;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.SplittableRandom;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  * Cuts the image into random quadrilaterals.  Pieces are arranged into rough
@@ -23,11 +26,23 @@ public final class QuadCutter extends JigsawCutter {
 	return "Pieces are random quadrilaterals.";
     }
 
+    /*
+     * Corners are moved off the grid, so the rectangles overlap a
+     * little. Measured at up to 400 pieces.
+     */
     @Override
-    public Piece[] cut(final BufferedImage image) {
-	JigUtil.ensureLoaded(image);
-	int width = image.getWidth(null);
-	int height = image.getHeight(null);
+    public double getOverlap() {
+	return 1.2;
+    }
+
+    @Override
+    protected JigsawCutter newCutter() {
+	return new QuadCutter();
+    }
+
+    @Override
+    public CutLayout layout(final int width, final int height,
+			    final long nseed) {
 
 	/*
 	 * First compute the number of rows and columns.  If N = total number
@@ -44,8 +59,6 @@ public final class QuadCutter extends JigsawCutter {
 		Math.sqrt(WSCALE * prefPieces * height / width));
 	int columns = Math.round(prefPieces / rows);
 
-	startProgress(rows * columns);
-
 	// Make a matrix of points representing the corners of each piece.
 	// Each point is based on a grid of equal rectangles, but may drift by
 	// a factor of up to 0.1 in any direction.  Edge points, of course,
@@ -53,7 +66,8 @@ public final class QuadCutter extends JigsawCutter {
 	int hvary = height / (rows * 10);
 	int wvary = width / (columns * 10);
 	Point[][] points = new Point[columns + 1][rows + 1];
-	ThreadLocalRandom trandom = ThreadLocalRandom.current();
+	SplittableRandom random = new SplittableRandom(nseed);
+	SplittableRandom trandom = random.split();
 	// i varies horizontally; j varies vertically
 	for (int j = 0; j <= rows; j++) {
 	    int baseY = j * height / rows;
@@ -71,19 +85,43 @@ public final class QuadCutter extends JigsawCutter {
 	    }
 	}
 
-	// Create the pieces.
-	Piece[][] pieces = new Piece[columns][rows];
-	for (int j = 0; j < rows; j++) {
-	    for (int i = 0; i < columns; i++) {
-		pieces[i][j] = makePiece(image,
-					  points[i][j],
-					  points[i][j + 1],
-					  points[i + 1][j],
-					  points[i + 1][j + 1],
-					  width, height);
-		updateProgress();
+	return new CutLayout(width, height, prefPieces, columns, rows,
+			points, null, null,
+			randomRotations(rows * columns, random.split()), nseed);
+    }
+
+    @Override
+    protected Piece[] cutPieces(final BufferedImage image,
+				final CutLayout layout) {
+	final int width = layout.getWidth();
+	final int height = layout.getHeight();
+	final int rows = layout.getRows();
+	final int columns = layout.getColumns();
+
+	startProgress(rows * columns);
+
+	// Create the pieces. Each piece depends only on the layout, which
+	// isn't changed, so they can be cut in parallel, a row at a time.
+	final Piece[][] pieces = new Piece[columns][rows];
+	IntStream.range(0, rows).parallel().forEach(new IntConsumer() {
+	    @Override
+	    public void accept(final int j) {
+		for (int i = 0; i < columns; i++) {
+		    PuzzleEvents.CutPiece event =
+			new PuzzleEvents.CutPiece();
+		    event.begin();
+		    pieces[i][j] = makePiece(image,
+					    layout.getPoint(i, j),
+					    layout.getPoint(i, j + 1),
+					    layout.getPoint(i + 1, j),
+					    layout.getPoint(i + 1, j + 1),
+					    width, height, layout.getRotation(
+							j * columns + i));
+		    event.done(QuadCutter.this, pieces[i][j]);
+		    updateProgress();
+		}
 	    }
-	}
+	});
 
 	// Set each piece's neighbors, and build the final array.
 	return finalBuild(pieces, rows, columns);
@@ -91,63 +129,26 @@ public final class QuadCutter extends JigsawCutter {
 
     private Piece makePiece(final BufferedImage image,
 		final Point nw, final Point sw, final Point ne, final Point se,
-		final int twidth, final int theight) {
-	int minX = Math.min(nw.x, sw.x);
-	int maxX = Math.max(ne.x, se.x);
-	int minY = Math.min(nw.y, ne.y);
-	int maxY = Math.max(sw.y, se.y);
-	int width = maxX - minX + 1;
-	int height = maxY - minY + 1;
-	if (minX + width > twidth) {
-	    width = twidth - minX;
-	}
-	if (minY + height > theight) {
-	    height = theight - minY;
-	}
+		final int twidth, final int theight, final int rotation) {
+	// The quadrilateral is convex, so each row crosses it twice, and
+	// only the spans outside those crossings are cleared.
+	Outline outline = new Outline();
+	outline.lineTo(nw.x, nw.y);
+	outline.lineTo(ne.x, ne.y);
+	outline.lineTo(se.x, se.y);
+	outline.lineTo(sw.x, sw.y);
+
+	Rectangle box = getPieceBounds(outline, twidth, theight);
+	int minX = box.x;
+	int minY = box.y;
+	int width = box.width;
+	int height = box.height;
 
 	int[] data = new int[width * height];
 	data = image.getRGB(minX, minY, width, height, data, 0, width);
+	outline.mask(data, minX, minY, width, height);
 
-	// Mask out anything outside the lines.
-	maskOutside(data, nw, ne, minX, minY, width, height);
-	maskOutside(data, ne, se, minX, minY, width, height);
-	maskOutside(data, se, sw, minX, minY, width, height);
-	maskOutside(data, sw, nw, minX, minY, width, height);
-
-	int rotation = ThreadLocalRandom.current().nextInt(4) * 90;
-	return
-	    new Piece(data, minX, minY, width, height, twidth, theight,
+	return newPiece(data, minX, minY, width, height, twidth, theight,
 			rotation);
     }
-
-    private void maskOutside(final int[] data, final Point p1, final Point p2,
-			     final int minX, final int minY,
-			     final int width, final int height) {
-	p1.translate(-minX, -minY);
-	p2.translate(-minX, -minY);
-	// y = mx + b
-	// N = numerator; D = denominator
-	int mmN = p2.y - p1.y;
-	int mmD = p2.x - p1.x;
-	int bbN = mmD * p1.y - mmN * p1.x;
-	// Since bD == mmD,
-	// y = mN*x/mD + bN/mmD
-	//   = (mN*x + bN)/mmD
-	// y*mmD = mmN*x + bbN
-	// make transparent if y*mmD > mmN*x + bbN
-
-	for (int j = 0; j < height; j++) {
-	    // int y = j+minY;
-	    int y = j;
-	    for (int i = 0; i < width; i++) {
-		// int x = i+minX;
-		int x = i;
-		if (y * mmD < mmN * x + bbN) {
-		    data[j * width + i] = 0;
-		}
-	    }
-	}
-	p1.translate(minX, minY);
-	p2.translate(minX, minY);
-    }
 }
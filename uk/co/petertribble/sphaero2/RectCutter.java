@@ -1,7 +1,7 @@
 package uk.co.petertribble.sphaero2;
 
 import java.awt.image.BufferedImage;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.SplittableRandom;
 
 /**
  * Cuts the image into uniform rectangles.
@@ -19,14 +19,36 @@ public final class RectCutter extends JigsawCutter {
     }
 
     @Override
-    public Piece[] cut(final BufferedImage image) {
-	JigUtil.ensureLoaded(image);
-	int height = image.getHeight(null);
-	int width = image.getWidth(null);
+    protected JigsawCutter newCutter() {
+	return new RectCutter();
+    }
+
+    @Override
+    protected boolean sharesPicture() {
+	return true;
+    }
+
+    @Override
+    public CutLayout layout(final int width, final int height,
+			    final long nseed) {
+	SplittableRandom random = new SplittableRandom(nseed);
 	int rows = (int) Math.round(Math.sqrt(prefPieces));
 	int columns = (int) Math.round(Math.sqrt(prefPieces));
+	return new CutLayout(width, height, prefPieces, columns, rows,
+			null, null, null,
+			randomRotations(rows * columns, random.split()), nseed);
+    }
+
+    @Override
+    protected Piece[] cutPieces(final BufferedImage image,
+				final CutLayout layout) {
+	int height = layout.getHeight();
+	int width = layout.getWidth();
+	int rows = layout.getRows();
+	int columns = layout.getColumns();
 
 	startProgress(rows * columns);
+	int[] picture = getPictureData(image);
 
 	// Create piece images
 	Piece[][] matrix = new Piece[rows][columns];
@@ -50,23 +72,17 @@ public final class RectCutter extends JigsawCutter {
 		}
 		int pieceW = x2 - x1 + 1;
 		int pieceH = y2 - y1 + 1;
-		int rotation = ThreadLocalRandom.current().nextInt(4) * 90;
-		matrix[i][j] = new Piece(
-				getImageData(image, x1, y1, pieceW, pieceH),
+		PuzzleEvents.CutPiece event = new PuzzleEvents.CutPiece();
+		event.begin();
+		matrix[i][j] = Piece.fromPicture(picture,
 				x1, y1, pieceW, pieceH,
-				width, height, rotation);
+				width, height,
+				layout.getRotation(j * rows + i));
+		event.done(this, matrix[i][j]);
 		updateProgress();
 	    }
 	}
 
 	return finalBuild(matrix, columns, rows);
     }
-
-    private int[] getImageData(final BufferedImage image,
-			       final int x, final int y,
-			       final int width, final int height) {
-	int[] data = new int[height * width];
-	data = image.getRGB(x, y, width, height, data, 0, width);
-	return data;
-    }
 }
@@ -0,0 +1,167 @@
+package uk.co.petertribble.sphaero2;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+
+/**
+ * Scatters pieces over the board so that, as far as there's room, none of
+ * them overlap. Dropping each piece at a random position piles them on
+ * top of one another once the board starts to fill up, and the player
+ * then has to dig them out.
+ *
+ * <p>The pieces are packed onto shelves, tallest first, each shelf as
+ * wide as the board. The space left over on each shelf, and below the
+ * shelves, is shared out so that every piece and every shelf has a slot
+ * a little bigger than itself, and each is placed at a random position
+ * within its slot. That scatters the pieces without any of them
+ * touching. Sorting takes O(n log n); everything else is linear.
+ *
+ * <p>If the shelves are taller than the board, they're squeezed together
+ * evenly so that they overlap as little as possible; a piece that is
+ * bigger than the board is put in its top left corner.
+ */
+final class ScatterLayout {
+
+    /*
+     * Tallest first, so that each shelf is as tall as its first piece.
+     */
+    private static final Comparator<Piece> TALLEST_FIRST =
+	new Comparator<Piece>() {
+	    @Override
+	    public int compare(final Piece p1, final Piece p2) {
+		return Integer.compare(p2.getCurrentHeight(),
+				       p1.getCurrentHeight());
+	    }
+	};
+
+    private ScatterLayout() {
+    }
+
+    /**
+     * Move the given pieces to random positions on a board of the given
+     * size, overlapping as little as possible.
+     *
+     * @param pieces the Pieces to scatter
+     * @param width the width of the board
+     * @param height the height of the board
+     * @param random where to get random numbers from
+     */
+    static void scatter(final Piece[] pieces, final int width,
+			final int height, final SplittableRandom random) {
+	scatter(pieces, 0, 0, width, height, random);
+    }
+
+    /**
+     * Move the given pieces to random positions within the given area of
+     * the board, overlapping as little as possible.
+     *
+     * @param pieces the Pieces to scatter
+     * @param ax the x coordinate of the area
+     * @param ay the y coordinate of the area
+     * @param width the width of the area
+     * @param height the height of the area
+     * @param random where to get random numbers from
+     */
+    static void scatter(final Piece[] pieces, final int ax, final int ay,
+			final int width, final int height,
+			final SplittableRandom random) {
+	int n = pieces.length;
+	if (n == 0) {
+	    return;
+	}
+	// Shuffle first, so that pieces of the same height end up in a
+	// random order, as the sort keeps pieces that compare equal in order.
+	Piece[] order = pieces.clone();
+	shuffle(order, random);
+	Arrays.sort(order, TALLEST_FIRST);
+
+	// Fill the shelves. Shelf s holds the pieces from first[s] up to
+	// first[s + 1].
+	int[] first = new int[n + 1];
+	int[] shelfHeight = new int[n];
+	int[] shelfWidth = new int[n];
+	int shelves = 0;
+	int used = 0;
+	for (int i = 0; i < n; i++) {
+	    int w = order[i].getCurrentWidth();
+	    if (shelves == 0 || used > 0 && used + w > width) {
+		first[shelves] = i;
+		shelfHeight[shelves] = order[i].getCurrentHeight();
+		shelves++;
+		used = 0;
+	    }
+	    used += w;
+	    shelfWidth[shelves - 1] = used;
+	}
+	first[shelves] = n;
+
+	// Stack the shelves in a random order, so that the tallest pieces
+	// aren't all at the top.
+	Integer[] stack = new Integer[shelves];
+	long total = 0L;
+	for (int s = 0; s < shelves; s++) {
+	    stack[s] = s;
+	    total += shelfHeight[s];
+	}
+	shuffle(stack, random);
+	int spare = (int) Math.max(0L, height - total);
+	long y = 0L;
+	for (int k = 0; k < shelves; k++) {
+	    int s = stack[k];
+	    int sy;
+	    if (total <= height) {
+		int slot = share(spare, shelves, k);
+		sy = (int) y + random.nextInt(slot + 1);
+		y += shelfHeight[s] + slot;
+	    } else {
+		sy = (int) (y * height / total);
+		sy = Math.max(0, Math.min(sy, height - shelfHeight[s]));
+		y += shelfHeight[s];
+	    }
+	    placeShelf(order, first[s], first[s + 1], ax, ay + sy,
+		       shelfHeight[s], Math.max(0, width - shelfWidth[s]),
+		       random);
+	}
+    }
+
+    /*
+     * Place the pieces on one shelf, from left to right, each at a random
+     * position within its share of the shelf.
+     */
+    private static void placeShelf(final Piece[] order, final int from,
+				   final int to, final int sx, final int sy,
+				   final int sh, final int spare,
+				   final SplittableRandom random) {
+	int count = to - from;
+	int x = sx;
+	for (int i = from; i < to; i++) {
+	    Piece piece = order[i];
+	    int slot = share(spare, count, i - from);
+	    int px = x + random.nextInt(slot + 1);
+	    int py = sy + random.nextInt(
+		Math.max(0, sh - piece.getCurrentHeight()) + 1);
+	    piece.setPuzzlePosition(px, py);
+	    x += piece.getCurrentWidth() + slot;
+	}
+    }
+
+    /*
+     * The i'th of count nearly equal shares of the given space.
+     */
+    private static int share(final int space, final int count,
+			     final int i) {
+	return (int) ((long) space * (i + 1) / count
+		      - (long) space * i / count);
+    }
+
+    private static <T> void shuffle(final T[] a,
+				    final SplittableRandom random) {
+	for (int i = a.length - 1; i > 0; i--) {
+	    int j = random.nextInt(i + 1);
+	    T t = a[i];
+	    a[i] = a[j];
+	    a[j] = t;
+	}
+    }
+}
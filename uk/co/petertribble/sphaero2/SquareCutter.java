@@ -1,7 +1,7 @@
 package uk.co.petertribble.sphaero2;
 
 import java.awt.image.BufferedImage;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.SplittableRandom;
 
 /**
  * Cuts the image into uniform squares. If the image dimensions aren't an
@@ -20,15 +20,42 @@ public final class SquareCutter extends JigsawCutter {
     }
 
     @Override
-    public Piece[] cut(final BufferedImage image) {
-	JigUtil.ensureLoaded(image);
-	int height = image.getHeight(null);
-	int width = image.getWidth(null);
-	int edge = (int) Math.round(Math.sqrt(height * width / prefPieces));
-	int hremain = height % edge;
-	int wremain = width % edge;
+    protected JigsawCutter newCutter() {
+	return new SquareCutter();
+    }
+
+    @Override
+    protected boolean sharesPicture() {
+	return true;
+    }
+
+    @Override
+    public CutLayout layout(final int width, final int height,
+			    final long nseed) {
+	SplittableRandom random = new SplittableRandom(nseed);
+	int edge = getEdge(width, height, prefPieces);
 	int rows = height / edge;
 	int columns = width / edge;
+	return new CutLayout(width, height, prefPieces, columns, rows,
+			null, null, null,
+			randomRotations(rows * columns, random.split()), nseed);
+    }
+
+    private static int getEdge(final int width, final int height,
+			       final int npieces) {
+	return (int) Math.round(Math.sqrt(height * width / npieces));
+    }
+
+    @Override
+    protected Piece[] cutPieces(final BufferedImage image,
+				final CutLayout layout) {
+	int height = layout.getHeight();
+	int width = layout.getWidth();
+	int edge = getEdge(width, height, layout.getPreferredPieces());
+	int hremain = height % edge;
+	int wremain = width % edge;
+	int rows = layout.getRows();
+	int columns = layout.getColumns();
 	int firstSouthEdge = edge + (hremain / 2) - 1;
 	int firstEastEdge = edge + (wremain / 2) - 1;
 
@@ -36,6 +63,7 @@ public final class SquareCutter extends JigsawCutter {
 	int y2 = firstSouthEdge;
 
 	startProgress(rows * columns);
+	int[] picture = getPictureData(image);
 
 	// Create piece images
 	Piece[][] matrix = new Piece[rows][columns];
@@ -45,11 +73,13 @@ public final class SquareCutter extends JigsawCutter {
 	    for (int j = 0; j < columns; j++) {
 		int pieceW = x2 - x1 + 1;
 		int pieceH = y2 - y1 + 1;
-		int rotation = ThreadLocalRandom.current().nextInt(4) * 90;
-		matrix[i][j] = new Piece(
-				getImageData(image, x1, y1, pieceW, pieceH),
+		PuzzleEvents.CutPiece event = new PuzzleEvents.CutPiece();
+		event.begin();
+		matrix[i][j] = Piece.fromPicture(picture,
 				x1, y1, pieceW, pieceH,
-				width, height, rotation);
+				width, height,
+				layout.getRotation(j * rows + i));
+		event.done(this, matrix[i][j]);
 		updateProgress();
 
 		// Set up x1 and x2 for next slice
@@ -70,12 +100,4 @@ public final class SquareCutter extends JigsawCutter {
 
 	return finalBuild(matrix, columns, rows);
     }
-
-    private int[] getImageData(final BufferedImage image,
-			       final int x, final int y,
-			       final int width, final int height) {
-	int[] data = new int[height * width];
-	data = image.getRGB(x, y, width, height, data, 0, width);
-	return data;
-    }
 }
@@ -58,7 +58,17 @@ public final class TimeLabel extends JLabel implements ActionListener {
      * Start solving the puzzle.
      */
     public void start() {
-	startmillis = System.currentTimeMillis();
+	start(0L);
+    }
+
+    /**
+     * Resume solving a puzzle that has already been worked on.
+     *
+     * @param elapsed the time already spent solving the puzzle, in
+     * milliseconds
+     */
+    public void start(final long elapsed) {
+	startmillis = System.currentTimeMillis() - elapsed;
 	if (timer == null) {
 	    timer = new Timer(1000, this);
 	}
@@ -98,6 +108,19 @@ public final class TimeLabel extends JLabel implements ActionListener {
 	setText("Solution time: " + elapsed / 1000 + "s");
     }
 
+    /**
+     * Returns how long has been spent solving the puzzle so far, not
+     * counting any time spent paused.
+     *
+     * @return the elapsed solution time in milliseconds
+     */
+    public long getElapsed() {
+	if (PAUSED_LABEL.equals(currentLabel)) {
+	    return pausemillis - startmillis;
+	}
+	return System.currentTimeMillis() - startmillis;
+    }
+
     private void updateTime() {
 	long elapsed = System.currentTimeMillis() - startmillis;
 	setText(currentLabel + elapsed / 1000 + "s");
@@ -0,0 +1,213 @@
+package uk.co.petertribble.sphaero2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Sorts the pieces of a puzzle into trays, the way most people start a
+ * large jigsaw: pieces already joined in one tray, edge pieces in the
+ * next, and the rest by their main color.
+ *
+ * <p>A piece's color is worked out once, when it's cut, from a histogram
+ * of its opaque pixels: each pixel is counted in one of twelve hues, or,
+ * if it has little color, as dark, gray, or light. The bin with the most
+ * pixels is the piece's main color. Whether a piece is an edge piece is
+ * also noted when it's cut, as it has fewer than four neighbors then;
+ * after pieces are joined their neighbors change.
+ *
+ * <p>The trays are columns across the board, each as wide as its share of
+ * the pieces' area, and the pieces are scattered within their tray by a
+ * ScatterLayout. Sorting a few thousand pieces takes milliseconds.
+ */
+final class TraySorter {
+
+    /**
+     * How many colors a piece's pixels are sorted into.
+     */
+    static final int COLORS = 15;
+
+    /*
+     * The first bins are hues, the rest dark, gray, and light.
+     */
+    private static final int HUES = 12;
+    private static final int DARK = HUES;
+    private static final int GRAY = HUES + 1;
+    private static final int LIGHT = HUES + 2;
+
+    /*
+     * Pixels whose brightest and darkest channels are closer than this
+     * have too little color to have a hue.
+     */
+    private static final int MIN_CHROMA = 40;
+
+    /*
+     * Pixels less opaque than this are outside the piece.
+     */
+    private static final int MIN_ALPHA = 128;
+
+    private TraySorter() {
+    }
+
+    /**
+     * Work out which pieces are edge pieces, and the color of each piece,
+     * in parallel. This must be done straight after the pieces are cut,
+     * before any have been joined.
+     *
+     * @param pieces the Pieces just cut
+     */
+    static void classify(final Piece[] pieces) {
+	IntStream.range(0, pieces.length).parallel().forEach(
+	    new IntConsumer() {
+		@Override
+		public void accept(final int n) {
+		    pieces[n].classify();
+		}
+	    });
+    }
+
+    /**
+     * Count the opaque pixels of a rectangle of the given data in each
+     * color.
+     *
+     * @param data ARGB pixels, or null
+     * @param offset where the rectangle starts in the data
+     * @param stride how far apart the rows of the rectangle are
+     * @param width the width of the rectangle
+     * @param height the height of the rectangle
+     *
+     * @return the number of pixels in each of the {@link #COLORS} colors
+     */
+    static int[] histogram(final int[] data, final int offset,
+			   final int stride, final int width,
+			   final int height) {
+	int[] counts = new int[COLORS];
+	if (data == null) {
+	    return counts;
+	}
+	for (int j = 0; j < height; j++) {
+	    int from = offset + j * stride;
+	    for (int i = from; i < from + width; i++) {
+		int argb = data[i];
+		if ((argb >>> 24) >= MIN_ALPHA) {
+		    counts[color(argb)]++;
+		}
+	    }
+	}
+	return counts;
+    }
+
+    /*
+     * Which color bin a pixel falls in. The hue is found in sixths of the
+     * color wheel, each divided in two, without going through floating
+     * point.
+     */
+    private static int color(final int argb) {
+	int r = (argb >> 16) & 0xff;
+	int g = (argb >> 8) & 0xff;
+	int b = argb & 0xff;
+	int max = Math.max(r, Math.max(g, b));
+	int min = Math.min(r, Math.min(g, b));
+	int chroma = max - min;
+	if (chroma < MIN_CHROMA) {
+	    return max < 85 ? DARK : max < 170 ? GRAY : LIGHT;
+	}
+	int sixth;
+	int part;
+	if (max == r) {
+	    sixth = g >= b ? 0 : 5;
+	    part = g >= b ? g - b : chroma - (b - g);
+	} else if (max == g) {
+	    sixth = b >= r ? 2 : 1;
+	    part = b >= r ? b - r : chroma - (r - b);
+	} else {
+	    sixth = r >= g ? 4 : 3;
+	    part = r >= g ? r - g : chroma - (g - r);
+	}
+	return sixth * 2 + (2 * part >= chroma ? 1 : 0);
+    }
+
+    /**
+     * Returns the color with the most pixels in the given histogram.
+     *
+     * @param counts a histogram from {@link #histogram}
+     *
+     * @return the main color, from 0 to {@link #COLORS} - 1
+     */
+    static int dominant(final int[] counts) {
+	int best = GRAY;
+	for (int i = 0; i < counts.length; i++) {
+	    if (counts[i] > counts[best]) {
+		best = i;
+	    }
+	}
+	return best;
+    }
+
+    /**
+     * Arrange the given pieces into trays on a board of the given size.
+     *
+     * @param pieces all the Pieces and groups of Pieces in the puzzle
+     * @param width the width of the board
+     * @param height the height of the board
+     * @param random where to get random numbers from
+     */
+    static void sort(final List<Piece> pieces, final int width,
+		     final int height, final SplittableRandom random) {
+	// Tray 0 is joined pieces, 1 edge pieces, then one per color.
+	int ntrays = COLORS + 2;
+	List<List<Piece>> trays = new ArrayList<>(ntrays);
+	for (int t = 0; t < ntrays; t++) {
+	    trays.add(new ArrayList<Piece>());
+	}
+	long[] area = new long[ntrays];
+	int[] widest = new int[ntrays];
+	long totalArea = 0L;
+	for (Piece piece : pieces) {
+	    int t;
+	    if (piece instanceof MultiPiece) {
+		t = 0;
+	    } else if (piece.isEdge()) {
+		t = 1;
+	    } else {
+		t = 2 + piece.getDominantColor();
+	    }
+	    trays.get(t).add(piece);
+	    long a = (long) piece.getCurrentWidth() * piece.getCurrentHeight();
+	    area[t] += a;
+	    totalArea += a;
+	    widest[t] = Math.max(widest[t], piece.getCurrentWidth());
+	}
+	if (totalArea == 0L) {
+	    return;
+	}
+
+	// Each tray gets its share of the width, but is at least as wide
+	// as its widest piece. If that's too wide, squeeze them all.
+	int[] trayWidth = new int[ntrays];
+	long sum = 0L;
+	for (int t = 0; t < ntrays; t++) {
+	    if (!trays.get(t).isEmpty()) {
+		trayWidth[t] = (int) Math.max(widest[t],
+					      width * area[t] / totalArea);
+		sum += trayWidth[t];
+	    }
+	}
+	double squeeze = sum > width ? (double) width / sum : 1.0;
+	long x = 0L;
+	for (int t = 0; t < ntrays; t++) {
+	    List<Piece> tray = trays.get(t);
+	    if (tray.isEmpty()) {
+		continue;
+	    }
+	    int tx = (int) (x * squeeze);
+	    int tw = trayWidth[t];
+	    tx = Math.max(0, Math.min(tx, width - tw));
+	    ScatterLayout.scatter(tray.toArray(new Piece[0]), tx, 0, tw,
+				  height, random);
+	    x += tw;
+	}
+    }
+}